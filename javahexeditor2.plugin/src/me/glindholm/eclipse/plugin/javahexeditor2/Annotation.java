@@ -0,0 +1,82 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+/**
+ * A bookmark or a labeled region of a content. It stays attached to its bytes while bytes are
+ * inserted or deleted before it, a region grows or shrinks with the bytes inserted or deleted within
+ * it. A region whose bytes are all deleted is removed, a bookmark moves to the deletion point.
+ *
+ * @see BinaryContent#addAnnotation(long, long, String, int)
+ */
+public final class Annotation {
+
+    private final String label;
+    private final int color;
+    AnnotationTree tree; // null when removed
+    final AnnotationTree.Node node;
+
+    Annotation(final String label, final int color, final long length) {
+        this.label = label;
+        this.color = color;
+        node = new AnnotationTree.Node(this, length);
+    }
+
+    /**
+     * @return the background color of the annotated bytes as 0xRRGGBB, -1 for none
+     */
+    public int getColor() {
+        return color;
+    }
+
+    /**
+     * @return the label, not <code>null</code>
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return number of annotated bytes, 0 for a bookmark
+     */
+    public long getLength() {
+        return node.length;
+    }
+
+    /**
+     * @return position of the first annotated byte, -1 when the annotation has been removed
+     */
+    public long getStart() {
+        return tree == null ? -1L : tree.getStart(node);
+    }
+
+    /**
+     * @return true: the annotation is a bookmark, it marks a position without covering any byte
+     */
+    public boolean isBookmark() {
+        return node.length == 0L;
+    }
+
+    @Override
+    public String toString() {
+        return "Annotation {start:" + getStart() + ", length:" + getLength() + ", label:" + label + "}";
+    }
+}
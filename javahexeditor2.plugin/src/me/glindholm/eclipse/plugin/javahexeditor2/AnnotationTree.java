@@ -0,0 +1,386 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The annotations of a BinaryContent, in an interval tree. The tree is a treap ordered by the start
+ * of the annotations, where each node keeps its start relative to its parent. Shifting all
+ * annotations after a position only changes the nodes on one path, so inserting or deleting bytes
+ * costs O(log n) plus the annotations containing the modified position, not O(n). Each node also
+ * keeps the largest end of its subtree, so the annotations overlapping a window are found in
+ * O(log n) plus the number of annotations found.
+ * <P>
+ * A bookmark covers no byte, but it is reported for the byte at its position.
+ */
+final class AnnotationTree {
+
+    static final class Node {
+        final Annotation annotation;
+        long start; // relative to the start of the parent, absolute for the root
+        long length;
+        long maxEnd; // largest end in the subtree, relative to the start of this node
+        int priority;
+        Node left;
+        Node right;
+        Node parent;
+
+        Node(final Annotation annotation, final long length) {
+            this.annotation = annotation;
+            this.length = length;
+        }
+    }
+
+    private Node root;
+    private int size;
+    private int seed = 0x2545F491;
+
+    AnnotationTree() {
+    }
+
+    private static long extent(final Node node) {
+        return Math.max(node.length, 1L);
+    }
+
+    private static void update(final Node node) {
+        long maxEnd = extent(node);
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.start + node.left.maxEnd);
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.start + node.right.maxEnd);
+        }
+        node.maxEnd = maxEnd;
+    }
+
+    private static void updateToRoot(Node node) {
+        for (; node != null; node = node.parent) {
+            update(node);
+        }
+    }
+
+    /**
+     * Adds an annotation
+     *
+     * @param annotation the annotation, not in a tree
+     * @param start      position of its first byte
+     */
+    void add(final Annotation annotation, final long start) {
+        final Node node = annotation.node;
+        node.priority = nextPriority();
+        node.left = null;
+        node.right = null;
+        node.parent = null;
+        annotation.tree = this;
+        ++size;
+        if (root == null) {
+            node.start = start;
+            root = node;
+            update(node);
+            return;
+        }
+
+        Node parent = root;
+        long parentStart = root.start;
+        while (true) {
+            final Node next = start < parentStart ? parent.left : parent.right;
+            if (next == null) {
+                break;
+            }
+            parent = next;
+            parentStart += next.start;
+        }
+        node.start = start - parentStart;
+        node.parent = parent;
+        if (start < parentStart) {
+            parent.left = node;
+        } else {
+            parent.right = node;
+        }
+        update(node);
+        while (node.parent != null && node.priority > node.parent.priority) {
+            rotateUp(node);
+        }
+        updateToRoot(node);
+    }
+
+    /**
+     * Finds the annotations overlapping a sequence of bytes, in the order of their start
+     *
+     * @param start  position of the sequence
+     * @param length number of bytes
+     * @param result where to add the annotations
+     */
+    void collect(final long start, final long length, final List<Annotation> result) {
+        if (root != null && length > 0L) {
+            collect(root, root.start, start, start + length, result);
+        }
+    }
+
+    private static void collect(final Node node, final long nodeStart, final long start, final long end, final List<Annotation> result) {
+        if (nodeStart + node.maxEnd <= start) {
+            return;
+        }
+        if (node.left != null) {
+            collect(node.left, nodeStart + node.left.start, start, end, result);
+        }
+        if (nodeStart >= end) {
+            return;
+        }
+        if (nodeStart + extent(node) > start) {
+            result.add(node.annotation);
+        }
+        if (node.right != null) {
+            collect(node.right, nodeStart + node.right.start, start, end, result);
+        }
+    }
+
+    /**
+     * Moves the annotations after bytes deleted from the content, shrinks the regions containing
+     * them and removes the regions within them
+     *
+     * @param position position of the deleted bytes
+     * @param length   number of deleted bytes
+     */
+    void delete(final long position, final long length) {
+        final long end = position + length;
+        final List<Annotation> found = new ArrayList<>();
+        collect(position - 1L, length + 1L, found);
+        final List<Annotation> moved = new ArrayList<>();
+        final List<Long> movedLengths = new ArrayList<>();
+        for (final Annotation annotation : found) {
+            final long start = getStart(annotation.node);
+            final long annotationEnd = start + annotation.node.length;
+            final long newEnd = annotationEnd <= position ? annotationEnd : annotationEnd < end ? position : annotationEnd - length;
+            if (start < position) {
+                if (annotationEnd > position) {
+                    setLength(annotation.node, newEnd - start);
+                }
+            } else if (start < end) {
+                remove(annotation);
+                if (annotation.node.length == 0L || newEnd > position) {
+                    moved.add(annotation);
+                    movedLengths.add(newEnd - position);
+                }
+            }
+        }
+        shift(end, -length);
+        for (int i = 0; i < moved.size(); ++i) {
+            moved.get(i).node.length = movedLengths.get(i);
+            add(moved.get(i), position);
+        }
+    }
+
+    /**
+     * @param node a node of this tree
+     * @return position of the first byte of its annotation
+     */
+    long getStart(Node node) {
+        long result = 0L;
+        for (; node != null; node = node.parent) {
+            result += node.start;
+        }
+
+        return result;
+    }
+
+    /**
+     * Moves the annotations after bytes inserted into the content and grows the regions containing
+     * them
+     *
+     * @param position position of the inserted bytes
+     * @param length   number of inserted bytes
+     */
+    void insert(final long position, final long length) {
+        final List<Annotation> found = new ArrayList<>();
+        collect(position - 1L, 1L, found);
+        for (final Annotation annotation : found) {
+            final long start = getStart(annotation.node);
+            if (start < position && start + annotation.node.length > position) {
+                setLength(annotation.node, annotation.node.length + length);
+            }
+        }
+        shift(position, length);
+    }
+
+    /**
+     * Finds the annotation after a position
+     *
+     * @param position a position of the content
+     * @return the first annotation starting after the position, <code>null</code> if there is none
+     */
+    Annotation next(final long position) {
+        Node result = null;
+        Node node = root;
+        long nodeStart = 0L;
+        while (node != null) {
+            nodeStart += node.start;
+            if (nodeStart > position) {
+                result = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+
+        return result == null ? null : result.annotation;
+    }
+
+    private int nextPriority() {
+        // xorshift, no need for anything better
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+
+        return seed;
+    }
+
+    /**
+     * Finds the annotation before a position
+     *
+     * @param position a position of the content
+     * @return the last annotation starting before the position, <code>null</code> if there is none
+     */
+    Annotation previous(final long position) {
+        Node result = null;
+        Node node = root;
+        long nodeStart = 0L;
+        while (node != null) {
+            nodeStart += node.start;
+            if (nodeStart < position) {
+                result = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+
+        return result == null ? null : result.annotation;
+    }
+
+    /**
+     * Removes an annotation
+     *
+     * @param annotation an annotation of this tree
+     */
+    void remove(final Annotation annotation) {
+        final Node node = annotation.node;
+        while (node.left != null || node.right != null) {
+            if (node.right == null || node.left != null && node.left.priority > node.right.priority) {
+                rotateUp(node.left);
+            } else {
+                rotateUp(node.right);
+            }
+        }
+        final Node parent = node.parent;
+        if (parent == null) {
+            root = null;
+        } else {
+            if (parent.left == node) {
+                parent.left = null;
+            } else {
+                parent.right = null;
+            }
+            updateToRoot(parent);
+        }
+        node.parent = null;
+        annotation.tree = null;
+        --size;
+    }
+
+    /*
+     * Makes a node the parent of its parent. Relative starts follow the moved nodes.
+     */
+    private void rotateUp(final Node node) {
+        final Node parent = node.parent;
+        final long nodeStart = node.start;
+        final Node middle;
+        if (parent.left == node) {
+            middle = node.right;
+            parent.left = middle;
+            node.right = parent;
+        } else {
+            middle = node.left;
+            parent.right = middle;
+            node.left = parent;
+        }
+        if (middle != null) {
+            middle.parent = parent;
+            middle.start += nodeStart;
+        }
+
+        final Node grandParent = parent.parent;
+        node.parent = grandParent;
+        if (grandParent == null) {
+            root = node;
+        } else if (grandParent.left == parent) {
+            grandParent.left = node;
+        } else {
+            grandParent.right = node;
+        }
+        parent.parent = node;
+        node.start = parent.start + nodeStart;
+        parent.start = -nodeStart;
+        update(parent);
+        update(node);
+    }
+
+    private static void setLength(final Node node, final long length) {
+        node.length = length;
+        updateToRoot(node);
+    }
+
+    /*
+     * Adds a distance to the start of all annotations starting at or after a position. Only the nodes
+     * on one path change.
+     */
+    private void shift(final long position, final long distance) {
+        Node node = root;
+        Node last = null;
+        long parentStart = 0L;
+        while (node != null) {
+            final long nodeStart = parentStart + node.start;
+            last = node;
+            if (nodeStart >= position) {
+                // the node and its right subtree move, its left subtree stays
+                node.start += distance;
+                if (node.left != null) {
+                    node.left.start -= distance;
+                }
+                parentStart = nodeStart + distance;
+                node = node.left;
+            } else {
+                parentStart = nodeStart;
+                node = node.right;
+            }
+        }
+        updateToRoot(last);
+    }
+
+    /**
+     * @return number of annotations
+     */
+    int size() {
+        return size;
+    }
+}
@@ -22,19 +22,24 @@ package me.glindholm.eclipse.plugin.javahexeditor2;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.EventListener;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContentActionHistory.Entry;
+import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
 
 /**
  * A binary content provider. Content backed by files has no effect on memory footprint. Content
@@ -54,6 +59,115 @@ public final class BinaryContent {
          * Notifies the listener that the content has just been changed
          */
         void modified();
+
+        /**
+         * Notifies the listener that the content has just been changed, with the bytes that have
+         * changed. Calls {@link #modified()} unless overridden.
+         *
+         * @param change the changed bytes, not <code>null</code>
+         */
+        default void modified(final Change change) {
+            modified();
+        }
+    }
+
+    /**
+     * Describes a modification of a content: <code>removedLength</code> bytes at
+     * <code>position</code> have been replaced with <code>insertedLength</code> bytes. The bytes
+     * before the position are unchanged, the ones after the removed bytes are shifted by the
+     * difference of the lengths. An overwrite removes and inserts the same number of bytes.
+     */
+    public static final class Change {
+        private final long position;
+        private final long removedLength;
+        private final long insertedLength;
+
+        public Change(final long position, final long removedLength, final long insertedLength) {
+            if (position < 0L || removedLength < 0L || insertedLength < 0L) {
+                throw new IllegalArgumentException(
+                        "Parameters must not be negative, specified values are " + position + ", " + removedLength + ", " + insertedLength);
+            }
+            this.position = position;
+            this.removedLength = removedLength;
+            this.insertedLength = insertedLength;
+        }
+
+        /**
+         * Combines this change with the one made right after it
+         *
+         * @param next the following change, its position is in the content modified by this one, not
+         *             <code>null</code>
+         * @return the smallest change with the effect of both
+         */
+        public Change followedBy(final Change next) {
+            if (next == null) {
+                throw new IllegalArgumentException("Parameter 'next' must not be null.");
+            }
+
+            final long start = Math.min(position, next.position);
+            // end of the changed bytes in the content between both changes
+            final long end = Math.max(position + insertedLength, next.position + next.removedLength);
+
+            return new Change(start, end - (insertedLength - removedLength) - start, end + (next.insertedLength - next.removedLength) - start);
+        }
+
+        /**
+         * @return the position of the first changed byte
+         */
+        public long getPosition() {
+            return position;
+        }
+
+        /**
+         * @return number of bytes removed at the position
+         */
+        public long getRemovedLength() {
+            return removedLength;
+        }
+
+        /**
+         * @return number of bytes inserted at the position
+         */
+        public long getInsertedLength() {
+            return insertedLength;
+        }
+
+        /**
+         * Tells whether the bytes of a span of the content may have changed
+         *
+         * @param start  position of the span in the modified content
+         * @param length number of bytes of the span
+         * @return true: the span holds changed bytes, or bytes shifted by the change
+         */
+        public boolean affects(final long start, final long length) {
+            if (start + length <= position) {
+                return false;
+            }
+
+            return insertedLength != removedLength || start < position + insertedLength;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof final Change other)) {
+                return false;
+            }
+
+            return position == other.position && removedLength == other.removedLength && insertedLength == other.insertedLength;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(position) * 31 * 31 + Long.hashCode(removedLength) * 31 + Long.hashCode(insertedLength);
+        }
+
+        @Override
+        public String toString() {
+            return "Change {position:" + position + ", removedLength:" + removedLength + ", insertedLength:" + insertedLength + "}";
+        }
     }
 
     public static final class RangeSelection {
@@ -84,6 +198,167 @@ public final class BinaryContent {
         }
     }
 
+    /**
+     * Figures about the way a content is stored. All of them are kept up to date on modification, so
+     * getting them is cheap.
+     */
+    public static final class Statistics {
+        private final long length;
+        private final int rangeCount;
+        private final long dirtyBytes;
+        private final long heapBytes;
+        private final long spilledBytes;
+        private final long compactedRangeCount;
+        private final long undoBytes;
+        private final int undoEntryCount;
+
+        Statistics(final long length, final int rangeCount, final long dirtyBytes, final long heapBytes, final long spilledBytes,
+                final long compactedRangeCount, final long undoBytes, final int undoEntryCount) {
+            this.length = length;
+            this.rangeCount = rangeCount;
+            this.dirtyBytes = dirtyBytes;
+            this.heapBytes = heapBytes;
+            this.spilledBytes = spilledBytes;
+            this.compactedRangeCount = compactedRangeCount;
+            this.undoBytes = undoBytes;
+            this.undoEntryCount = undoEntryCount;
+        }
+
+        /**
+         * @return number of ranges merged by compaction so far
+         */
+        public long getCompactedRangeCount() {
+            return compactedRangeCount;
+        }
+
+        /**
+         * @return number of bytes of the content that have been modified, inserted or are being typed in
+         */
+        public long getDirtyBytes() {
+            return dirtyBytes;
+        }
+
+        /**
+         * @return number of bytes of the content held in memory buffers. Buffers of the undo history and
+         *         unused parts of buffers are not included, see {@link BinaryContent#getHeapBytes()}
+         */
+        public long getHeapBytes() {
+            return heapBytes;
+        }
+
+        /**
+         * @return length of the content in byte units
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return number of ranges the content is made of
+         */
+        public int getRangeCount() {
+            return rangeCount;
+        }
+
+        /**
+         * @return number of bytes moved from memory to a temporary file
+         */
+        public long getSpilledBytes() {
+            return spilledBytes;
+        }
+
+        /**
+         * @return number of bytes held in memory by the actions of the undo history, compressed bytes
+         *         count with their compressed size. Bytes moved to a temporary file are not included
+         */
+        public long getUndoBytes() {
+            return undoBytes;
+        }
+
+        /**
+         * @return number of actions in the undo history, including the ones that can be redone
+         */
+        public int getUndoEntryCount() {
+            return undoEntryCount;
+        }
+
+        @Override
+        public String toString() {
+            return "length=" + length + ", rangeCount=" + rangeCount + ", dirtyBytes=" + dirtyBytes + ", heapBytes=" + heapBytes + ", spilledBytes="
+                    + spilledBytes + ", compactedRangeCount=" + compactedRangeCount + ", undoBytes=" + undoBytes + ", undoEntryCount=" + undoEntryCount;
+        }
+    }
+
+    /**
+     * Read only view of a content as it was when {@link BinaryContent#snapshot()} was called. Later
+     * modifications of the content are not seen. A snapshot may be read by any number of threads at
+     * the same time while the content keeps being modified, until the content is disposed.
+     */
+    public static final class Snapshot {
+        private final RangeTree ranges;
+        private final long version;
+
+        Snapshot(final RangeTree ranges, final long version) {
+            this.ranges = ranges;
+            this.version = version;
+        }
+
+        /**
+         * Creates a cursor to read the snapshot sequentially. Each thread needs its own cursor.
+         *
+         * @param position where the cursor starts
+         * @return the cursor, not <code>null</code>
+         */
+        public ContentCursor cursor(final long position) {
+            return new ContentCursor(null, ranges, position);
+        }
+
+        /**
+         * Reads a sequence of bytes into the given buffer, starting at the given position
+         *
+         * @param dst      where to write the read result to
+         * @param position starting read point
+         * @return number of bytes read
+         * @throws IOException when a file cannot be read
+         */
+        public int get(final ByteBuffer dst, final long position) throws IOException {
+            if (dst == null) {
+                throw new IllegalArgumentException("Parameter 'dst' must not be null.");
+            }
+
+            final int dstInitialRemaining = dst.remaining();
+            final RangeTree.Cursor cursor = ranges.cursor();
+            long positionSoFar = position;
+            for (cursor.seek(position); cursor.hasRange() && dst.hasRemaining(); cursor.next()) {
+                final Range range = cursor.getRange();
+                final long overlapBytes = positionSoFar - cursor.getPosition();
+                final int length = (int) Math.min(range.length - overlapBytes, Integer.MAX_VALUE);
+                final int read = range.source.read(range.dataOffset + overlapBytes, dst, length);
+                if (read < length && dst.hasRemaining()) {
+                    break; // file shorter than expected
+                }
+                positionSoFar += read;
+            }
+
+            return dstInitialRemaining - dst.remaining();
+        }
+
+        /**
+         * @return value of {@link BinaryContent#getVersion()} when the snapshot was taken. Positions
+         *         found in the snapshot are valid in the content as long as it has the same version
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return length of the snapshot in byte units
+         */
+        public long length() {
+            return ranges.length();
+        }
+    }
+
     /**
      * A subset of data contained in a ByteBuffer or a File
      */
@@ -92,9 +367,7 @@ public final class BinaryContent {
         long length = -1L;
         boolean dirty = true;
         long dataOffset;
-        Object data; // ByteBuffer or RandomAccessFile
-        File file; // used when data is a RandomAccessFile since we cannot get a
-        // File from it
+        RangeSource source;
 
         Range(final long aPosition, final long aLength) {
             position = aPosition;
@@ -103,7 +376,8 @@ public final class BinaryContent {
 
         Range(final long aPosition, final ByteBuffer aBuffer, final boolean isDirty) {
             this(aPosition, aBuffer.remaining());
-            data = aBuffer;
+            source = aBuffer.isDirect() ? new RangeSource.Direct(aBuffer) : new RangeSource.Heap(aBuffer);
+            dataOffset = aBuffer.position();
             dirty = isDirty;
         }
 
@@ -113,8 +387,13 @@ public final class BinaryContent {
                 throw new RuntimeException("File length is negative, specified value is " + length + ".");
             }
 
-            this.file = file;
-            data = RandomAccessFileFactory.createRandomAccessFile(this.file, "r");
+            source = RangeSource.FileRegion.open(file);
+            dirty = isDirty;
+        }
+
+        Range(final long aPosition, final RangeSource aSource, final long aLength, final boolean isDirty) {
+            this(aPosition, aLength);
+            source = aSource;
             dirty = isDirty;
         }
 
@@ -166,24 +445,67 @@ public final class BinaryContent {
     public static final long mappedFileBufferLength = 2048 * 1024; // for mapped
     // file I/O
 
+    /**
+     * Default value of {@link #getHeapBudget()}, 64 MB
+     */
+    public static final long DEFAULT_HEAP_BUDGET = 64 * 1024 * 1024;
+
+    /**
+     * Default value of {@link #getUndoMaximumBytes()}, 256 MB
+     */
+    public static final long DEFAULT_UNDO_MAXIMUM_BYTES = 256 * 1024 * 1024;
+
+    /**
+     * Default value of {@link #getUndoMaximumEntries()}
+     */
+    public static final int DEFAULT_UNDO_MAXIMUM_ENTRIES = 10000;
+
+    private static final long MAXIMUM_DETACHED_HEAP_LENGTH = 1024 * 1024;
+    private static final int MINIMUM_COMPRESSED_LENGTH = 64 * 1024;
+    private static final long COMPRESSION_INTERVAL = 4 * 1024 * 1024; // growth of the undo history footprint
+
     BinaryContentActionHistory actions; // undo/redo actions history
     BinaryContentActionHistory actionsTemp;
     boolean dirty;
     boolean dirtySize;
-    long exclusiveEnd = -1L;
     long lastUpperNibblePosition = -1L;
     ArrayList<ModifyListener> listeners;
-    List<Integer> myChanges;
+    ByteGapBuffer myChanges; // bytes being typed in, null when there are none
+    private final ByteGapBuffer changesBuffer = new ByteGapBuffer();
     boolean myChangesInserted = false;
     long myChangesPosition = -1L;
-    TreeSet<Range> myRanges;
-    Iterator<Range> tailTree;
+    RangeTree myRanges;
+    private final RangeTree.Cursor readCursor;
+    private final ByteBuffer singleByte = ByteBuffer.allocate(1);
+    private volatile List<RangeCompactor.Run> compactedRuns; // merged in the background, to be applied
+    private boolean compactionPending;
+    private int nextCompactionSize; // number of ranges before fragmentation is checked again
+    private long compactedRangeCount;
+    private long heapBudget = DEFAULT_HEAP_BUDGET;
+    private long heapEstimate; // at least the heap bytes held
+    private long heapCheckLimit = DEFAULT_HEAP_BUDGET; // estimate above which the heap bytes are counted again
+    private ScratchFile scratchFile; // spilled heap buffers, created on first use
+    private boolean spillingFailed;
+    private long version; // incremented on each modification
+    private long undoMaximumBytes = DEFAULT_UNDO_MAXIMUM_BYTES;
+    private int undoMaximumEntries = DEFAULT_UNDO_MAXIMUM_ENTRIES;
+    private boolean undoCompression;
+    private long compressedFootprint; // undo history footprint after the last compression
+    private EditJournal journal; // modifications since the last save, null when not logged
+    private int transactionDepth; // nesting of beginTransaction() calls not committed yet
+    private boolean transactionModified; // listeners to be notified when the transaction is committed
+    private Change pendingChange; // bytes changed since the listeners were notified, null when none
+    private AnnotationTree annotations; // created with the first annotation
+    private RangeSource.FileRegion savedSource; // the file opened or saved last, null when none
+    private final List<WeakReference<Snapshot>> snapshots = new ArrayList<>(); // may still be read
+    private long savedLength;
 
     /**
      * Create new empty content.
      */
     public BinaryContent() {
-        myRanges = new TreeSet<>();
+        myRanges = new RangeTree();
+        readCursor = myRanges.cursor();
     }
 
     /**
@@ -198,7 +520,19 @@ public final class BinaryContent {
             return;
         }
 
-        myRanges.add(new Range(0L, aFile, false));
+        final Range range = new Range(0L, aFile, false);
+        myRanges.insert(0L, range);
+        savedSource = (RangeSource.FileRegion) range.source;
+        savedLength = range.length;
+    }
+
+    /*
+     * Called by the history when a modification starts a new undo action
+     */
+    void actionStarted() {
+        if (journal != null) {
+            journal.actionStarted();
+        }
     }
 
     void actionsOn(final boolean on) {
@@ -212,6 +546,36 @@ public final class BinaryContent {
         }
     }
 
+    /**
+     * Adds a bookmark or a labeled region. Annotations stay attached to their bytes while the content
+     * is modified, but they are not part of the undo history.
+     *
+     * @param position position of the first annotated byte
+     * @param length   number of annotated bytes, 0 for a bookmark
+     * @param label    the label, not <code>null</code>
+     * @param color    background color of the annotated bytes as 0xRRGGBB, -1 for none
+     * @return the annotation, not <code>null</code>
+     */
+    public Annotation addAnnotation(final long position, final long length, final String label, final int color) {
+        if (position < 0L || position > length()) {
+            throw new IllegalArgumentException("Parameter 'position' must be between 0 and " + length() + ", specified value is " + position);
+        }
+        if (length < 0L || length > length() - position) {
+            throw new IllegalArgumentException("Parameter 'length' must be between 0 and " + (length() - position) + ", specified value is " + length);
+        }
+        if (label == null) {
+            throw new IllegalArgumentException("Parameter 'label' must not be null.");
+        }
+
+        if (annotations == null) {
+            annotations = new AnnotationTree();
+        }
+        final Annotation result = new Annotation(label, color, length);
+        annotations.add(result, position);
+
+        return result;
+    }
+
     /**
      * Add a listener to the list of listeners to be notified when there is a change in the content
      *
@@ -225,6 +589,25 @@ public final class BinaryContent {
         listeners.add(listener);
     }
 
+    /**
+     * Starts a transaction. The modifications until the matching {@link #commit()} are undone and
+     * redone as one action, and the listeners are notified once, when the transaction is committed.
+     * Transactions can be nested, only the outermost one counts.
+     */
+    public void beginTransaction() {
+        if (transactionDepth++ > 0) {
+            return;
+        }
+
+        transactionModified = false;
+        if (actions != null) {
+            actions.beginTransaction();
+        }
+        if (journal != null) {
+            journal.beginTransaction();
+        }
+    }
+
     /**
      * Tells whether a redo is possible
      *
@@ -243,16 +626,140 @@ public final class BinaryContent {
         return actions != null && actions.canUndo();
     }
 
+    /**
+     * Ends the transaction started by the matching {@link #beginTransaction()}. When the outermost
+     * transaction is committed, its modifications become one undo action and the listeners are
+     * notified if there was any.
+     *
+     * @throws IllegalStateException if there is no transaction in progress
+     */
+    public void commit() {
+        if (transactionDepth == 0) {
+            throw new IllegalStateException("No transaction in progress.");
+        }
+        if (--transactionDepth > 0) {
+            return;
+        }
+
+        if (actions != null) {
+            actions.commitTransaction();
+        }
+        if (journal != null) {
+            journal.commit();
+        }
+        if (transactionModified) {
+            transactionModified = false;
+            notifyListeners();
+        }
+    }
+
+    private int applyCompaction(final List<RangeCompactor.Run> runs) {
+        int result = 0;
+        int runCount = 0;
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (final RangeCompactor.Run run : runs) {
+            if (run.merged == null || actions != null && actions.touchesCurrentAction(run.position, run.length)) {
+                continue;
+            }
+            boolean unchanged = cursor.seek(run.position) && cursor.getPosition() == run.position;
+            for (int i = 0; unchanged && i < run.ranges.length; ++i) {
+                unchanged = cursor.hasRange() && cursor.getRange() == run.ranges[i] && run.ranges[i].source instanceof RangeSource.Heap;
+                cursor.next();
+            }
+            if (unchanged) {
+                myRanges.remove(run.position, run.length);
+                myRanges.insert(run.position, new Range(run.position, run.merged, true));
+                heapEstimate += run.merged.capacity();
+                result += run.ranges.length;
+                ++runCount;
+            }
+        }
+        if (result > 0) {
+            compactedRangeCount += result;
+            Log.trace(this, "Compacted {0} ranges into {1}, {2} ranges left", result, runCount, myRanges.size());
+        }
+
+        return result;
+    }
+
+    private void applyPendingCompaction() {
+        final List<RangeCompactor.Run> runs = compactedRuns;
+        if (runs == null) {
+            return;
+        }
+
+        compactedRuns = null;
+        compactionPending = false;
+        applyCompaction(runs);
+        nextCompactionSize = myRanges.size() + myRanges.size() / 4;
+    }
+
+    /*
+     * Maps each heap buffer to the ranges of the undo history using it. The ranges of the content using
+     * it are mapped in contentRanges, as copies with their position set.
+     */
+    private IdentityHashMap<RangeSource.Heap, List<Range>> collectHeapBuffers(final IdentityHashMap<RangeSource.Heap, List<Range>> contentRanges) {
+        final IdentityHashMap<RangeSource.Heap, List<Range>> result = new IdentityHashMap<>();
+        if (myRanges == null) {
+            return result;
+        }
+
+        if (actions != null) {
+            final List<Range> ranges = new ArrayList<>();
+            actions.collectRanges(ranges);
+            for (final Range range : ranges) {
+                if (range.source instanceof final RangeSource.Heap heap) {
+                    result.computeIfAbsent(heap, key -> new ArrayList<>()).add(range);
+                }
+            }
+        }
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            if (cursor.getRange().source instanceof final RangeSource.Heap heap) {
+                final Range range = cursor.getRange().clone();
+                range.position = cursor.getPosition();
+                contentRanges.computeIfAbsent(heap, key -> new ArrayList<>()).add(range);
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Compresses the large buffers only used by the undo history. Ranges keep their data offsets, they
+     * index the uncompressed buffer.
+     */
+    private void compressHistory() {
+        final IdentityHashMap<RangeSource.Heap, List<Range>> contentRanges = new IdentityHashMap<>();
+        final IdentityHashMap<RangeSource.Heap, List<Range>> historyRanges = collectHeapBuffers(contentRanges);
+        final IdentityHashMap<RangeSource, RangeSource> moved = new IdentityHashMap<>();
+        for (final Map.Entry<RangeSource.Heap, List<Range>> entry : historyRanges.entrySet()) {
+            final RangeSource.Heap heap = entry.getKey();
+            final int capacity = heap.buffer.capacity();
+            if (capacity < MINIMUM_COMPRESSED_LENGTH || contentRanges.containsKey(heap)) {
+                continue;
+            }
+
+            final RangeSource.Deflated deflated = RangeSource.Deflated.compress(heap.buffer, 0, capacity);
+            if (deflated != null) {
+                for (final Range range : entry.getValue()) {
+                    range.source = deflated;
+                }
+                moved.put(heap, deflated);
+                heapEstimate -= capacity;
+            }
+        }
+        moveCheckpointRanges(moved, Map.of());
+        actions.updateFootprint();
+        compressedFootprint = actions.getFootprint();
+    }
+
     void commitChanges() {
         if (myChanges == null) {
             return;
         }
 
-        final ByteBuffer store = ByteBuffer.allocate(myChanges.size());
-        for (final Iterator<Integer> iterator = myChanges.iterator(); iterator.hasNext();) {
-            store.put(iterator.next().byteValue());
-        }
-        store.position(0);
+        final ByteBuffer store = myChanges.commit();
         myChanges = null;
         if (myChangesInserted) {
             insertRange(new Range(myChangesPosition, store, true));
@@ -263,6 +770,104 @@ public final class BinaryContent {
         myChangesPosition = -1L;
     }
 
+    /*
+     * Moves heap buffers to the scratch file until the heap bytes are 3/4 of the budget. Buffers only
+     * used by the undo history go first, oldest first, then the largest ones of the content. The
+     * estimate only grows between two counts, the next one waits for it to grow by a quarter of the
+     * budget and does not happen after spilling failed.
+     */
+    private void enforceHeapBudget() {
+        if (spillingFailed) {
+            heapCheckLimit = Long.MAX_VALUE;
+            return;
+        }
+
+        final IdentityHashMap<RangeSource.Heap, List<Range>> contentRanges = new IdentityHashMap<>();
+        final IdentityHashMap<RangeSource.Heap, List<Range>> historyRanges = collectHeapBuffers(contentRanges);
+        long total = getCapacity(historyRanges, contentRanges);
+        heapEstimate = total;
+        if (total <= heapBudget) {
+            heapCheckLimit = Math.max(heapBudget, total + heapBudget / 4);
+            return;
+        }
+
+        final List<RangeSource.Heap> candidates = new ArrayList<>(historyRanges.size() + contentRanges.size());
+        if (actions != null) {
+            // walk the history again, the map has no order
+            final List<Range> ranges = new ArrayList<>();
+            actions.collectRanges(ranges);
+            final IdentityHashMap<RangeSource.Heap, Boolean> added = new IdentityHashMap<>();
+            for (final Range range : ranges) {
+                if (range.source instanceof final RangeSource.Heap heap && !contentRanges.containsKey(heap) && added.put(heap, Boolean.TRUE) == null) {
+                    candidates.add(heap);
+                }
+            }
+        }
+        final List<RangeSource.Heap> contentBuffers = new ArrayList<>(contentRanges.keySet());
+        contentBuffers.sort((first, second) -> Integer.compare(second.buffer.capacity(), first.buffer.capacity()));
+        candidates.addAll(contentBuffers);
+
+        final long target = heapBudget - heapBudget / 4;
+        final IdentityHashMap<RangeSource, RangeSource> moved = new IdentityHashMap<>();
+        final IdentityHashMap<RangeSource, Long> offsets = new IdentityHashMap<>();
+        try {
+            if (scratchFile == null) {
+                scratchFile = new ScratchFile();
+            }
+            for (int i = 0; i < candidates.size() && total > target; ++i) {
+                final RangeSource.Heap heap = candidates.get(i);
+                final long offset = scratchFile.append(heap.buffer);
+                for (final Range range : historyRanges.getOrDefault(heap, List.of())) {
+                    range.source = scratchFile.getSource();
+                    range.dataOffset += offset;
+                }
+                for (final Range range : contentRanges.getOrDefault(heap, List.of())) {
+                    range.source = scratchFile.getSource();
+                    range.dataOffset += offset;
+                    myRanges.replace(range.position, range);
+                }
+                moved.put(heap, scratchFile.getSource());
+                offsets.put(heap, offset);
+                total -= heap.buffer.capacity();
+            }
+        } catch (final IOException e) {
+            spillingFailed = true;
+            Log.logError("Cannot move memory buffers to a temporary file", null, e);
+        }
+        if (actions != null) {
+            moveCheckpointRanges(moved, offsets);
+            actions.updateFootprint();
+        }
+        heapEstimate = total;
+        heapCheckLimit = spillingFailed ? Long.MAX_VALUE : Math.max(heapBudget, total + heapBudget / 4);
+        Log.trace(this, "{0} bytes in memory, {1} bytes moved to {2}", total, getSpilledBytes(), scratchFile == null ? null : scratchFile.getFile());
+    }
+
+    /**
+     * Merges runs of adjacent small modified ranges held in memory into one range each. Has no effect
+     * on the bytes of the content nor on its undo history. Done automatically in the background when
+     * the content gets fragmented.
+     *
+     * @return number of ranges that have been merged
+     */
+    public int compact() {
+        final List<RangeCompactor.Run> runs = RangeCompactor.collectRuns(myRanges);
+        RangeCompactor.merge(runs);
+
+        return applyCompaction(runs);
+    }
+
+    /**
+     * Creates a cursor to read this content sequentially, for instance to scan it. Reading with a
+     * cursor does not search the ranges again for each chunk.
+     *
+     * @param position where the cursor starts
+     * @return the cursor, not <code>null</code>
+     */
+    public ContentCursor cursor(final long position) {
+        return new ContentCursor(this, myRanges, position);
+    }
+
     /**
      * Deletes length bytes from the content at the given position
      *
@@ -285,98 +890,46 @@ public final class BinaryContent {
         }
         if (myChanges != null && myChangesInserted && myChangesPosition <= position && myChangesPosition + myChanges.size() >= position + length) {
             final int deleteStart = (int) (position - myChangesPosition);
-            final List<Integer> subList = myChanges.subList(deleteStart, deleteStart + (int) length);
             if (actions != null) {
-                actions.addDeleted(position, subList, length == 1L);
-                if (length > 1) {
+                if (length == 1L) {
+                    actions.addDeleted(position, myChanges.get(deleteStart) & 0x0ff);
+                } else {
+                    actions.addDeleted(position, myChanges.copy(deleteStart, (int) length));
                     actions.endAction();
                 }
             }
             if (length < myChanges.size()) {
-                subList.clear();
+                myChanges.remove(deleteStart, (int) length);
             } else { // length == myChanges.size()
                 myChanges = null;
                 // splitAndShift(position, 0); // mark them as dirty
             }
         } else {
             commitChanges();
-            deleteAndShift(position, length);
+            deleteInternal(position, length);
+        }
+        changed(position, length, 0L);
+        if (journal != null) {
+            journal.delete(position, length);
         }
         notifyListeners();
     }
 
-    void deleteAndShift(final long start, final long length) {
-        deleteInternal(start, length);
-        initSubtreeTraversing(start, 0L);
-        shiftRemainingRanges(-length);
-    }
-
     void deleteInternal(final long startPosition, final long length) {
-        if (length < 1L) {
-            return;
-        }
-        initSubtreeTraversing(startPosition, length);
-        if (!tailTree.hasNext()) {
-            return;
-        }
-
-        final ArrayList<Range> deleted = new ArrayList<>();
-        final Range firstRange = tailTree.next();
-        final Range secondRange = firstRange.clone(); // will be tail part of
-        // firstRange
-        Range lastRange = null;
-        if (firstRange.position < startPosition) {
-            firstRange.length = startPosition - firstRange.position;
-
-            secondRange.length = secondRange.exclusiveEnd() - startPosition; // actions
-            secondRange.dataOffset += startPosition - secondRange.position; // actions
-            secondRange.position = startPosition; // actions
-        } else { // firstRange.position == startPosition
-            tailTree.remove();
-        }
-        final long endSoFar = secondRange.exclusiveEnd();
-        boolean toBeAdded = false;
-        if (endSoFar > exclusiveEnd) {
-            lastRange = secondRange.clone();
-            toBeAdded = true;
-            secondRange.length = exclusiveEnd - secondRange.position; // actions
-        }
-        deleted.add(secondRange); // actions
-        if (endSoFar < exclusiveEnd) {
-            while (tailTree.hasNext() && lastRange == null) {
-                lastRange = tailTree.next();
-                if (lastRange.exclusiveEnd() <= exclusiveEnd) {
-                    tailTree.remove();
-                    deleted.add(lastRange); // actions
-                    lastRange = null;
-                }
-            }
-            if (lastRange != null && lastRange.position < exclusiveEnd) { // actions
-                final Range beforeLastRange = lastRange.clone();
-                beforeLastRange.length = exclusiveEnd - beforeLastRange.position;
-                deleted.add(beforeLastRange);
-            }
-        }
-        if (lastRange != null && lastRange.position < exclusiveEnd && lastRange.exclusiveEnd() > exclusiveEnd) {
-            final long delta = exclusiveEnd - lastRange.position;
-            lastRange.position += delta;
-            lastRange.length -= delta;
-            lastRange.dataOffset += delta;
-            if (toBeAdded) {
-                myRanges.add(lastRange);
-            }
-        }
-        if (actions != null) {
-            actions.addLostRanges(deleted);
+        final List<Range> deleted = myRanges.remove(startPosition, length);
+        if (actions != null && !deleted.isEmpty()) {
+            actions.addLostRanges(deleted);
         }
     }
 
     private long[] deleteRanges(final List<Range> currentAction) {
         final long[] result = new long[2];
         result[0] = result[1] = currentAction.get(0).position;
+        final long length = currentAction.get(currentAction.size() - 1).exclusiveEnd() - result[0];
         actionsOn(false);
-        deleteAndShift(result[0], currentAction.get(currentAction.size() - 1).exclusiveEnd() - result[0]);
+        deleteInternal(result[0], length);
         actionsOn(true);
+        changed(result[0], length, 0L);
 
         return result;
     }
@@ -394,18 +947,21 @@ public final class BinaryContent {
         }
 
         for (final Range value : myRanges) {
-            if (value.data instanceof RandomAccessFile) {
-                try {
-                    ((RandomAccessFile) value.data).close();
-                } catch (final IOException e) {
-                    // ok, leave this file alone and close the rest
-                }
+            try {
+                value.source.close();
+            } catch (final IOException e) {
+                // ok, leave this file alone and close the rest
             }
         }
 
         if (actions != null) {
-            actions.finalize();
+            actions.dispose();
         }
+        if (scratchFile != null) {
+            scratchFile.dispose();
+            scratchFile = null;
+        }
+        stopJournal();
         myRanges = null;
         listeners = null;
     }
@@ -417,39 +973,46 @@ public final class BinaryContent {
             return 0;
         }
 
-        int remaining = dst.remaining();
-        int i = (int) relativePosition;
-        for (; remaining > 0 && i < changesSize; ++i, --remaining) {
-            dst.put(myChanges.get(i).byteValue());
+        return myChanges.get(dst, (int) relativePosition);
+    }
+
+    int fillWithPartOfRange(final ByteBuffer dst, final Range sourceRange, final long overlapBytes, final int maxCopyLength) throws IOException {
+        final int length = (int) Math.min(sourceRange.length - overlapBytes, maxCopyLength);
+        if (length < 1) {
+            return 0;
         }
 
-        return i - (int) relativePosition;
+        return sourceRange.source.read(sourceRange.dataOffset + overlapBytes, dst, length);
     }
 
-    int fillWithPartOfRange(final ByteBuffer dst, final Range sourceRange, final long overlapBytes, final int maxCopyLength) throws IOException {
-        final int dstInitialPosition = dst.position();
-        if (sourceRange.data instanceof final ByteBuffer src) {
-            src.limit((int) (sourceRange.dataOffset + sourceRange.length));
-            src.position((int) (sourceRange.dataOffset + overlapBytes));
-            if (src.remaining() > dst.remaining() || src.remaining() > maxCopyLength) {
-                src.limit(src.position() + Math.min(dst.remaining(), maxCopyLength));
-            }
-            dst.put(src);
-        } else if (sourceRange.data instanceof final RandomAccessFile src) {
-            final long start = sourceRange.dataOffset + overlapBytes;
-            final int length = (int) Math.min(sourceRange.length - overlapBytes, maxCopyLength);
-            int limit = -1;
-            if (dst.remaining() > length) {
-                limit = dst.limit();
-                dst.limit(dst.position() + length);
-            }
-            src.getChannel().read(dst, start);
-            if (limit > 0) {
-                dst.limit(limit);
-            }
+    void heapBytesAdded(final RangeSource source) {
+        if (source instanceof final RangeSource.Heap heap) {
+            heapEstimate += heap.buffer.capacity();
         }
+    }
 
-        return dst.position() - dstInitialPosition;
+    /*
+     * A checkpoint may hold buffers compressed with the history, the content reads them inflated
+     */
+    private void inflateRanges() {
+        final IdentityHashMap<RangeSource.Deflated, RangeSource.Heap> inflated = new IdentityHashMap<>();
+        final List<Range> ranges = new ArrayList<>();
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            if (cursor.getRange().source instanceof final RangeSource.Deflated deflated) {
+                final Range range = cursor.getRange().clone();
+                range.position = cursor.getPosition();
+                range.source = inflated.computeIfAbsent(deflated, key -> {
+                    final RangeSource.Heap heap = new RangeSource.Heap(key.inflate());
+                    heapBytesAdded(heap);
+                    return heap;
+                });
+                ranges.add(range);
+            }
+        }
+        for (final Range range : ranges) {
+            myRanges.replace(range.position, range);
+        }
     }
 
     void fillWithRange(final ByteBuffer dst, final Range sourceRange, long overlapBytes, final long position, final List<Long> rangesModified)
@@ -491,16 +1054,6 @@ public final class BinaryContent {
         }
     }
 
-    /**
-     * Closes all files for termination
-     *
-     * @see Object#finalize()
-     */
-    @Override
-    protected void finalize() {
-        dispose();
-    }
-
     /**
      * Reads a sequence of bytes from this content into the given buffer, starting at the given position
      *
@@ -535,15 +1088,19 @@ public final class BinaryContent {
         }
 
         long positionSoFar = position - positionShift;
-        initSubtreeTraversing(positionSoFar, dst.remaining());
-
-        Range partialRange = null;
-        while (tailTree.hasNext() && (partialRange = tailTree.next()).position < exclusiveEnd) {
-            fillWithRange(dst, partialRange, positionSoFar - partialRange.position, positionSoFar + positionShift, rangesModified); // throws IOException
-            positionSoFar = partialRange.exclusiveEnd();
+        final long exclusiveEnd = Math.min(positionSoFar + dst.remaining(), length());
+
+        final RangeTree.Cursor cursor = readCursor;
+        cursor.move(positionSoFar);
+        while (cursor.hasRange() && cursor.getPosition() < exclusiveEnd) {
+            final Range partialRange = cursor.getRange();
+            final long rangePosition = cursor.getPosition();
+            fillWithRange(dst, partialRange, positionSoFar - rangePosition, positionSoFar + positionShift, rangesModified); // throws IOException
+            positionSoFar = rangePosition + partialRange.length;
             if (myChanges != null && myChangesInserted && positionSoFar + positionShift > myChangesPosition) {
                 positionShift = myChanges.size();
             }
+            cursor.next();
         }
         if (dst.remaining() > 0 && myChanges != null && positionSoFar + positionShift < myChangesPosition + myChanges.size()) {
             final int size = fillWithChanges(dst, positionSoFar + positionShift);
@@ -577,6 +1134,26 @@ public final class BinaryContent {
      * @throws IOException
      */
     public long get(final File destinationFile, final long start, final long length) throws IOException {
+        return get(destinationFile, start, length, null);
+    }
+
+    /**
+     * Reads a sequence of bytes from this content into the given file, replacing it. Unmodified parts
+     * of files are copied by the operating system, the file is synchronized to the disk once at the
+     * end. The file is replaced only when complete, it may be one of the files backing this content.
+     * When its directory does not allow that, it is written over instead, see {@link BinaryContentWriter}.
+     *
+     * @param destinationFile where to write the read result to
+     * @param start           first byte in sequence
+     * @param length          number of bytes to read
+     * @param monitor         receives the bytes written and the throughput, and may cancel the save.
+     *                        May be <code>null</code>
+     * @return number of bytes read
+     * @throws IOException                when the bytes cannot be read or written
+     * @throws OperationCanceledException when the monitor has been cancelled, the file is unchanged
+     *                                    unless it had to be written over
+     */
+    public long get(final File destinationFile, final long start, final long length, final IProgressMonitor monitor) throws IOException {
         if (start < 0L || length < 0L || start + length > length()) {
             return 0L;
         }
@@ -585,59 +1162,7 @@ public final class BinaryContent {
             actions.endAction();
         }
         commitChanges();
-        final RandomAccessFile dst = RandomAccessFileFactory.createRandomAccessFile(destinationFile, "rws");
-        IOException preCloseException = null;
-        try {
-            dst.setLength(length);
-            final FileChannel channel = dst.getChannel();
-
-            ByteBuffer buffer = null;
-            for (long position = 0L; position < length; position += mappedFileBufferLength) {
-                final int partLength = (int) Math.min(mappedFileBufferLength, length - position);
-                boolean bufferFromMap = true;
-                try {
-                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, partLength);
-                } catch (final IOException e) {
-                    // gcj 4.3.0 channel maps work differently than sun's:
-                    // gcj won't accept two calls to channel.map with a
-                    // different position, sun does
-                    // gcj will happily accept maps of size bigger than
-                    // available memory, sun won't
-                    // to access past the 2Gb barrier there is no choice but use
-                    // plain ByteBuffers in gcj
-                    bufferFromMap = false;
-                    if (buffer == null) {
-                        buffer = ByteBuffer.allocateDirect((int) mappedFileBufferLength);
-                    }
-                    buffer.position(0);
-                    buffer.limit(partLength);
-                }
-                get(buffer, start + position);
-                if (bufferFromMap) {
-                    ((MappedByteBuffer) buffer).force();
-                    buffer = null;
-                } else {
-                    buffer.position(0);
-                    buffer.limit(partLength);
-                    channel.write(buffer, position);
-                }
-            }
-            channel.force(true);
-            channel.close();
-        } catch (final IOException e) {
-            preCloseException = e;
-        }
-        try {
-            dst.close();
-        } catch (final IOException e) {
-            if (preCloseException == null) {
-                throw e;
-            }
-            throw preCloseException; // throw previous exception instead
-        }
-        if (preCloseException != null) {
-            throw preCloseException;
-        }
+        BinaryContentWriter.write(myRanges, start, length, destinationFile, monitor);
 
         return length;
     }
@@ -645,24 +1170,174 @@ public final class BinaryContent {
     /*
      * Does not check myChanges
      */
-    private int getFromRanges(final long position) throws IOException {
-        int result = 0;
-        final Range range = getRangeAt(position);
-        if (range != null) {
-            final Object value = range.data;
-            if (value instanceof final ByteBuffer data) {
-                data.limit(data.capacity());
-                data.position((int) range.dataOffset);
-                result = data.get((int) (position - range.position)) & 0x0ff;
-            } else if (value instanceof final RandomAccessFile randomFile) {
-                randomFile.seek(position);
-                result = randomFile.read();
+    private byte getFromRanges(final long position) throws IOException {
+        if (!readCursor.move(position)) {
+            return 0;
+        }
+
+        singleByte.clear();
+        fillWithPartOfRange(singleByte, readCursor.getRange(), position - readCursor.getPosition(), 1);
+
+        return singleByte.position() > 0 ? singleByte.get(0) : 0;
+    }
+
+    private static long getCapacity(final IdentityHashMap<RangeSource.Heap, List<Range>> historyRanges,
+            final IdentityHashMap<RangeSource.Heap, List<Range>> contentRanges) {
+        long result = 0L;
+        for (final RangeSource.Heap heap : historyRanges.keySet()) {
+            result += heap.buffer.capacity();
+        }
+        for (final RangeSource.Heap heap : contentRanges.keySet()) {
+            if (!historyRanges.containsKey(heap)) {
+                result += heap.buffer.capacity();
             }
         }
 
         return result;
     }
 
+    /**
+     * Tells how many ranges have been merged by compaction since this content was created
+     *
+     * @return number of merged ranges
+     * @see #compact()
+     */
+    public long getCompactedRangeCount() {
+        return compactedRangeCount;
+    }
+
+    /**
+     * Gets the maximum number of bytes held in memory by the ranges of this content and its undo
+     * history. Above it, buffers are moved to a temporary file.
+     *
+     * @return the budget in bytes
+     */
+    public long getHeapBudget() {
+        return heapBudget;
+    }
+
+    /**
+     * Counts the bytes held in memory by the ranges of this content and its undo history. Bytes being
+     * typed in are not included.
+     *
+     * @return number of bytes in memory buffers
+     */
+    public long getHeapBytes() {
+        final IdentityHashMap<RangeSource.Heap, List<Range>> contentRanges = new IdentityHashMap<>();
+        final IdentityHashMap<RangeSource.Heap, List<Range>> historyRanges = collectHeapBuffers(contentRanges);
+        return getCapacity(historyRanges, contentRanges);
+    }
+
+    /**
+     * Gets figures about the way this content is stored, in constant time
+     *
+     * @return the current figures, not <code>null</code>
+     */
+    public Statistics getStatistics() {
+        final int changes = myChanges == null ? 0 : myChanges.size();
+
+        return new Statistics(length(), myRanges.size(), myRanges.getDirtyLength() + changes, myRanges.getHeapLength() + changes, getSpilledBytes(),
+                compactedRangeCount, actions == null ? 0L : actions.getFootprint(), actions == null ? 0 : actions.getEntryCount());
+    }
+
+    /**
+     * Tells how many bytes have been moved from memory to the temporary file of this content
+     *
+     * @return number of bytes in the temporary file
+     */
+    public long getSpilledBytes() {
+        return scratchFile == null ? 0L : scratchFile.getLength();
+    }
+
+    /**
+     * Gets the maximum number of bytes the undo history holds in memory
+     *
+     * @return the limit in bytes
+     * @see #setUndoLimits(long, int)
+     */
+    public long getUndoMaximumBytes() {
+        return undoMaximumBytes;
+    }
+
+    /**
+     * Gets the maximum number of actions the undo history remembers
+     *
+     * @return the limit in actions
+     * @see #setUndoLimits(long, int)
+     */
+    public int getUndoMaximumEntries() {
+        return undoMaximumEntries;
+    }
+
+    /**
+     * Gets the annotations over a sequence of bytes, for instance the ones on screen. Only the
+     * annotations found are visited, not all annotations of the content.
+     *
+     * @param start  position of the sequence
+     * @param length number of bytes
+     * @return the annotations overlapping the sequence in the order of their start, bookmarks count for
+     *         the byte at their position. Not <code>null</code>
+     */
+    public List<Annotation> getAnnotations(final long start, final long length) {
+        final List<Annotation> result = new ArrayList<>();
+        if (annotations != null) {
+            annotations.collect(start, length, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return number of annotations of this content
+     */
+    public int getAnnotationCount() {
+        return annotations == null ? 0 : annotations.size();
+    }
+
+    /**
+     * Finds the annotation after a position, to go from one annotation to the next
+     *
+     * @param position a position of the content
+     * @return the first annotation starting after the position, <code>null</code> if there is none
+     */
+    public Annotation getNextAnnotation(final long position) {
+        return annotations == null ? null : annotations.next(position);
+    }
+
+    /**
+     * Finds the annotation before a position, to go from one annotation to the previous one
+     *
+     * @param position a position of the content
+     * @return the last annotation starting before the position, <code>null</code> if there is none
+     */
+    public Annotation getPreviousAnnotation(final long position) {
+        return annotations == null ? null : annotations.previous(position);
+    }
+
+    /**
+     * Gets the position in the undo history, to be given to {@link #restoreHistory(int)} later
+     *
+     * @return number of actions done, the action in progress included. 0 when the history is off
+     */
+    public int getHistoryIndex() {
+        return actions == null ? 0 : actions.getIndex();
+    }
+
+    /**
+     * @return number of actions in the undo history, the action in progress included. 0 when the
+     *         history is off
+     */
+    public int getHistorySize() {
+        return actions == null ? 0 : actions.getSize();
+    }
+
+    /**
+     * @return number of modifications made to this content so far, including undo and redo
+     */
+    public long getVersion() {
+        return version;
+    }
+
     /**
      * Get the list of files that back this object.
      *
@@ -670,13 +1345,13 @@ public final class BinaryContent {
      */
     public List<File> getOpenFiles() {
         final HashSet<File> result = new HashSet<>();
-        if (myRanges == null || myRanges.size() == 0) {
+        if (myRanges == null || myRanges.isEmpty()) {
             return new ArrayList<>(result);
         }
 
         for (final Range value : myRanges) {
-            if (value.data instanceof RandomAccessFile && value.file != null) {
-                result.add(value.file);
+            if (value.source instanceof final RangeSource.FileRegion region && (scratchFile == null || region != scratchFile.getSource())) {
+                result.add(region.file);
             }
         }
 
@@ -684,23 +1359,7 @@ public final class BinaryContent {
     }
 
     Range getRangeAt(final long position) {
-        final SortedSet<Range> subSet = myRanges.tailSet(new Range(position, 1L));
-        if (subSet.isEmpty()) {
-            return null;
-        }
-
-        return subSet.first();
-    }
-
-    SortedSet<Range> initSubtreeTraversing(final long position, final long length) {
-        final SortedSet<Range> result = myRanges.tailSet(new Range(position, 1L));
-        tailTree = result.iterator();
-        exclusiveEnd = position + length;
-        if (exclusiveEnd > length()) {
-            exclusiveEnd = length();
-        }
-
-        return result;
+        return myRanges.getRangeAt(position);
     }
 
     /**
@@ -722,7 +1381,11 @@ public final class BinaryContent {
             actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, true);
         }
         updateChanges(position, true);
-        myChanges.set((int) (position - myChangesPosition), source & 0x0ff);
+        myChanges.set((int) (position - myChangesPosition), source);
+        changed(position, 0L, 1L);
+        if (journal != null) {
+            journal.insert(source, position);
+        }
         notifyListeners();
     }
 
@@ -739,19 +1402,10 @@ public final class BinaryContent {
             return;
         }
 
-        dirty = true;
-        dirtySize = true;
-        lastUpperNibblePosition = -1L;
-        if (actions != null) {
-            actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, false);
-        }
-        commitChanges();
-        final Range newRange = new Range(position, source, true);
-        insertRange(newRange);
-        if (actions != null) {
-            actions.addInserted(newRange.clone());
+        insertInternal(new Range(position, source, true));
+        if (journal != null) {
+            journal.insert(source, position);
         }
-        notifyListeners();
     }
 
     /**
@@ -769,35 +1423,58 @@ public final class BinaryContent {
             return;
         }
 
-        final Range newRange = new Range(position, aFile, true);
+        insertInternal(new Range(position, aFile, true));
+        if (journal != null) {
+            journal.insert(aFile, position);
+        }
+    }
+
+    void insertInternal(final Range newRange) {
         dirty = true;
         dirtySize = true;
         lastUpperNibblePosition = -1L;
         if (actions != null) {
-            actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, position, false);
+            actions.eventPreModify(BinaryContentActionHistory.TYPE_INSERT, newRange.position, false);
         }
         commitChanges();
         insertRange(newRange);
         if (actions != null) {
             actions.addInserted(newRange.clone());
         }
+        changed(newRange.position, 0L, newRange.length);
         notifyListeners();
     }
 
+    /**
+     * Inserts a sequence of zero bytes into this content, starting at the given position and shifting
+     * the existing ones. The bytes take no memory until the content is saved.
+     *
+     * @param length   number of zero bytes
+     * @param position starting insert point
+     */
+    public void insertZeros(final long length, final long position) {
+        if (length < 1L || position > length()) {
+            return;
+        }
+
+        insertInternal(new Range(position, RangeSource.Zeros.INSTANCE, length, true));
+        if (journal != null) {
+            journal.insertZeros(length, position);
+        }
+    }
+
     private void insertRange(final Range newRange) {
-        splitAndShift(newRange.position, newRange.length);
-        myRanges.add(newRange);
+        heapBytesAdded(newRange.source);
+        myRanges.insert(newRange.position, newRange);
     }
 
     private long[] insertRanges(final List<Range> ranges) {
         final Range firstRange = ranges.get(0);
         final Range lastRange = ranges.get(ranges.size() - 1);
-        splitAndShift(firstRange.position, lastRange.exclusiveEnd() - firstRange.position);
-        final ArrayList<Range> cloned = new ArrayList<>(ranges.size());
         for (final Range range : ranges) {
-            cloned.add(range.clone());
+            myRanges.insert(range.position, range.clone());
         }
-        myRanges.addAll(cloned);
+        changed(firstRange.position, 0L, lastRange.exclusiveEnd() - firstRange.position);
 
         return new long[] { firstRange.position, lastRange.exclusiveEnd() };
     }
@@ -811,6 +1488,15 @@ public final class BinaryContent {
         return dirty;
     }
 
+    /**
+     * Tells whether a transaction is in progress
+     *
+     * @return true: {@link #beginTransaction()} has been called more often than {@link #commit()}
+     */
+    public boolean isInTransaction() {
+        return transactionDepth > 0;
+    }
+
     /**
      * Tells whether changes have been done to the original content's size
      *
@@ -820,17 +1506,21 @@ public final class BinaryContent {
         return dirtySize;
     }
 
+    /**
+     * @return true: the undo history compresses large buffers
+     * @see #setUndoCompression(boolean)
+     */
+    public boolean isUndoCompression() {
+        return undoCompression;
+    }
+
     /**
      * Number of bytes in content
      *
      * @return length of content in byte units
      */
     public long length() {
-        long result = 0L;
-
-        if (myRanges.size() > 0) {
-            result = myRanges.last().exclusiveEnd();
-        }
+        long result = myRanges.length();
 
         if (myChanges != null && myChangesInserted) {
             result += myChanges.size();
@@ -840,12 +1530,65 @@ public final class BinaryContent {
     }
 
     void notifyListeners() {
+        ++version;
+        if (myRanges != null) {
+            applyPendingCompaction();
+            scheduleCompaction();
+            if (heapEstimate > heapCheckLimit) {
+                enforceHeapBudget();
+            }
+            if (undoCompression && actions != null && actions.getFootprint() - compressedFootprint >= COMPRESSION_INTERVAL) {
+                compressHistory();
+            }
+        }
+        if (transactionDepth > 0) {
+            transactionModified = true;
+            return;
+        }
+        final Change change = pendingChange == null ? new Change(0L, length(), length()) : pendingChange;
+        pendingChange = null;
         if (listeners == null) {
             return;
         }
 
         for (final ModifyListener listener : listeners) {
-            listener.modified();
+            listener.modified(change);
+        }
+    }
+
+    /*
+     * Records bytes changed by a modification, for the listeners
+     */
+    private void changed(final long position, final long removedLength, final long insertedLength) {
+        final Change change = new Change(position, removedLength, insertedLength);
+        pendingChange = pendingChange == null ? change : pendingChange.followedBy(change);
+        if (annotations != null) {
+            // overwritten bytes keep their annotations
+            if (removedLength > insertedLength) {
+                annotations.delete(position + insertedLength, removedLength - insertedLength);
+            } else if (insertedLength > removedLength) {
+                annotations.insert(position + removedLength, insertedLength - removedLength);
+            }
+        }
+    }
+
+    /**
+     * Writes a repeating sequence of bytes into this content, starting at the given position and
+     * overwriting the existing ones. The bytes take no memory until the content is saved.
+     *
+     * @param pattern  bytes to repeat, not <code>null</code> or empty. The array is copied
+     * @param position starting overwrite point
+     * @param length   number of bytes to write, limited to the end of the content
+     */
+    public void fill(final byte[] pattern, final long position, final long length) {
+        if (pattern == null) {
+            throw new IllegalArgumentException("Parameter 'pattern' must not be null.");
+        }
+        if (pattern.length > 0 && length > 0L && position >= 0L && position < length()) {
+            overwriteInternal(new Range(position, new RangeSource.Pattern(pattern), Math.min(length, length() - position), true));
+            if (journal != null) {
+                journal.fill(pattern, position, length);
+            }
         }
     }
 
@@ -894,10 +1637,10 @@ public final class BinaryContent {
             length = 8 - offset;
         }
         final Range range = updateChanges(position, false);
-        final int previous = myChanges.get((int) (position - myChangesPosition));
+        final int previous = myChanges.get((int) (position - myChangesPosition)) & 0x0ff;
         final int mask = 0x0ff >>> offset & 0x0ff << 8 - offset - length;
         final int newValue = previous & ~mask | source << 8 - offset - length & mask;
-        myChanges.set((int) (position - myChangesPosition), newValue);
+        myChanges.set((int) (position - myChangesPosition), (byte) newValue);
         if (actions != null) {
             if (range == null) {
                 actions.addLostByte(position, previous);
@@ -912,6 +1655,10 @@ public final class BinaryContent {
         }
         actionsOn(true);
         lastUpperNibblePosition = actions != null && offset == 0 && length == 4 ? position : -1L;
+        changed(position, 1L, 1L);
+        if (journal != null) {
+            journal.overwrite(source, offset, length, position);
+        }
         notifyListeners();
     }
 
@@ -926,6 +1673,9 @@ public final class BinaryContent {
     public void overwrite(final ByteBuffer source, final long position) {
         if (source.remaining() > 0 && position < length()) {
             overwriteInternal(new Range(position, source, true));
+            if (journal != null) {
+                journal.overwrite(source, position);
+            }
         }
     }
 
@@ -941,6 +1691,9 @@ public final class BinaryContent {
     public void overwrite(final File aFile, final long position) throws IOException {
         if (aFile.length() > 0L && position < length()) {
             overwriteInternal(new Range(position, aFile, true));
+            if (journal != null) {
+                journal.overwrite(aFile, position);
+            }
         }
     }
 
@@ -955,35 +1708,24 @@ public final class BinaryContent {
         if (actions != null) {
             actions.addRangeToCurrentAction(newRange.clone());
         }
+        changed(newRange.position, newRange.length, newRange.length);
         notifyListeners();
     }
 
     private void overwriteRange(final Range aRange) {
         deleteInternal(aRange.position, aRange.length);
-        myRanges.add(aRange);
+        heapBytesAdded(aRange.source);
+        myRanges.insert(aRange.position, aRange);
     }
 
     private long[] overwriteRanges(final List<Range> ranges) {
         final Range firstRange = ranges.get(0);
         final Range lastRange = ranges.get(ranges.size() - 1);
-        splitAndShift(firstRange.position, 0);
-        splitAndShift(lastRange.exclusiveEnd(), 0);
-        initSubtreeTraversing(firstRange.position, 0L);
-        if (tailTree.hasNext()) {
-            Range goingRange = tailTree.next();
-            while (goingRange != null && goingRange.exclusiveEnd() <= lastRange.exclusiveEnd()) {
-                tailTree.remove();
-                goingRange = null;
-                if (tailTree.hasNext()) {
-                    goingRange = tailTree.next();
-                }
-            }
-        }
-        final ArrayList<Range> cloned = new ArrayList<>(ranges.size());
+        myRanges.remove(firstRange.position, lastRange.exclusiveEnd() - firstRange.position);
         for (final Range range : ranges) {
-            cloned.add(range.clone());
+            myRanges.insert(range.position, range.clone());
         }
-        myRanges.addAll(cloned);
+        changed(firstRange.position, lastRange.exclusiveEnd() - firstRange.position, lastRange.exclusiveEnd() - firstRange.position);
 
         return new long[] { firstRange.position, lastRange.exclusiveEnd() };
     }
@@ -993,17 +1735,32 @@ public final class BinaryContent {
      *
      * @return 2 elements long array, first one the start point (inclusive) of finished undo operation,
      *         second one the end point (exclusive). <code>null</code> if redo is not performed
+     * @throws IllegalStateException if a transaction is in progress
      */
     public long[] redo() {
         if (actions == null) {
             return null;
         }
+        if (transactionDepth > 0) {
+            throw new IllegalStateException("Cannot redo while a transaction is in progress.");
+        }
 
         final Entry entry = actions.redoAction();
         if (entry == null) {
             return null;
         }
 
+        final long[] result = redoEntry(entry);
+        if (journal != null) {
+            journal.redo();
+        }
+        updateDirty();
+        notifyListeners();
+
+        return result;
+    }
+
+    private long[] redoEntry(final Entry entry) {
         long[] result = null;
         final List<Range> ranges = entry.getRanges();
         if (entry.getActionType() == BinaryContentActionHistory.TYPE_DELETE) {
@@ -1014,12 +1771,139 @@ public final class BinaryContent {
             // 0 to size - 1: overwritten ranges, last one: overwriter range
             final int size = ranges.size();
             result = overwriteRanges(ranges.subList(size - 1, size));
+        } else if (entry.getActionType() == BinaryContentActionHistory.TYPE_TRANSACTION) {
+            for (final Entry child : entry.getEntries()) {
+                result = spanOf(result, redoEntry(child));
+            }
         }
-        notifyListeners();
 
         return result;
     }
 
+    /*
+     * Smallest span holding the modifications of several actions, within the content. Either span may
+     * be null
+     */
+    private long[] spanOf(final long[] span, final long[] next) {
+        final long[] first = span != null ? span : next;
+        final long[] second = next != null ? next : span;
+        if (first == null) {
+            return null;
+        }
+
+        final long end = Math.min(Math.max(first[1], second[1]), length());
+        return new long[] { Math.min(Math.min(first[0], second[0]), end), end };
+    }
+
+    /**
+     * Brings the content to its state after a number of actions of its history, as if undo or redo had
+     * been called until then, but in one step: it starts from the nearest checkpoint of the history,
+     * so going back to the start of a long history takes milliseconds. Action history should be on:
+     * setActionHistory()
+     *
+     * @param index number of actions done, from 0 (undo all) to {@link #getHistorySize()} (redo all)
+     * @return 2 elements long array, first one the start point (inclusive) of the modified bytes,
+     *         second one the end point (exclusive). <code>null</code> if nothing was done
+     * @throws IllegalStateException if a transaction is in progress
+     */
+    public long[] restoreHistory(final int index) {
+        if (actions == null) {
+            return null;
+        }
+        if (transactionDepth > 0) {
+            throw new IllegalStateException("Cannot restore the history while a transaction is in progress.");
+        }
+
+        actions.endAction();
+        if (index < 0 || index > actions.getSize()) {
+            throw new IllegalArgumentException("Parameter 'index' must be between 0 and " + actions.getSize() + ".");
+        }
+        final int current = actions.getIndex();
+        if (index == current) {
+            return null;
+        }
+
+        commitChanges();
+        int start = current;
+        long[] result = null;
+        final int checkpoint = actions.findCheckpoint(index);
+        final AnnotationTree currentAnnotations = annotations;
+        if (checkpoint >= 0 && Math.abs(checkpoint - index) < Math.abs(current - index)) {
+            // the swap and the replay from the checkpoint do not tell where the annotations go
+            annotations = null;
+            final long length = myRanges.length();
+            myRanges.assign(actions.getCheckpoint(checkpoint));
+            inflateRanges();
+            changed(0L, length, myRanges.length());
+            start = checkpoint;
+            // the bytes modified by the swapped actions, at the positions they had
+            for (int i = Math.min(current, checkpoint); i < Math.max(current, checkpoint); ++i) {
+                result = spanOf(result, actions.getSpan(i));
+            }
+        }
+        for (int i = start; i > index; --i) {
+            result = spanOf(result, undoEntry(actions.getEntry(i - 1)));
+        }
+        for (int i = start; i < index; ++i) {
+            result = spanOf(result, redoEntry(actions.getEntry(i)));
+        }
+        if (annotations != currentAnnotations) {
+            annotations = currentAnnotations;
+            // positions only, the swapped actions stay compressed
+            for (int i = current; i > index; --i) {
+                moveAnnotations(actions.peekEntry(i - 1), true);
+            }
+            for (int i = current; i < index; ++i) {
+                moveAnnotations(actions.peekEntry(i), false);
+            }
+        }
+
+        actions.setIndex(index);
+        if (journal != null) {
+            journal.restoreHistory(index);
+        }
+        updateDirty();
+        notifyListeners();
+
+        // within the final length
+        return result == null ? new long[] { 0L, 0L } : spanOf(result, null);
+    }
+
+    /*
+     * Moves the annotations as undoing or redoing an action does, without reading its bytes
+     */
+    private void moveAnnotations(final Entry entry, final boolean undo) {
+        if (entry.getActionType() == BinaryContentActionHistory.TYPE_TRANSACTION) {
+            final List<Entry> children = entry.getEntries();
+            for (int i = 0; i < children.size(); ++i) {
+                moveAnnotations(children.get(undo ? children.size() - 1 - i : i), undo);
+            }
+        } else if (entry.getActionType() != BinaryContentActionHistory.TYPE_OVERWRITE) {
+            final List<Range> ranges = entry.getRanges();
+            final long position = ranges.get(0).position;
+            final long length = ranges.get(ranges.size() - 1).exclusiveEnd() - position;
+            if (entry.getActionType() == BinaryContentActionHistory.TYPE_INSERT == undo) {
+                annotations.delete(position, length);
+            } else {
+                annotations.insert(position, length);
+            }
+        }
+    }
+
+    /**
+     * Removes an annotation
+     *
+     * @param annotation an annotation of this content, already removed ones are ignored
+     */
+    public void removeAnnotation(final Annotation annotation) {
+        if (annotation == null) {
+            throw new IllegalArgumentException("Parameter 'annotation' must not be null.");
+        }
+        if (annotation.tree != null && annotation.tree == annotations) {
+            annotations.remove(annotation);
+        }
+    }
+
     /**
      * Remove a listener to the list of listeners to be notified when there is a change in the content
      *
@@ -1031,6 +1915,461 @@ public final class BinaryContent {
         }
     }
 
+    /**
+     * Makes the history independent of spans of a file about to be overwritten. History ranges reading
+     * them are moved to memory, or to the scratch file when large.
+     *
+     * @param positions start of each span in ascending order, <code>null</code> for the whole file
+     */
+    private void detachHistory(final File file, final long[] positions, final long[] lengths) throws IOException {
+        if (actions == null) {
+            return;
+        }
+
+        final List<Range> ranges = new ArrayList<>();
+        actions.collectRanges(ranges);
+        for (final Range range : ranges) {
+            if (readsSpans(range, file, positions, lengths)) {
+                detachRange(range);
+            }
+        }
+        // the checkpoints may read the spans too. Those reading a replaced file are dropped, they would
+        // be a copy of all of it
+        final Set<Range> checkpointRanges = actions.getCheckpointRanges();
+        checkpointRanges.removeIf(range -> !readsSpans(range, file, positions, lengths));
+        if (positions == null) {
+            actions.dropCheckpoints(checkpointRanges);
+        } else {
+            final IdentityHashMap<Range, Range> replacements = new IdentityHashMap<>();
+            for (final Range range : checkpointRanges) {
+                final Range replacement = range.clone();
+                detachRange(replacement);
+                replacements.put(range, replacement);
+            }
+            actions.replaceCheckpointRanges(replacements);
+        }
+        actions.updateFootprint();
+    }
+
+    /*
+     * Moves the bytes of a range reading a file to memory, or to the scratch file when large
+     */
+    private void detachRange(final Range range) throws IOException {
+        if (range.length <= MAXIMUM_DETACHED_HEAP_LENGTH) {
+            final ByteBuffer buffer = ByteBuffer.allocate((int) range.length);
+            fillWithPartOfRange(buffer, range, 0L, (int) range.length);
+            buffer.flip();
+            range.source = new RangeSource.Heap(buffer);
+            range.dataOffset = 0L;
+            heapBytesAdded(range.source);
+        } else {
+            if (scratchFile == null) {
+                scratchFile = new ScratchFile();
+            }
+            range.dataOffset = scratchFile.append(((RangeSource.FileRegion) range.source).getChannel(), range.dataOffset, range.length);
+            range.source = scratchFile.getSource();
+        }
+    }
+
+    /*
+     * Points the ranges of the checkpoints reading moved buffers to their new sources, at the offset
+     * of the buffer in the new source if any
+     */
+    private void moveCheckpointRanges(final Map<RangeSource, RangeSource> moved, final Map<RangeSource, Long> offsets) {
+        if (moved.isEmpty()) {
+            return;
+        }
+
+        final IdentityHashMap<Range, Range> replacements = new IdentityHashMap<>();
+        for (final Range range : actions.getCheckpointRanges()) {
+            final RangeSource source = moved.get(range.source);
+            if (source != null) {
+                final Range replacement = range.clone();
+                replacement.source = source;
+                replacement.dataOffset += offsets.getOrDefault(range.source, 0L);
+                replacements.put(range, replacement);
+            }
+        }
+        actions.replaceCheckpointRanges(replacements);
+    }
+
+    /*
+     * The range reads the file, in one of the spans if any
+     */
+    private static boolean readsSpans(final Range range, final File file, final long[] positions, final long[] lengths) {
+        if (!(range.source instanceof final RangeSource.FileRegion region) || !region.file.equals(file)) {
+            return false;
+        }
+
+        return positions == null || overlaps(positions, lengths, range);
+    }
+
+    private static boolean overlaps(final long[] positions, final long[] lengths, final Range range) {
+        // first span ending after the start of the range
+        int index = Arrays.binarySearch(positions, range.dataOffset);
+        if (index < 0) {
+            index = Math.max(0, -index - 2);
+        }
+        if (positions[index] + lengths[index] <= range.dataOffset && ++index == positions.length) {
+            return false;
+        }
+
+        return positions[index] < range.dataOffset + range.length;
+    }
+
+    /*
+     * The journal goes on from the saved file, the actions before the save are not logged again
+     */
+    private void restartJournal(final File file) {
+        if (journal == null) {
+            return;
+        }
+
+        final File journalFile = journal.getFile();
+        journal.discard();
+        journal = null;
+        try {
+            journal = EditJournal.create(journalFile, file, length());
+        } catch (final IOException ex) {
+            Log.logError("Cannot write journal '{0}', unsaved modifications will not be recovered", new Object[] { journalFile.getAbsolutePath() }, ex);
+        }
+    }
+
+    /**
+     * Reads a file and replays the modifications logged in its journal, as started by
+     * {@link #startJournal(File, File)}. The content comes back as it was when the journal was last
+     * written, with the undo history of its modifications, and goes on logging into the journal.
+     *
+     * @param file        the file the content was read from or last saved to, not <code>null</code>
+     * @param journalFile the journal, not <code>null</code>
+     * @return the content, or <code>null</code> when the journal does not belong to the file as it is
+     * @throws IOException when the file or the journal cannot be read, or a file inserted into the
+     *                     content no longer exists
+     */
+    public static BinaryContent restore(final File file, final File journalFile) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+        if (journalFile == null) {
+            throw new IllegalArgumentException("Parameter 'journalFile' must not be null.");
+        }
+
+        final BinaryContent result = new BinaryContent(file);
+        boolean restored = false;
+        try {
+            result.setActionsHistory();
+            result.journal = EditJournal.replay(journalFile, file, result);
+            restored = result.journal != null;
+            if (restored && result.transactionDepth > 0) {
+                // the journal ends within a transaction, keep what was logged of it
+                result.commit();
+            }
+        } finally {
+            if (!restored) {
+                result.dispose();
+            }
+        }
+
+        return restored ? result : null;
+    }
+
+    private void rebase(final RangeSource.FileRegion fileSource) {
+        final long length = myRanges.length();
+        myRanges.remove(0L, length);
+        if (length > 0L) {
+            myRanges.insert(0L, new Range(0L, fileSource, length, false));
+        }
+        savedSource = fileSource;
+        savedLength = length;
+        dirty = false;
+        dirtySize = false;
+        if (actions != null) {
+            actions.setSaved();
+        }
+    }
+
+    /**
+     * Brings a sequence of bytes back to the bytes of the file opened or saved last, as one undo
+     * action. The sequence must still be where it was relative to the file bytes around it, as after
+     * overwrites: insertions or deletions inside it or between it and the file bytes it borders cannot
+     * be reverted. The bytes are not copied, the sequence reads the file again, so the cost does not
+     * depend on its length.
+     *
+     * @param position start of the sequence
+     * @param aLength  number of bytes, limited to the end of the content
+     * @return true: the bytes have been reverted, false: they were moved, there is no saved file or
+     *         the sequence is empty or outside the content
+     */
+    public boolean revertToSaved(final long position, final long aLength) {
+        if (savedSource == null || aLength < 1L || position < 0L || position >= length()) {
+            return false;
+        }
+        final long length = Math.min(aLength, length() - position);
+
+        // file offset minus content position of the file bytes in and around the sequence
+        commitChanges();
+        final long end = position + length;
+        long shift = 0L;
+        boolean shifted = false;
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(Math.max(0L, position - 1L)); cursor.hasRange() && cursor.getPosition() <= end; cursor.next()) {
+            final Range range = cursor.getRange();
+            if (range.source instanceof final RangeSource.FileRegion region && region.file.equals(savedSource.file)) {
+                final long rangeShift = range.dataOffset - cursor.getPosition();
+                if (shifted && rangeShift != shift) {
+                    return false;
+                }
+                shift = rangeShift;
+                shifted = true;
+            }
+        }
+        if (!shifted && dirtySize || position + shift < 0L || end + shift > savedLength) {
+            return false;
+        }
+
+        final Range range = new Range(position, savedSource, length, false);
+        range.dataOffset = position + shift;
+        overwriteInternal(range);
+        if (journal != null) {
+            journal.revertToSaved(position, length);
+        }
+
+        return true;
+    }
+
+    /**
+     * Writes back the bytes overwritten by an in-place save that was interrupted, for instance by a
+     * crash. Must be called before the file is opened.
+     *
+     * @param file the file, not <code>null</code>
+     * @return true: the file has been restored, false: there was no interrupted save
+     * @throws IOException when the file cannot be restored
+     * @see #saveInPlace(File, IProgressMonitor)
+     */
+    public static boolean rollBackInterruptedSave(final File file) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+
+        return SaveJournal.rollBack(file);
+    }
+
+    /**
+     * Saves this content into the file it was read from, writing only the modified bytes. This is only
+     * possible when the size has not changed, see {@link #isDirtySize()}, when no other content reads
+     * the file and no snapshot of this one reads the bytes to be overwritten. Those bytes are kept in a
+     * journal next to the file until the save is complete, an interrupted save is undone by
+     * {@link #rollBackInterruptedSave(File)}. Afterwards the content reads the saved file and is no
+     * longer dirty, its undo history stays valid.
+     *
+     * @param file    the file this content was read from, not <code>null</code>
+     * @param monitor receives the progress and may cancel the save, or <code>null</code>
+     * @return true: the file has been saved, false: it has to be saved as a whole with
+     *         {@link #save(File, IProgressMonitor)}, nothing has been done
+     * @throws IOException                when the file cannot be written, it is left unchanged
+     * @throws OperationCanceledException when the monitor has been cancelled, the file is unchanged
+     */
+    public boolean saveInPlace(final File file, final IProgressMonitor monitor) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+        if (dirtySize || !file.isFile() || file.length() != length()) {
+            return false;
+        }
+
+        if (actions != null) {
+            actions.endAction();
+        }
+        commitChanges();
+
+        // the file backs the unmodified ranges at their own position, anything else is written
+        final File canonicalFile = file.getCanonicalFile();
+        RangeSource.FileRegion fileSource = null;
+        long[] positions = new long[16];
+        long[] lengths = new long[16];
+        int spanCount = 0;
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            final Range range = cursor.getRange();
+            final long position = cursor.getPosition();
+            if (range.source instanceof final RangeSource.FileRegion region && region.file.equals(canonicalFile)) {
+                if (range.dataOffset != position) {
+                    return false; // moved bytes of the file itself, they would be overwritten before being read
+                }
+                fileSource = region;
+            } else if (spanCount > 0 && positions[spanCount - 1] + lengths[spanCount - 1] == position) {
+                lengths[spanCount - 1] += range.length;
+            } else {
+                if (spanCount == positions.length) {
+                    positions = Arrays.copyOf(positions, spanCount * 2);
+                    lengths = Arrays.copyOf(lengths, spanCount * 2);
+                }
+                positions[spanCount] = position;
+                lengths[spanCount] = range.length;
+                ++spanCount;
+            }
+        }
+
+        if (fileSource == null) {
+            return false; // nothing left of the file, replacing it is cheaper than a journal of all of it
+        }
+
+        if (spanCount > 0) {
+            positions = Arrays.copyOf(positions, spanCount);
+            lengths = Arrays.copyOf(lengths, spanCount);
+            if (isReadElsewhere(canonicalFile, positions, lengths)) {
+                return false; // a replaced file is still read as it was, an overwritten one is not
+            }
+            detachHistory(canonicalFile, positions, lengths);
+            BinaryContentWriter.writeInPlace(myRanges, positions, lengths, canonicalFile, monitor);
+            // the whole content is the file now
+            rebase(fileSource);
+        }
+        dirty = false;
+        if (actions != null) {
+            actions.setSaved();
+        }
+        restartJournal(canonicalFile);
+
+        return true;
+    }
+
+    /*
+     * Other contents, or snapshots of this one, read spans of the file about to be overwritten
+     */
+    private boolean isReadElsewhere(final File file, final long[] positions, final long[] lengths) {
+        // the leases of the file not held by this content belong to others
+        final List<Range> ranges = new ArrayList<>();
+        if (actions != null) {
+            actions.collectRanges(ranges);
+            ranges.addAll(actions.getCheckpointRanges());
+        }
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            ranges.add(cursor.getRange());
+        }
+        final Set<RangeSource.FileRegion> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (savedSource != null && savedSource.file.equals(file)) {
+            sources.add(savedSource);
+        }
+        for (final Range range : ranges) {
+            if (range.source instanceof final RangeSource.FileRegion region && region.file.equals(file)) {
+                sources.add(region);
+            }
+        }
+        if (FileChannelRegistry.getLeaseCount(file) > sources.size()) {
+            return true;
+        }
+
+        for (final Iterator<WeakReference<Snapshot>> iterator = snapshots.iterator(); iterator.hasNext();) {
+            final Snapshot snapshot = iterator.next().get();
+            if (snapshot == null) {
+                iterator.remove();
+                continue;
+            }
+            final RangeTree.Cursor snapshotCursor = snapshot.ranges.cursor();
+            for (snapshotCursor.seek(0L); snapshotCursor.hasRange(); snapshotCursor.next()) {
+                final Range range = snapshotCursor.getRange();
+                if (range.source instanceof final RangeSource.FileRegion region && region.file.equals(file) && overlaps(positions, lengths, range)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Saves this content into a file and continues with the saved file. Unlike
+     * {@link #get(File, long, long, IProgressMonitor)} the content then reads the file instead of the
+     * bytes it was built from, it is no longer dirty and its undo history stays valid. When possible
+     * only the modified bytes are written, see {@link #saveInPlace(File, IProgressMonitor)}.
+     *
+     * @param file    the file, not <code>null</code>. It may be one of the files backing this content
+     * @param monitor receives the progress and may cancel the save, or <code>null</code>
+     * @throws IOException                when the file cannot be written, it is left unchanged unless it
+     *                                    had to be written over, see {@link BinaryContentWriter}
+     * @throws OperationCanceledException when the monitor has been cancelled, the file is unchanged
+     *                                    unless it had to be written over
+     */
+    public void save(final File file, final IProgressMonitor monitor) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+        if (saveInPlace(file, monitor)) {
+            return;
+        }
+
+        if (actions != null) {
+            actions.endAction();
+        }
+        commitChanges();
+
+        // the history has to keep the bytes of the file being replaced
+        final File canonicalFile = file.getCanonicalFile();
+        detachHistory(canonicalFile, null, null);
+        BinaryContentWriter.write(myRanges, 0L, myRanges.length(), file, monitor);
+        rebase(RangeSource.FileRegion.open(canonicalFile));
+        restartJournal(canonicalFile);
+    }
+
+    private void scheduleCompaction() {
+        if (compactionPending || myRanges.size() <= nextCompactionSize || !RangeCompactor.isFragmented(myRanges)) {
+            return;
+        }
+
+        final List<RangeCompactor.Run> runs = RangeCompactor.collectRuns(myRanges);
+        if (runs.isEmpty()) {
+            nextCompactionSize = myRanges.size() + myRanges.size() / 4;
+            return;
+        }
+        compactionPending = true;
+        RangeCompactor.submit(() -> {
+            try {
+                RangeCompactor.merge(runs);
+            } finally {
+                compactedRuns = runs;
+            }
+        });
+    }
+
+    /**
+     * Changes the length of this content. Bytes are deleted at the end, or zero bytes appended.
+     *
+     * @param newLength the new length, not negative
+     */
+    public void setLength(final long newLength) {
+        if (newLength < 0L) {
+            throw new IllegalArgumentException("Parameter 'newLength' must not be negative, specified value is " + newLength);
+        }
+
+        final long length = length();
+        if (newLength > length) {
+            insertZeros(newLength - length, length);
+        } else if (newLength < length) {
+            delete(newLength, length - newLength);
+        }
+    }
+
+    /**
+     * Sets the maximum number of bytes held in memory by the ranges of this content and its undo
+     * history. Above it, the least used buffers are moved to a temporary file and read back from
+     * there.
+     *
+     * @param newHeapBudget the budget in bytes, not negative
+     */
+    public void setHeapBudget(final long newHeapBudget) {
+        if (newHeapBudget < 0L) {
+            throw new IllegalArgumentException("Parameter 'newHeapBudget' must not be negative, specified value is " + newHeapBudget);
+        }
+
+        heapBudget = newHeapBudget;
+        heapCheckLimit = newHeapBudget;
+        if (myRanges != null) {
+            enforceHeapBudget();
+        }
+    }
+
     /**
      * Sets action history on. After this call the content will remember past actions to undo and redo
      */
@@ -1038,47 +2377,109 @@ public final class BinaryContent {
         if (actions == null) {
             commitChanges();
             actions = new BinaryContentActionHistory(this);
+            actions.setLimits(undoMaximumBytes, undoMaximumEntries);
         }
     }
 
-    void shiftRemainingRanges(final long increment) {
-        if (increment == 0L) {
-            return;
-        }
+    /**
+     * Sets whether the undo history compresses large buffers of deleted and overwritten bytes, once
+     * the content no longer uses them. They are inflated again when their action is undone. Saves
+     * memory when editing big files, at the cost of some time after modifications.
+     *
+     * @param compression true: compress them
+     */
+    public void setUndoCompression(final boolean compression) {
+        undoCompression = compression;
+        compressedFootprint = 0L; // check again
+    }
 
-        while (tailTree.hasNext()) {
-            final Range currentRange = tailTree.next();
-            currentRange.position += increment;
-            // currentRange.dirty = true;
+    /**
+     * Starts logging the modifications of this content into a journal, so they can be recovered with
+     * {@link #restore(File, File)} if the application ends without saving them. Saving the content
+     * starts the journal over, disposing it deletes the journal.
+     *
+     * @param file        the file this content was read from or saved to, not <code>null</code>. The
+     *                    content must not have been modified since
+     * @param journalFile where to write the journal, not <code>null</code>. An existing journal is
+     *                    replaced
+     * @throws IOException when the journal cannot be written
+     */
+    public void startJournal(final File file, final File journalFile) throws IOException {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+        if (journalFile == null) {
+            throw new IllegalArgumentException("Parameter 'journalFile' must not be null.");
         }
+        if (dirty) {
+            throw new IllegalStateException("Content has been modified since it was read or saved");
+        }
+
+        stopJournal();
+        journal = EditJournal.create(journalFile, file, length());
     }
 
-    void splitAndShift(final long position, final long increment) {
-        initSubtreeTraversing(position, 0);
-        if (!tailTree.hasNext()) {
-            return;
+    /**
+     * Stops logging the modifications of this content and deletes the journal, if there is one
+     */
+    public void stopJournal() {
+        if (journal != null) {
+            journal.discard();
+            journal = null;
         }
+    }
 
-        final Range firstRange = tailTree.next();
-        Range secondRange = null;
-        if (firstRange.position < position) {
-            secondRange = firstRange.clone(); // will be tail part of
-            // firstRange
-            final long delta = position - firstRange.position;
-            firstRange.length = delta;
+    /**
+     * Bounds the undo history. When an action would exceed a limit, the oldest actions are forgotten.
+     * The last action can always be undone.
+     *
+     * @param maximumBytes   maximum number of bytes held in memory by the history, not negative
+     * @param maximumEntries maximum number of actions, at least 1
+     */
+    public void setUndoLimits(final long maximumBytes, final int maximumEntries) {
+        if (maximumBytes < 0L) {
+            throw new IllegalArgumentException("Parameter 'maximumBytes' must not be negative, specified value is " + maximumBytes);
+        }
+        if (maximumEntries < 1) {
+            throw new IllegalArgumentException("Parameter 'maximumEntries' must be at least 1, specified value is " + maximumEntries);
+        }
 
-            secondRange.length -= delta;
-            secondRange.dataOffset += delta;
-            secondRange.position = secondRange.position + delta + increment;
-            // secondRange.dirty |= increment != 0;
-        } else {
-            firstRange.position += increment;
-            // firstRange.dirty |= increment != 0;
+        undoMaximumBytes = maximumBytes;
+        undoMaximumEntries = maximumEntries;
+        if (actions != null) {
+            actions.setLimits(maximumBytes, maximumEntries);
         }
-        shiftRemainingRanges(increment);
-        if (secondRange != null) {
-            myRanges.add(secondRange);
+    }
+
+    /**
+     * Captures the current content in O(1) as a read only view for other threads, for instance to
+     * search it in the background while the user keeps editing. Ranges are shared with the content,
+     * only the bytes being typed in are copied. Must be called by the thread modifying the content.
+     *
+     * @return the snapshot, not <code>null</code>
+     */
+    public Snapshot snapshot() {
+        snapshots.removeIf(reference -> reference.get() == null);
+        final Snapshot result = new Snapshot(checkpoint(), version);
+        snapshots.add(new WeakReference<>(result));
+
+        return result;
+    }
+
+    /*
+     * Ranges of the current content, shared with it, including the bytes being typed in
+     */
+    RangeTree checkpoint() {
+        final RangeTree result = myRanges.snapshot();
+        if (myChanges != null) {
+            final Range changes = new Range(myChangesPosition, myChanges.copy(0, myChanges.size()), true);
+            if (!myChangesInserted) {
+                result.remove(myChangesPosition, changes.length);
+            }
+            result.insert(myChangesPosition, changes);
         }
+
+        return result;
     }
 
     /**
@@ -1087,8 +2488,9 @@ public final class BinaryContent {
     @Override
     public String toString() {
         final StringBuilder result = new StringBuilder("BinaryContent: length=").append(length()).append("}\n");
-        for (final Range range : myRanges) {
-            result.append(range.toString()).append('\n');
+        final RangeTree.Cursor cursor = myRanges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            result.append("Range {position:").append(cursor.getPosition()).append(", length:").append(cursor.getRange().length).append("}\n");
         }
         return result.toString();
     }
@@ -1098,11 +2500,15 @@ public final class BinaryContent {
      *
      * @return 2 elements long array, first one the start point (inclusive) of finished undo operation,
      *         second one the end point (exclusive). <code>null</code> if undo is not performed
+     * @throws IllegalStateException if a transaction is in progress
      */
     public long[] undo() {
         if (actions == null) {
             return null;
         }
+        if (transactionDepth > 0) {
+            throw new IllegalStateException("Cannot undo while a transaction is in progress.");
+        }
 
         final Entry entry = actions.undoAction();
         if (entry == null) {
@@ -1110,6 +2516,25 @@ public final class BinaryContent {
         }
 
         commitChanges();
+        final long[] result = undoEntry(entry);
+        if (journal != null) {
+            journal.undo();
+        }
+        updateDirty();
+        notifyListeners();
+
+        return result;
+    }
+
+    /*
+     * After moving in the history: clean only when back to the state saved last
+     */
+    private void updateDirty() {
+        dirty = !actions.isSaved();
+        dirtySize = dirty && (length() != savedLength || actions.isResizedSinceSave());
+    }
+
+    private long[] undoEntry(final Entry entry) {
         long[] result = null;
         final List<Range> ranges = entry.getRanges();
         if (entry.getActionType() == BinaryContentActionHistory.TYPE_DELETE) {
@@ -1119,8 +2544,12 @@ public final class BinaryContent {
         } else if (entry.getActionType() == BinaryContentActionHistory.TYPE_OVERWRITE) {
             // 0 to size - 1: overwritten ranges, last one: overwriter range
             result = overwriteRanges(ranges.subList(0, ranges.size() - 1));
+        } else if (entry.getActionType() == BinaryContentActionHistory.TYPE_TRANSACTION) {
+            final List<Entry> children = entry.getEntries();
+            for (int i = children.size() - 1; i >= 0; --i) {
+                result = spanOf(result, undoEntry(children.get(i)));
+            }
         }
-        notifyListeners();
 
         return result;
     }
@@ -1139,12 +2568,12 @@ public final class BinaryContent {
             }
             if (insert == myChangesInserted && position >= lowerLimit && position <= upperLimit) { // reuse
                 if (insert) {
-                    myChanges.add((int) (position - myChangesPosition), 0);
+                    myChanges.insert((int) (position - myChangesPosition), (byte) 0);
                 } else {
                     result = getRangeAt(position);
                     if (myChangesPosition > position) {
                         myChangesPosition = position;
-                        myChanges.add(0, getFromRanges(position));
+                        myChanges.insert(0, getFromRanges(position));
                     } else if (myChangesPosition + myChanges.size() <= position) {
                         myChanges.add(getFromRanges(position));
                     }
@@ -1155,7 +2584,8 @@ public final class BinaryContent {
             commitChanges();
 
         }
-        myChanges = new ArrayList<>();
+        myChanges = changesBuffer;
+        myChanges.clear();
         myChanges.add(getFromRanges(position));
         myChangesInserted = insert;
         myChangesPosition = position;
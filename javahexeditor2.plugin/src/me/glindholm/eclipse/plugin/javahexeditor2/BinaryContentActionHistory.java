@@ -20,15 +20,15 @@
  */
 package me.glindholm.eclipse.plugin.javahexeditor2;
 
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.Range;
-import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
 
 /**
  * Keeps track of actions performed on a BinaryContent so they can be undone and redone. Actions can
@@ -36,6 +36,17 @@ import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
  * block action if they are of the same type, their data is contiguous, and are performed with a
  * time difference lower than {@link #MERGE_TIME}. Block actions are sequences of Range. Single
  * actions are one range of size 1.
+ * <P>
+ * The history is bounded by a number of actions and by the bytes its ranges read from memory
+ * buffers, the oldest actions are forgotten first. Buffers only used by the history may be
+ * compressed by the content, they are inflated when their action is undone or redone.
+ * <P>
+ * The actions ended within a transaction are kept together as the children of one entry of type
+ * {@link #TYPE_TRANSACTION}, which is undone and redone as a whole.
+ * <P>
+ * Every {@link #CHECKPOINT_INTERVAL} actions, the ranges of the content before the action are kept
+ * with it as a snapshot of the persistent range tree. Going back or forth many actions starts from
+ * the nearest checkpoint, so at most half an interval of actions has to be replayed.
  *
  * @author Jordi Bergenthal
  */
@@ -44,8 +55,15 @@ final class BinaryContentActionHistory {
     public final static class Entry {
         private final Integer actionType;
         private final List<Range> ranges;
+        private final List<Entry> entries;
+        long footprint; // bytes of memory buffers read by the ranges
+        RangeTree checkpoint; // ranges of the content before the action, null when not kept
 
         public Entry(final Integer actionType, final List<Range> ranges) {
+            this(actionType, ranges, null);
+        }
+
+        Entry(final Integer actionType, final List<Range> ranges, final List<Entry> entries) {
             if (actionType == null) {
                 throw new IllegalArgumentException("Parameter 'actionType' must not be null.");
             }
@@ -54,15 +72,29 @@ final class BinaryContentActionHistory {
             }
             this.actionType = actionType;
             this.ranges = ranges;
+            this.entries = entries;
         }
 
         public Integer getActionType() {
             return actionType;
         }
 
+        /**
+         * @return the ranges of the entry. For a transaction the ranges of all its actions, one action
+         *         after the other: they are not ordered by position, use {@link #getEntries()} for
+         *         positions
+         */
         public List<Range> getRanges() {
             return ranges;
         }
+
+        /**
+         * @return the actions of a transaction, in the order they were performed, <code>null</code>
+         *         for other entries
+         */
+        public List<Entry> getEntries() {
+            return entries;
+        }
     }
 
     /**
@@ -71,16 +103,23 @@ final class BinaryContentActionHistory {
      */
     static final int MERGE_TIME = 1500; // milliseconds
 
+    /**
+     * Number of actions between two checkpoints of the content
+     */
+    static final int CHECKPOINT_INTERVAL = 32;
+
     /**
      * Action types
      */
     static final Integer TYPE_DELETE = 0;
     static final Integer TYPE_INSERT = 1;
     static final Integer TYPE_OVERWRITE = 2;
+    static final Integer TYPE_TRANSACTION = 3;
 
     private final BinaryContent content;
     private Range myLastActionRange;
-    private List<Integer> deletedList;
+    private ByteGapBuffer deletedList; // single deleted bytes being merged, null when there are none
+    private final ByteGapBuffer deletedBuffer = new ByteGapBuffer();
     private boolean isBackspace;
     private final List<Entry> myActions;
     private int myActionsIndex;
@@ -93,6 +132,14 @@ final class BinaryContentActionHistory {
     private long newRangeLength = -1L;
     private long newRangePosition = -1L;
 
+    private long maximumBytes = Long.MAX_VALUE;
+    private int maximumEntries = Integer.MAX_VALUE;
+    private long footprint; // bytes of memory buffers read by the ranges of all entries
+    private List<Entry> transactionEntries; // actions of the transaction in progress, null when there is none
+    private RangeTree pendingCheckpoint; // ranges before the action in progress, null when not kept
+    private int uncheckpointedActions = CHECKPOINT_INTERVAL; // actions started since the last checkpoint
+    private int savedIndex; // actions done when the content was saved, -1 when that state is no longer in the history
+
     /**
      * Create new action history storage object
      *
@@ -104,6 +151,7 @@ final class BinaryContentActionHistory {
         }
         this.content = content;
         myActions = new ArrayList<>();
+        savedIndex = content.isDirty() ? -1 : 0;
     }
 
     private long actionExclusiveEnd() {
@@ -134,37 +182,43 @@ final class BinaryContentActionHistory {
     }
 
     /**
-     * Adds a list of deleted integers to the current action. If possible, merges integerList with the
-     * list in the previous call to this method.
+     * Adds a single deleted byte to the current action. If possible, merges it with the bytes in the
+     * previous calls to this method.
      *
-     * @param position    starting delete point
-     * @param integerList deleted integers
-     * @param isSingle    used when integerList.size == 1 to tell whether it is a single or a piece of a
-     *                    block delete. When integerList.size() > 1 (a block delete for sure) isSingle
-     *                    is ignored.
-     */
-    public void addDeleted(final long position, final List<Integer> integerList, final boolean isSingle) {
-        if (integerList.size() > 1L || !isSingle) { // block delete
-            final Range range = newRangeFromIntegerList(position, integerList);
-            final List<Range> oneElementList = new ArrayList<>(1);
-            oneElementList.add(range);
-            addLostRanges(oneElementList);
-        } else {
-            addLostByte(position, integerList.get(0));
-        }
+     * @param position delete point
+     * @param value    deleted byte
+     */
+    public void addDeleted(final long position, final int value) {
+        addLostByte(position, value);
+        myPreviousTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a block of deleted bytes to the current action.
+     *
+     * @param position starting delete point
+     * @param deleted  deleted bytes. The buffer is not copied internally
+     */
+    public void addDeleted(final long position, final ByteBuffer deleted) {
+        final Range range = new Range(position, deleted, true);
+        content.heapBytesAdded(range.source);
+        final List<Range> oneElementList = new ArrayList<>(1);
+        oneElementList.add(range);
+        addLostRanges(oneElementList);
         myPreviousTime = System.currentTimeMillis();
     }
 
-    public void addLostByte(final long position, final Integer integer) {
+    public void addLostByte(final long position, final int value) {
         if (deletedList == null) {
-            deletedList = new ArrayList<>();
+            deletedList = deletedBuffer;
+            deletedList.clear();
         }
 
         updateNewRange(position);
         if (isBackspace) {
-            deletedList.add(0, integer);
+            deletedList.insert(0, (byte) value);
         } else { // delete(Del) or overwite
-            deletedList.add(integer);
+            deletedList.add((byte) value);
         }
         myPreviousTime = System.currentTimeMillis();
     }
@@ -241,9 +295,11 @@ final class BinaryContentActionHistory {
             newRangeToCurrentAction();
         }
         final Entry entry = new Entry(myCurrentActionType, myCurrentActionRanges);
-        myActions.subList(myActionsIndex, myActions.size()).clear();
-        myActions.add(entry);
-        myActionsIndex = myActions.size();
+        if (transactionEntries != null) {
+            transactionEntries.add(entry);
+        } else {
+            addEntry(entry);
+        }
 
         isBackspace = false;
         myCurrentActionType = null;
@@ -254,6 +310,312 @@ final class BinaryContentActionHistory {
         myMergedSinglesTop = -1L;
     }
 
+    private void addEntry(final Entry entry) {
+        if (savedIndex > myActionsIndex) {
+            savedIndex = -1; // the saved state was undone and is replaced
+        }
+        final List<Entry> redoEntries = myActions.subList(myActionsIndex, myActions.size());
+        for (final Entry redoEntry : redoEntries) {
+            footprint -= redoEntry.footprint;
+        }
+        redoEntries.clear();
+        entry.footprint = getFootprint(entry.getRanges());
+        footprint += entry.footprint;
+        entry.checkpoint = pendingCheckpoint;
+        pendingCheckpoint = null;
+        myActions.add(entry);
+        myActionsIndex = myActions.size();
+        trim();
+    }
+
+    /*
+     * Called when the content is as it was before the next action
+     */
+    private void checkpoint() {
+        if (transactionEntries != null) {
+            return;
+        }
+        if (pendingCheckpoint == null && ++uncheckpointedActions >= CHECKPOINT_INTERVAL) {
+            pendingCheckpoint = content.checkpoint();
+            uncheckpointedActions = 0;
+        }
+    }
+
+    /**
+     * Gets the ranges of all checkpoints. Checkpoints share most of their ranges, each one is in the
+     * result once.
+     *
+     * @return the ranges, compared by identity
+     */
+    Set<Range> getCheckpointRanges() {
+        final Set<Range> result = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (final Entry entry : myActions) {
+            if (entry.checkpoint != null) {
+                entry.checkpoint.forEach(result::add);
+            }
+        }
+        if (pendingCheckpoint != null) {
+            pendingCheckpoint.forEach(result::add);
+        }
+
+        return result;
+    }
+
+    /**
+     * Drops the checkpoints holding one of some ranges, when keeping them would cost more than
+     * replaying the actions
+     *
+     * @param ranges the ranges, compared by identity
+     */
+    void dropCheckpoints(final Set<Range> ranges) {
+        if (ranges.isEmpty()) {
+            return;
+        }
+
+        for (final Entry entry : myActions) {
+            if (entry.checkpoint != null && holdsAny(entry.checkpoint, ranges)) {
+                entry.checkpoint = null;
+            }
+        }
+        if (pendingCheckpoint != null && holdsAny(pendingCheckpoint, ranges)) {
+            pendingCheckpoint = null;
+        }
+    }
+
+    private static boolean holdsAny(final RangeTree tree, final Set<Range> ranges) {
+        for (final Range range : tree) {
+            if (ranges.contains(range)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Replaces ranges of all checkpoints, after the buffers of the history have been moved or
+     * compressed. The checkpoints would keep the previous buffers otherwise.
+     *
+     * @param replacements the new range of each range to be replaced, same length
+     */
+    void replaceCheckpointRanges(final Map<Range, Range> replacements) {
+        if (replacements.isEmpty()) {
+            return;
+        }
+
+        for (final Entry entry : myActions) {
+            replaceRanges(entry.checkpoint, replacements);
+        }
+        replaceRanges(pendingCheckpoint, replacements);
+    }
+
+    private static void replaceRanges(final RangeTree tree, final Map<Range, Range> replacements) {
+        if (tree == null) {
+            return;
+        }
+
+        // not while the cursor walks the tree. The replacements stay shared by the checkpoints
+        final List<Long> positions = new ArrayList<>();
+        final List<Range> ranges = new ArrayList<>();
+        final RangeTree.Cursor cursor = tree.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            final Range replacement = replacements.get(cursor.getRange());
+            if (replacement != null) {
+                positions.add(cursor.getPosition());
+                ranges.add(replacement);
+            }
+        }
+        for (int i = 0; i < positions.size(); ++i) {
+            tree.replace(positions.get(i), ranges.get(i));
+        }
+    }
+
+    /**
+     * Finds the checkpoint nearest to a history index
+     *
+     * @param index number of actions done, 0 to the number of entries
+     * @return index of the entry holding the checkpoint, -1 if there is none
+     */
+    int findCheckpoint(final int index) {
+        for (int distance = 0; distance <= myActions.size(); ++distance) {
+            if (index - distance >= 0 && index - distance < myActions.size() && myActions.get(index - distance).checkpoint != null) {
+                return index - distance;
+            }
+            if (index + distance < myActions.size() && myActions.get(index + distance).checkpoint != null) {
+                return index + distance;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Gets an entry of the history to be undone or redone, with its buffers in memory
+     *
+     * @param index index of the entry
+     * @return the entry
+     */
+    Entry getEntry(final int index) {
+        final Entry entry = myActions.get(index);
+        inflate(entry);
+
+        return entry;
+    }
+
+    /**
+     * Gets an entry of the history as it is, its buffers may be compressed. Enough for the positions
+     * and lengths of its ranges.
+     *
+     * @param index index of the entry
+     * @return the entry
+     */
+    Entry peekEntry(final int index) {
+        return myActions.get(index);
+    }
+
+    /**
+     * @param index index of an entry
+     * @return the ranges of the content before the entry, <code>null</code> if they were not kept
+     */
+    RangeTree getCheckpoint(final int index) {
+        return myActions.get(index).checkpoint;
+    }
+
+    /**
+     * @return number of actions done, the action in progress included
+     */
+    int getIndex() {
+        return myCurrentActionRanges == null ? myActionsIndex : myActionsIndex + 1;
+    }
+
+    /**
+     * @param index index of an entry
+     * @return 2 elements long array, the smallest span holding the ranges of the entry and of all the
+     *         actions of a transaction, at the positions each action had. <code>null</code> if the
+     *         entry has no ranges. The buffers are not brought into memory
+     */
+    long[] getSpan(final int index) {
+        return getSpan(myActions.get(index));
+    }
+
+    private static long[] getSpan(final Entry entry) {
+        long[] result = null;
+        if (entry.getActionType() == TYPE_TRANSACTION) {
+            for (final Entry child : entry.getEntries()) {
+                final long[] span = getSpan(child);
+                if (result == null) {
+                    result = span;
+                } else if (span != null) {
+                    result[0] = Math.min(result[0], span[0]);
+                    result[1] = Math.max(result[1], span[1]);
+                }
+            }
+        } else if (!entry.getRanges().isEmpty()) {
+            final List<Range> ranges = entry.getRanges();
+            result = new long[] { ranges.get(0).position, ranges.get(ranges.size() - 1).exclusiveEnd() };
+        }
+
+        return result;
+    }
+
+    /**
+     * @return number of actions that can be undone or redone, the action in progress included
+     */
+    int getSize() {
+        return myCurrentActionRanges == null ? myActions.size() : myActionsIndex + 1;
+    }
+
+    /**
+     * Tells whether the content is in the state it was saved in, as far as the actions done tell
+     *
+     * @return true: the actions done are those done when the content was saved
+     */
+    boolean isSaved() {
+        return myCurrentActionRanges == null && myActionsIndex == savedIndex;
+    }
+
+    /**
+     * Tells whether the actions between the saved state and the current one insert or delete bytes
+     *
+     * @return true: they do, or the saved state is no longer in the history
+     */
+    boolean isResizedSinceSave() {
+        if (savedIndex < 0) {
+            return true;
+        }
+        for (int i = Math.min(savedIndex, myActionsIndex); i < Math.max(savedIndex, myActionsIndex); ++i) {
+            if (isResizing(myActions.get(i))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isResizing(final Entry entry) {
+        if (entry.getActionType() == TYPE_TRANSACTION) {
+            for (final Entry child : entry.getEntries()) {
+                if (isResizing(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return entry.getActionType() != TYPE_OVERWRITE;
+    }
+
+    /**
+     * Records the actions done as those of the saved content, ending the action in progress
+     */
+    void setSaved() {
+        endAction();
+        savedIndex = myActionsIndex;
+    }
+
+    /**
+     * Sets the number of actions done, after the content has been brought to that state
+     *
+     * @param index number of actions done, 0 to the number of entries
+     */
+    void setIndex(final int index) {
+        endAction();
+        pendingCheckpoint = null;
+        myActionsIndex = index;
+    }
+
+    /**
+     * Starts a transaction. The actions ended until {@link #commitTransaction()} become one entry.
+     */
+    void beginTransaction() {
+        endAction();
+        checkpoint();
+        transactionEntries = new ArrayList<>();
+    }
+
+    /**
+     * Ends the transaction in progress. A transaction with a single action is kept as that action, an
+     * empty transaction leaves no entry.
+     */
+    void commitTransaction() {
+        endAction();
+        final List<Entry> entries = transactionEntries;
+        transactionEntries = null;
+        if (entries == null || entries.isEmpty()) {
+            return;
+        }
+        if (entries.size() == 1) {
+            addEntry(entries.get(0));
+        } else {
+            // all ranges, for the memory accounting and disposal, positions are those of the entries
+            final List<Range> ranges = new ArrayList<>();
+            for (final Entry entry : entries) {
+                ranges.addAll(entry.getRanges());
+            }
+            addEntry(new Entry(TYPE_TRANSACTION, ranges, entries));
+        }
+    }
+
     /**
      * User event: single/block delete/insert/overwrite. Called before any change has been done
      *
@@ -276,43 +638,124 @@ final class BinaryContentActionHistory {
     }
 
     /**
-     * Closes all files for termination
+     * Adds all ranges of the history to a list, oldest actions first
      *
-     * @see Object#finalize()
+     * @param result where to add the ranges
      */
-    @Override
-    protected void finalize() {
-        dispose();
+    void collectRanges(final List<Range> result) {
+        for (final Entry entry : myActions) {
+            result.addAll(entry.getRanges());
+        }
+        if (transactionEntries != null) {
+            for (final Entry entry : transactionEntries) {
+                result.addAll(entry.getRanges());
+            }
+        }
+        if (myCurrentActionRanges != null) {
+            result.addAll(myCurrentActionRanges);
+        }
     }
 
-    private void dispose() {
+    /**
+     * Closes all files for termination. Files of discarded actions are closed as soon as the actions
+     * are no longer reachable.
+     */
+    void dispose() {
         if (myActions != null) {
             for (final Entry entry : myActions) {
                 final List<Range> ranges = entry.getRanges();
                 disposeRanges(ranges);
             }
         }
+        if (transactionEntries != null) {
+            for (final Entry entry : transactionEntries) {
+                disposeRanges(entry.getRanges());
+            }
+        }
         disposeRanges(myCurrentActionRanges);
     }
 
+    /**
+     * @return number of actions that can be undone or redone
+     */
+    int getEntryCount() {
+        return myActions.size();
+    }
+
+    /**
+     * @return number of bytes of memory buffers read by the actions that can be undone or redone,
+     *         including the one in progress. Buffers shared by several ranges count for each of them
+     */
+    long getFootprint() {
+        long result = myCurrentActionRanges == null ? footprint : footprint + getFootprint(myCurrentActionRanges);
+        if (transactionEntries != null) {
+            for (final Entry entry : transactionEntries) {
+                result += getFootprint(entry.getRanges());
+            }
+        }
+
+        return result;
+    }
+
+    private static long getFootprint(final List<Range> ranges) {
+        long result = 0L;
+        for (final Range range : ranges) {
+            if (range.source instanceof RangeSource.Heap || range.source instanceof RangeSource.Direct) {
+                result += range.length;
+            } else if (range.source instanceof final RangeSource.Deflated deflated) {
+                result += deflated.getCompressedLength() * range.length / deflated.getLength();
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Compressed ranges are needed in memory when the action is undone or redone
+     */
+    private void inflate(final Entry entry) {
+        final IdentityHashMap<RangeSource.Deflated, RangeSource.Heap> inflated = new IdentityHashMap<>();
+        for (final Range range : entry.getRanges()) {
+            if (range.source instanceof final RangeSource.Deflated deflated) {
+                range.source = inflated.computeIfAbsent(deflated, key -> {
+                    final RangeSource.Heap heap = new RangeSource.Heap(key.inflate());
+                    content.heapBytesAdded(heap);
+                    return heap;
+                });
+            }
+        }
+        if (!inflated.isEmpty()) {
+            footprint -= entry.footprint;
+            entry.footprint = getFootprint(entry.getRanges());
+            footprint += entry.footprint;
+        }
+    }
+
     private void disposeRanges(final List<Range> ranges) {
         if (ranges == null) {
             return;
         }
 
         for (final Range range : ranges) {
-            if (range.data instanceof final RandomAccessFile randomAccessFile) {
-                try {
-                    randomAccessFile.close();
-                } catch (final IOException ex) {
-                    Log.logError("Cannot close random access file '{0}'", new Object[] { range.file.getAbsolutePath() }, ex);
-                }
+            if (range.source instanceof final RangeSource.FileRegion region) {
+                region.close();
             }
         }
     }
 
+    /*
+     * Ranges can only be merged when their data is contiguous, ranges of the same file or buffer may
+     * come from anywhere in it
+     */
+    private static boolean isContiguous(final Range last, final Range range) {
+        if (last.compareTo(range) > 0) {
+            return range.dataOffset + range.length == last.dataOffset;
+        }
+        return last.dataOffset + last.length == range.dataOffset;
+    }
+
     private void mergeRange(final Range range) {
-        if (myLastActionRange == null || myLastActionRange.data != range.data) {
+        if (myLastActionRange == null || myLastActionRange.source != range.source || !isContiguous(myLastActionRange, range)) {
             newRangeToCurrentAction();
             addRangeToCurrentAction(range);
         } else {
@@ -333,22 +776,6 @@ final class BinaryContentActionHistory {
         }
     }
 
-    private ByteBuffer newBufferFromIntegerList(final List<Integer> integerList) {
-        final ByteBuffer store = ByteBuffer.allocate(integerList.size());
-        for (final Iterator<Integer> iterator = integerList.iterator(); iterator.hasNext();) {
-            store.put(iterator.next().byteValue());
-        }
-        store.position(0);
-
-        return store;
-    }
-
-    private Range newRangeFromIntegerList(final long position, final List<Integer> integerList) {
-        final ByteBuffer store = newBufferFromIntegerList(integerList);
-
-        return new Range(position, store, true);
-    }
-
     private void newRangeToCurrentAction() {
         Range newRange = null;
         if (myCurrentActionType == TYPE_DELETE) {
@@ -356,8 +783,9 @@ final class BinaryContentActionHistory {
                 return;
             }
 
-            newRange = newRangeFromIntegerList(newRangePosition, deletedList);
+            newRange = new Range(newRangePosition, deletedList.commit(), true);
             deletedList = null;
+            content.heapBytesAdded(newRange.source);
         } else {
             // myCurrentActionType == TYPE_INSERT || myCurrentActionType ==
             // TYPE_OVERWRITE
@@ -382,7 +810,24 @@ final class BinaryContentActionHistory {
         if (!canRedo()) {
             return null;
         }
-        return myActions.get(myActionsIndex++);
+        final Entry entry = myActions.get(myActionsIndex++);
+        pendingCheckpoint = null;
+        inflate(entry);
+
+        return entry;
+    }
+
+    /**
+     * Sets the bounds of the history. The oldest actions are forgotten until the history is within
+     * them, the last action can always be undone.
+     *
+     * @param maximumBytes   maximum number of bytes held in memory
+     * @param maximumEntries maximum number of actions
+     */
+    void setLimits(final long maximumBytes, final int maximumEntries) {
+        this.maximumBytes = maximumBytes;
+        this.maximumEntries = maximumEntries;
+        trim();
     }
 
     /**
@@ -393,11 +838,39 @@ final class BinaryContentActionHistory {
      */
     private void startAction(final Integer type, final boolean isSingle) {
         endAction();
+        checkpoint();
+        content.actionStarted();
         myCurrentActionRanges = new ArrayList<>();
         myCurrentActionType = type;
         myMergingSingles = isSingle;
     }
 
+    private void trim() {
+        // files of forgotten actions are released when they are no longer reachable, the content may share them
+        while (myActionsIndex > 1 && (myActions.size() > maximumEntries || footprint > maximumBytes)) {
+            final Entry oldest = myActions.remove(0);
+            footprint -= oldest.footprint;
+            --myActionsIndex;
+            savedIndex = savedIndex > 0 ? savedIndex - 1 : -1;
+        }
+    }
+
+    /**
+     * Tells whether a sequence of bytes overlaps or touches the single actions still being merged,
+     * which pick up their range from the content when they end.
+     *
+     * @param position start of the sequence
+     * @param length   number of bytes
+     * @return true: the current action may still refer to the ranges there
+     */
+    boolean touchesCurrentAction(final long position, final long length) {
+        if (myCurrentActionRanges == null || !myMergingSingles) {
+            return false;
+        }
+
+        return position <= actionExclusiveEnd() && position + length >= actionPosition();
+    }
+
     /**
      * Undoes last action on BinaryContent.
      *
@@ -410,8 +883,22 @@ final class BinaryContentActionHistory {
 
         endAction();
         --myActionsIndex;
+        pendingCheckpoint = null;
+        final Entry entry = myActions.get(myActionsIndex);
+        inflate(entry);
+
+        return entry;
+    }
 
-        return myActions.get(myActionsIndex);
+    /**
+     * Counts again the bytes held in memory, after ranges have been moved to or from memory
+     */
+    void updateFootprint() {
+        footprint = 0L;
+        for (final Entry entry : myActions) {
+            entry.footprint = getFootprint(entry.getRanges());
+            footprint += entry.footprint;
+        }
     }
 
     private void updateNewRange(final long position) {
@@ -254,16 +254,6 @@ final class BinaryContentClipboard {
         }
     }
 
-    /**
-     * Dispose system clipboard resources
-     *
-     * @see Object#finalize()
-     */
-    @Override
-    protected void finalize() throws IOException {
-        dispose();
-    }
-
     /**
      * Paste the clipboard contents into a BinaryContent
      *
@@ -330,7 +320,7 @@ final class BinaryContentClipboard {
         try {
             if (length <= maxClipboardDataInMemory) {
                 final byte[] byteArrayData = new byte[(int) length];
-                content.get(ByteBuffer.wrap(byteArrayData), start);
+                content.cursor(start).read(ByteBuffer.wrap(byteArrayData));
                 final String textData = new String(byteArrayData);
                 transfers = new Transfer[] { MemoryByteArrayTransfer.getInstance(), TextTransfer.getInstance() };
                 data = new Object[] { byteArrayData, textData };
@@ -23,6 +23,15 @@ package me.glindholm.eclipse.plugin.javahexeditor2;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -31,6 +40,13 @@ import java.util.regex.Pattern;
  * position in the file. It is possible to get subsequent finds. The search is either binary or text
  * based. Text based search uses standard Java Unicode (all of big and little endian, odd and even
  * address) plus ASCII when the literal falls within ASCII char limits.
+ * <P>
+ * Finds in a snapshot of a large content run in parallel: the content is cut into segments that
+ * are searched by the threads of the common fork-join pool, nearest segments first. A match ends the
+ * search of all segments farther away, and the nearest match is returned as with a single thread.
+ * <P>
+ * All matches of a range can be found at once into a {@link MatchIndex}, which the user interface
+ * counts and browses while the find goes on.
  *
  * @author Jordi Bergenthal
  */
@@ -71,25 +87,34 @@ public final class BinaryContentFinder {
 
     }
 
-    public static final int MAP_SIZE = 64 * 1024;
-    // a search string of 2K should be enough
+    public static final int MAP_SIZE = 64 * 1024; // bytes searched at a time, more for long literals
+    // longest selection proposed as search string, longer ones can be searched too
     public static final int MAX_SEQUENCE_SIZE = 2 * 1024;
+    // bytes searched by one thread at a time in parallel finds
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
 
     private long bufferPosition = -1L;
     private ByteBuffer byteBuffer;
-    private int currentPartFound = -1; // relative positions
-    private boolean currentPartFoundIsUnicode;
     private long currentPosition = 0L; // absolute value, start of forward
     // finds,
     // end(exclusive) of backward finds
     private byte[] myByteFindSequence;
+    private byte[] myByteFindMask; // bits compared in each byte of myByteFindSequence, null for all of them
+    private BytePattern myBytePattern; // of myByteFindSequence, with its mask and the case sensitiveness
     private boolean myCaseSensitive = true;
     private final BinaryContent myContent;
     private boolean myDirectionForward = true;
     private CharSequence myLiteral;
     private int myLiteralByteLength = -1;
     private Pattern myPattern;
-    private boolean stopSearching;
+    private BinaryContent.Snapshot mySnapshot;
+    private int partSize = MAP_SIZE; // holds at least two literals, so parts overlap by less than half
+    private ContentCursor myCursor; // reads the snapshot, or the content when there is none
+    private boolean parallel = true;
+    private volatile long parallelSearchPosition = -1L; // of the farthest segment started, -1 when not searching in parallel
+    private volatile boolean stopSearching;
+    private long[] partMatches = new long[64]; // of findAll() in a part, index << 1 plus 1 for Unicode
+    private int partMatchCount;
 
     /**
      * Create a finder object for a sequence of characters; uses Unicode and ASCII traversing
@@ -112,86 +137,87 @@ public final class BinaryContentFinder {
      * @param aContent provider to be traversed
      */
     public BinaryContentFinder(final byte[] sequence, final BinaryContent aContent) {
+        this(sequence, null, aContent);
+    }
+
+    /**
+     * Create a finder object for a sequence of bytes with wildcard bits, as parsed by
+     * {@link me.glindholm.eclipse.plugin.javahexeditor2.common.ByteArrayUtility#parsePattern(String)}
+     *
+     * @param sequence the byte sequence to find
+     * @param mask     the bits compared in each byte of the sequence, null to compare all of them
+     * @param aContent provider to be traversed
+     */
+    public BinaryContentFinder(final byte[] sequence, final byte[] mask, final BinaryContent aContent) {
+        if (mask != null && mask.length != sequence.length) {
+            throw new IllegalArgumentException("Parameter 'mask' must have the length of parameter 'sequence', specified length is " + mask.length);
+        }
         initSearchHex(sequence);
+        myByteFindMask = mask;
         myContent = aContent;
         bufferPosition = 0L;
         currentPosition = 0L;
     }
 
-    private void findAllMatches() {
-        currentPartFound = findHexAsciiMatchInPart();
-        final int currentPartFoundUnicode = findUnicodeMatchInPart();
-        currentPartFoundIsUnicode = false;
-
-        if (currentPartFoundUnicode >= 0 && (currentPartFound < 0 || myDirectionForward && currentPartFound > currentPartFoundUnicode
-                || !myDirectionForward && currentPartFound < currentPartFoundUnicode)) {
-            currentPartFound = currentPartFoundUnicode;
-            currentPartFoundIsUnicode = true;
+    /*
+     * Finds the first or last match in a part, in bytes or in Unicode. May be called by several
+     * threads with their own part.
+     */
+    private Match findInPart(final ByteBuffer part, final long partPosition, final boolean forward) {
+        final int found = findHexAsciiMatchInPart(part, forward);
+        final int foundUnicode = findUnicodeMatchInPart(part.duplicate(), forward);
+        if (foundUnicode >= 0 && (found < 0 || forward && found > foundUnicode || !forward && found < foundUnicode)) {
+            return new Match(true, partPosition + foundUnicode, myLiteralByteLength, null);
+        }
+        if (found >= 0) {
+            return new Match(true, partPosition + found, myByteFindSequence.length, null);
         }
+
+        return null;
     }
 
-    private int findHexAsciiMatchInPart() {
-        if (myByteFindSequence == null) {
+    private int findHexAsciiMatchInPart(final ByteBuffer part, final boolean forward) {
+        if (myBytePattern == null) {
             return -1;
         }
 
-        int start = 0;
-        int inclusiveEnd = byteBuffer.limit() - myByteFindSequence.length;
-        if (!myDirectionForward) {
-            start = inclusiveEnd;
-            inclusiveEnd = 0;
-        }
-
-        for (int i = start; myDirectionForward && i <= inclusiveEnd || !myDirectionForward && i >= inclusiveEnd; i += myDirectionForward ? 1 : -1) {
-            boolean matchesSoFar = true;
-            for (int j = 0; j < myByteFindSequence.length && matchesSoFar; ++j) {
-                final byte existing = byteBuffer.get(i + j);
-                final byte matcher = myByteFindSequence[j];
-                if (existing != matcher) {
-                    if (myCaseSensitive || existing < 'A' || existing > 'z' || matcher < 'A' || matcher > 'z'
-                            || existing - matcher != 32 && matcher - existing != 32) {
-                        matchesSoFar = false;
-                    }
-                }
-            }
-            if (matchesSoFar) {
-                return i;
-            }
+        if (forward) {
+            return myBytePattern.indexOf(part.array(), 0, part.limit());
         }
 
-        return -1;
+        return myBytePattern.lastIndexOf(part.array(), 0, part.limit());
     }
 
-    private int findUnicodeMatchInPart() {
+    private int findUnicodeMatchInPart(final ByteBuffer part, final boolean forward) {
         if (myPattern == null) {
             return -1;
         }
 
         int result = Integer.MAX_VALUE;
-        if (!myDirectionForward) {
+        if (!forward) {
             result = -1;
         }
-        byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
-        final Matcher matcher = myPattern.matcher(byteBuffer.asCharBuffer());
+        part.order(ByteOrder.LITTLE_ENDIAN);
+        final Matcher matcher = myPattern.matcher(part.asCharBuffer());
 
         for (int encoding = 0; encoding < 4; ++encoding) {
             while (matcher.find()) {
                 final int index = matcher.start() * 2 + (encoding >= 2 ? 1 : 0);
-                if (myDirectionForward && result > index || !myDirectionForward && result < index) {
+                if (forward && result > index || !forward && result < index) {
                     result = index;
                 }
-                if (myDirectionForward) {
+                if (forward) {
                     break;
                 }
             }
             if (encoding == 0) {
-                byteBuffer.order(ByteOrder.BIG_ENDIAN);
-            } else if (encoding == 1 && byteBuffer.limit() > 0) {
-                byteBuffer.position(1);
+                part.order(ByteOrder.BIG_ENDIAN);
+            } else if (encoding == 1 && part.limit() > 0) {
+                part.position(1);
             } else if (encoding == 2) {
-                byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+                part.order(ByteOrder.LITTLE_ENDIAN);
             }
-            matcher.reset(byteBuffer.asCharBuffer());
+            matcher.reset(part.asCharBuffer());
         }
         if (result == Integer.MAX_VALUE) {
             result = -1;
@@ -200,10 +226,112 @@ public final class BinaryContentFinder {
         return result;
     }
 
+    /**
+     * Finds all matches in a range of the content and adds them to an index, in increasing order.
+     * Overlapping matches are all found, one per position where any encoding matches. Other
+     * threads can read the index while it grows. The direction and start of the next match are not
+     * changed.
+     *
+     * @param start first position of the range
+     * @param end   end of the range, exclusive. Matches end there at the latest.
+     * @param index filled with the matches, after forgetting its previous ones
+     * @return true when the whole range was searched, false when the search was stopped
+     * @throws IOException when the content cannot be read
+     */
+    public boolean findAll(final long start, final long end, final MatchIndex index) throws IOException {
+        if (index == null) {
+            throw new IllegalArgumentException("Parameter 'index' must not be null.");
+        }
+
+        stopSearching = false;
+        if (myByteFindSequence != null && myByteFindSequence.length > 0 && myBytePattern == null) {
+            myBytePattern = new BytePattern(myByteFindSequence, myByteFindMask, myCaseSensitive);
+        }
+        final long version = mySnapshot != null ? mySnapshot.getVersion() : myContent != null ? myContent.getVersion() : 0L;
+        index.start(version, myByteFindSequence != null ? myByteFindSequence.length : myLiteralByteLength, myLiteralByteLength);
+        if (myContent == null) {
+            return true;
+        }
+
+        final long rangeEnd = Math.min(end, getContentLength());
+        final long savedBufferPosition = bufferPosition;
+        try {
+            // each part adds the matches starting before the next part, which finds the others whole
+            final int step = partSize - myLiteralByteLength + 1;
+            for (long partStart = Math.max(0L, start); partStart < rangeEnd; partStart += step) {
+                if (stopSearching) {
+                    stopSearching = false;
+                    return false;
+                }
+                bufferPosition = partStart;
+                populatePart((int) Math.min(partSize, rangeEnd - partStart));
+                final boolean lastPart = partStart + byteBuffer.limit() >= rangeEnd;
+                addMatchesInPart(byteBuffer, partStart, lastPart ? rangeEnd : partStart + step, index);
+                if (lastPart) {
+                    break;
+                }
+            }
+        } finally {
+            bufferPosition = savedBufferPosition;
+        }
+
+        return true;
+    }
+
+    /*
+     * Adds the matches of a part starting before end, sorted, one per position
+     */
+    private void addMatchesInPart(final ByteBuffer part, final long partPosition, final long end, final MatchIndex index) {
+        partMatchCount = 0;
+        if (myBytePattern != null) {
+            final byte[] data = part.array();
+            for (int i = myBytePattern.indexOf(data, 0, part.limit()); i >= 0; i = myBytePattern.indexOf(data, i + 1, part.limit())) {
+                addPartMatch(i, false);
+            }
+        }
+        if (myPattern != null) {
+            // same encodings as findUnicodeMatchInPart()
+            for (int encoding = 0; encoding < 4; ++encoding) {
+                final int offset = encoding >= 2 ? 1 : 0;
+                final ByteBuffer bytes = part.duplicate();
+                bytes.order(encoding == 0 || encoding == 3 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                bytes.position(Math.min(offset, bytes.limit()));
+                final CharBuffer chars = bytes.asCharBuffer();
+                final Matcher matcher = myPattern.matcher(chars);
+                for (int from = 0; from < chars.length() && matcher.find(from); from = matcher.start() + 1) {
+                    addPartMatch(matcher.start() * 2 + offset, true);
+                }
+            }
+        }
+
+        Arrays.sort(partMatches, 0, partMatchCount);
+        long next = partPosition;
+        for (int i = 0; i < partMatchCount; ++i) {
+            final long position = partPosition + (partMatches[i] >>> 1);
+            if (position >= end) {
+                break;
+            }
+            if (position >= next) {
+                index.add(position, (partMatches[i] & 1L) != 0L);
+                next = position + 1L;
+            }
+        }
+    }
+
+    private void addPartMatch(final int indexInPart, final boolean unicode) {
+        if (partMatchCount == partMatches.length) {
+            partMatches = Arrays.copyOf(partMatches, partMatchCount * 2);
+        }
+        partMatches[partMatchCount++] = (long) indexInPart << 1 | (unicode ? 1L : 0L);
+    }
+
     private long getContentLength() {
         if (myContent == null) {
             return 0L;
         }
+        if (mySnapshot != null) {
+            return mySnapshot.length();
+        }
 
         return myContent.length();
     }
@@ -215,37 +343,127 @@ public final class BinaryContentFinder {
      */
     public Match getNextMatch() {
         stopSearching = false;
+        if (myByteFindSequence != null && myByteFindSequence.length > 0 && myBytePattern == null) {
+            myBytePattern = new BytePattern(myByteFindSequence, myByteFindMask, myCaseSensitive);
+        }
+        final long searchedLength = myDirectionForward ? getContentLength() - currentPosition : currentPosition;
+        if (parallel && mySnapshot != null && searchedLength > 2L * SEGMENT_SIZE && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            return getNextMatchInParallel();
+        }
+
         try {
             populatePart();
-            findAllMatches();
+            Match match = findInPart(byteBuffer, bufferPosition, myDirectionForward);
 
-            while (currentPartFound < 0) { // end of part
+            while (match == null) { // end of part
                 if (nextPart() == null || stopSearching) {
                     stopSearching = false;
                     return new Match(false, 0, 0, null); // end of file
                 }
-                findAllMatches();
+                match = findInPart(byteBuffer, bufferPosition, myDirectionForward);
             }
 
-            final long resultStartPosition = bufferPosition + currentPartFound;
-            final int resultLength = currentPartFoundIsUnicode ? myLiteralByteLength : myByteFindSequence.length;
-            setNewStart(resultStartPosition + (myDirectionForward ? 1 : resultLength - 1));
+            setNewStart(match.getStartPosition() + (myDirectionForward ? 1 : match.getLength() - 1));
 
-            return new Match(true, resultStartPosition, resultLength, null);
+            return match;
         } catch (final IOException ex) {
             return new Match(false, 0, 0, ex);
         }
     }
 
-    private void initSearchHex(final byte[] sequence) {
-        myByteFindSequence = sequence;
+    /*
+     * Segment i is the i-th one from the start of the search, whatever the direction. Each thread
+     * takes the nearest segment not taken yet, until a segment nearer than the next one has a match.
+     */
+    private Match getNextMatchInParallel() {
+        final boolean forward = myDirectionForward;
+        final long from = forward ? currentPosition : 0L;
+        final long to = forward ? getContentLength() : currentPosition;
+        final int segmentCount = (int) ((to - from + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        final AtomicLong nextSegment = new AtomicLong();
+        final AtomicLong nearestSegment = new AtomicLong(Long.MAX_VALUE); // with a match
+        final AtomicReferenceArray<Match> matches = new AtomicReferenceArray<>(segmentCount);
+        final AtomicReference<IOException> exception = new AtomicReference<>();
+
+        final Runnable worker = () -> {
+            final ContentCursor cursor = mySnapshot.cursor(from);
+            final ByteBuffer part = ByteBuffer.allocate(partSize);
+            long segment;
+            while ((segment = nextSegment.getAndIncrement()) < segmentCount && segment < nearestSegment.get() && !stopSearching
+                    && exception.get() == null) {
+                final long start = forward ? from + segment * SEGMENT_SIZE : Math.max(from, to - (segment + 1) * SEGMENT_SIZE);
+                final long end = forward ? Math.min(to, start + SEGMENT_SIZE) : to - segment * SEGMENT_SIZE;
+                parallelSearchPosition = forward ? start : end;
+                try {
+                    final Match match = findInSegment(cursor, part, start, Math.min(to, end + myLiteralByteLength - 1L), forward, segment, nearestSegment);
+                    if (match != null) {
+                        matches.set((int) segment, match);
+                        nearestSegment.accumulateAndGet(segment, Math::min);
+                    }
+                } catch (final IOException ex) {
+                    exception.compareAndSet(null, ex);
+                }
+            }
+        };
+        final ForkJoinPool pool = ForkJoinPool.commonPool();
+        final List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int i = Math.min(pool.getParallelism(), segmentCount); i > 0; --i) {
+            tasks.add(pool.submit(worker));
+        }
+        for (final ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        parallelSearchPosition = -1L;
+
+        if (exception.get() != null) {
+            return new Match(false, 0, 0, exception.get());
+        }
+        if (stopSearching) {
+            stopSearching = false;
+            return new Match(false, 0, 0, null);
+        }
+        final long nearest = nearestSegment.get();
+        if (nearest == Long.MAX_VALUE) {
+            setNewStart(forward ? to : from); // like a single thread at the end of the content
+            return new Match(false, 0, 0, null);
+        }
+        final Match match = matches.get((int) nearest);
+        setNewStart(match.getStartPosition() + (forward ? 1 : match.getLength() - 1));
+
+        return match;
+    }
 
-        if (sequence.length > MAX_SEQUENCE_SIZE) {
-            myByteFindSequence = new byte[MAX_SEQUENCE_SIZE];
-            System.arraycopy(sequence, 0, myByteFindSequence, 0, MAX_SEQUENCE_SIZE);
+    /*
+     * Searches a segment part by part, until a match is found or a nearer segment has one
+     */
+    private Match findInSegment(final ContentCursor cursor, final ByteBuffer part, final long start, final long end, final boolean forward,
+            final long segment, final AtomicLong nearestSegment) throws IOException {
+        final int overlap = myLiteralByteLength - 1;
+        long partStart = forward ? start : Math.max(start, end - partSize);
+        while (nearestSegment.get() > segment && !stopSearching) {
+            final int size = (int) Math.min(partSize, (forward ? end : Math.min(end, partStart + partSize)) - partStart);
+            part.clear().limit(size);
+            cursor.setPosition(partStart);
+            cursor.read(part);
+            part.flip();
+            final Match match = findInPart(part, partStart, forward);
+            if (match != null) {
+                return match;
+            }
+            if (forward ? partStart + size >= end : partStart <= start) {
+                return null;
+            }
+            partStart = forward ? partStart + size - overlap : Math.max(start, partStart - partSize + overlap);
         }
 
+        return null;
+    }
+
+    private void initSearchHex(final byte[] sequence) {
+        myByteFindSequence = sequence;
+        myBytePattern = null;
         myLiteralByteLength = myByteFindSequence.length;
+        partSize = Math.max(MAP_SIZE, 2 * myLiteralByteLength);
     }
 
     /**
@@ -254,7 +472,9 @@ public final class BinaryContentFinder {
      * @return position in the content
      */
     public long getSearchPosition() {
-        return bufferPosition;
+        final long position = parallelSearchPosition;
+
+        return position >= 0L ? position : bufferPosition;
     }
 
     private void initSearchUnicodeAscii() {
@@ -262,10 +482,9 @@ public final class BinaryContentFinder {
         final StringBuilder regex = new StringBuilder("\\Q");
 
         // 16 bit Unicode chars
-        if (myLiteral.length() * 2 > MAX_SEQUENCE_SIZE) {
-            myLiteral = myLiteral.subSequence(0, MAX_SEQUENCE_SIZE / 2);
-        }
         myLiteralByteLength = myLiteral.length() * 2;
+        partSize = Math.max(MAP_SIZE, 2 * myLiteralByteLength);
+        myBytePattern = null;
 
         boolean isAsciiCompatible = true;
         final byte[] tmpBytes = new byte[myLiteral.length()];
@@ -293,21 +512,19 @@ public final class BinaryContentFinder {
         }
         myPattern = Pattern.compile(regex.toString(), ignoreCaseFlags);
 
-        if (isAsciiCompatible) {
-            myByteFindSequence = tmpBytes;
-        }
+        myByteFindSequence = isAsciiCompatible ? tmpBytes : null;
     }
 
     private ByteBuffer nextPart() throws IOException {
         long newPos = bufferPosition + byteBuffer.limit() - myLiteralByteLength + 1L;
         if (!myDirectionForward) {
-            newPos = bufferPosition - MAP_SIZE + myLiteralByteLength - 1L;
+            newPos = bufferPosition - partSize + myLiteralByteLength - 1L;
         }
         if (newPos < 0L) {
             newPos = 0L;
         }
 
-        int size = (int) Math.min(MAP_SIZE, getContentLength() - newPos);
+        int size = (int) Math.min(partSize, getContentLength() - newPos);
         if (!myDirectionForward) {
             size = (int) (bufferPosition + myLiteralByteLength - 1L - newPos);
         }
@@ -322,9 +539,9 @@ public final class BinaryContentFinder {
     }
 
     private void populatePart() throws IOException {
-        int size = MAP_SIZE;
+        int size = partSize;
         if (!myDirectionForward) {
-            size = (int) Math.min(MAP_SIZE, currentPosition);
+            size = (int) Math.min(partSize, currentPosition);
         }
         populatePart(size);
     }
@@ -334,14 +551,18 @@ public final class BinaryContentFinder {
             return;
         }
 
-        byteBuffer = null;
-        // multiple FileChannel.read(byteBuffer) leak memory, so don't reuse
-        // buffer
-        byteBuffer = ByteBuffer.allocate(MAP_SIZE);
+        // the cursor copies into the buffer, it is not given to FileChannel.read() which leaked memory
+        if (byteBuffer == null || byteBuffer.capacity() != partSize) {
+            byteBuffer = ByteBuffer.allocate(partSize);
+        }
         byteBuffer.limit(size);
         byteBuffer.position(0);
 
-        myContent.get(byteBuffer, bufferPosition);
+        if (myCursor == null) {
+            myCursor = myContent.cursor(bufferPosition);
+        }
+        myCursor.setPosition(bufferPosition);
+        myCursor.read(byteBuffer);
 
         byteBuffer.limit(byteBuffer.position());
         byteBuffer.position(0);
@@ -358,11 +579,22 @@ public final class BinaryContentFinder {
         }
 
         myCaseSensitive = beSensitive;
+        myBytePattern = null;
         if (myLiteral != null) {
             initSearchUnicodeAscii();
         }
     }
 
+    /**
+     * Sets whether finds in a snapshot of a large content may run in several threads. The default is
+     * parallel.
+     *
+     * @param beParallel set to false to search with the calling thread only
+     */
+    public void setParallel(final boolean beParallel) {
+        parallel = beParallel;
+    }
+
     /**
      * Sets the search direction. The default search direction is always forward
      *
@@ -385,13 +617,25 @@ public final class BinaryContentFinder {
         currentPosition = startPoint;
         bufferPosition = startPoint;
         if (!myDirectionForward) {
-            bufferPosition = startPoint - MAP_SIZE;
+            bufferPosition = startPoint - partSize;
         }
         if (bufferPosition < 0L) {
             bufferPosition = 0L;
         }
     }
 
+    /**
+     * Makes the following finds read a snapshot of the current content instead of the content itself,
+     * so they can run in another thread while the content is being modified. Must be called by the
+     * thread modifying the content, again before each find that should see the latest modifications.
+     */
+    public void takeSnapshot() {
+        if (myContent != null) {
+            mySnapshot = myContent.snapshot();
+            myCursor = mySnapshot.cursor(0L);
+        }
+    }
+
     /**
      * Stop searching. Long running searches can be stopped from another thread.
      */
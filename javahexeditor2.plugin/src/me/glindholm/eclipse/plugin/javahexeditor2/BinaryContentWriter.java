@@ -0,0 +1,390 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
+import org.eclipse.core.runtime.SubMonitor;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.Range;
+import me.glindholm.eclipse.plugin.javahexeditor2.common.TextUtility;
+
+/**
+ * Writes a sequence of ranges to a file, streaming each range the cheapest way its source allows:
+ * file regions are copied by the operating system with {@link FileChannel#transferTo}, memory
+ * buffers are collected into gathering writes and zeros are left as holes in the file. Nothing is
+ * synchronized to the disk before the end.
+ * <P>
+ * The bytes go to a temporary file next to the destination, which replaces the destination when
+ * complete. A failed or cancelled save leaves the destination untouched, and the destination may be
+ * one of the files the ranges read from. The price is twice the disk space of the file during the
+ * save, and a new file: symbolic links are followed to the file they point to, but its POSIX
+ * permissions are the only metadata copied, owner, group, ACLs, extended attributes and other hard
+ * links are lost.
+ * <P>
+ * When the directory does not accept the temporary file or the file cannot be replaced by it, the
+ * destination is truncated and written over instead, which keeps its metadata. A failed or cancelled
+ * save then leaves it incomplete. If the ranges read the destination, the bytes are written to a
+ * temporary file of the system first and copied over the destination at the end. When that copy
+ * fails, the temporary file is kept and named in the exception.
+ * <P>
+ * A file whose size does not change may instead be saved in place, writing only the modified spans.
+ * The previous bytes of the spans are kept in a {@link SaveJournal} until the save is complete.
+ */
+final class BinaryContentWriter {
+
+    private static final int MAXIMUM_GATHER_COUNT = 64;
+    private static final long MAXIMUM_GATHER_LENGTH = 4 * 1024 * 1024;
+    private static final long MAXIMUM_TRANSFER_LENGTH = 64 * 1024 * 1024; // between progress reports
+    private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+    private static final int PROGRESS_TICKS = 1000;
+    private static final long PROGRESS_INTERVAL_NANOS = 250_000_000L;
+    private static final double MEGABYTE = 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long length; // of all bytes to write
+    private final boolean sparse; // zeros may be left as holes
+    private final SubMonitor progress;
+    private final ByteBuffer[] gather = new ByteBuffer[MAXIMUM_GATHER_COUNT];
+    private int gatherCount;
+    private long gatherLength;
+    private ByteBuffer copyBuffer; // created on first use
+    private long written; // including pending gathered bytes and holes
+    private final long startNanos;
+    private long reportNanos;
+    private int reportedTicks;
+
+    private BinaryContentWriter(final FileChannel channel, final long length, final boolean sparse, final IProgressMonitor monitor) {
+        this.channel = channel;
+        this.length = length;
+        this.sparse = sparse;
+        progress = SubMonitor.convert(monitor, PROGRESS_TICKS);
+        startNanos = System.nanoTime();
+        reportNanos = startNanos;
+    }
+
+    /**
+     * Writes a sequence of bytes of a tree into a file, replacing it
+     *
+     * @param ranges          the ranges, not modified. A snapshot if other threads may modify them
+     * @param start           first byte to write
+     * @param length          number of bytes to write
+     * @param destinationFile where to write to, not <code>null</code>
+     * @param monitor         receives the progress and may cancel the save, or <code>null</code>
+     * @throws IOException                when the bytes cannot be read or written
+     * @throws OperationCanceledException when the monitor has been cancelled
+     */
+    static void write(final RangeTree ranges, final long start, final long length, final File destinationFile, final IProgressMonitor monitor)
+            throws IOException {
+        // the link is kept, the file it points to is replaced
+        final File destination = destinationFile.getCanonicalFile();
+        File temporaryFile = createTemporaryFile(destination);
+        final boolean besideDestination = temporaryFile != null;
+        if (temporaryFile == null && reads(ranges, start, length, destination)) {
+            temporaryFile = File.createTempFile(destination.getName(), ".tmp");
+        }
+        boolean keep = false; // the temporary file, moved or the only complete copy of the bytes
+        try {
+            if (temporaryFile == null) {
+                writeOver(ranges, start, length, destination, monitor);
+                return;
+            }
+
+            try (FileChannel channel = FileChannel.open(temporaryFile.toPath(), StandardOpenOption.WRITE)) {
+                writeAll(channel, ranges, start, length, monitor);
+            }
+            if (besideDestination) {
+                copyPermissions(destination.toPath(), temporaryFile.toPath());
+                keep = replace(temporaryFile.toPath(), destination.toPath());
+            }
+            if (keep) {
+                FileChannelRegistry.replaced(destination);
+            } else {
+                // a failed copy leaves the destination truncated, the exception names the temporary file
+                keep = true;
+                copyOver(temporaryFile, destination);
+                keep = false;
+            }
+        } finally {
+            if (temporaryFile != null && !keep) {
+                temporaryFile.delete();
+            }
+            FileBlockCache.invalidate(destination);
+        }
+    }
+
+    /*
+     * A temporary file next to the destination, null when its directory does not accept one
+     */
+    private static File createTemporaryFile(final File destination) {
+        try {
+            return File.createTempFile(destination.getName(), ".tmp", destination.getParentFile());
+        } catch (final IOException | SecurityException ex) {
+            return null;
+        }
+    }
+
+    private static boolean reads(final RangeTree ranges, final long start, final long length, final File file) {
+        final RangeTree.Cursor cursor = ranges.cursor();
+        for (cursor.seek(start); cursor.hasRange() && cursor.getPosition() < start + length; cursor.next()) {
+            if (cursor.getRange().source instanceof final RangeSource.FileRegion region && region.file.equals(file)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static void writeAll(final FileChannel channel, final RangeTree ranges, final long start, final long length, final IProgressMonitor monitor)
+            throws IOException {
+        final BinaryContentWriter writer = new BinaryContentWriter(channel, length, true, monitor);
+        writer.writeRanges(ranges, start, length);
+        // a trailing hole does not extend the file by itself
+        if (channel.size() < length) {
+            channel.write(ByteBuffer.allocate(1), length - 1L);
+        }
+        channel.force(true);
+    }
+
+    /*
+     * Truncates the destination and writes the ranges into it, which must not read it
+     */
+    private static void writeOver(final RangeTree ranges, final long start, final long length, final File destination, final IProgressMonitor monitor)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeAll(channel, ranges, start, length, monitor);
+        }
+    }
+
+    /*
+     * Truncates the destination and copies a complete file into it, no longer cancellable
+     */
+    private static void copyOver(final File source, final File destination) throws IOException {
+        try (FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel channel = FileChannel.open(destination.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long length = sourceChannel.size();
+            final BinaryContentWriter writer = new BinaryContentWriter(channel, length, false, null);
+            writer.transfer(sourceChannel, 0L, length);
+            channel.force(true);
+        } catch (final IOException ex) {
+            throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE, destination.toString(), source.toString()), ex);
+        }
+    }
+
+    private static void copyPermissions(final Path from, final Path to) {
+        if (!Files.exists(from)) {
+            return;
+        }
+        try {
+            Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+        } catch (final UnsupportedOperationException | IOException ex) {
+            // not a POSIX file system, the default permissions will do
+        }
+    }
+
+    /*
+     * Returns false when the destination cannot be replaced, for instance when it is open on Windows
+     */
+    private static boolean replace(final Path from, final Path to) {
+        try {
+            try {
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (final AtomicMoveNotSupportedException ex) {
+                Files.move(from, to, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (final IOException ex) {
+            return false;
+        }
+    }
+
+    private void copy(final Range range, final long offset, final long count) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+        long remaining = count;
+        while (remaining > 0L) {
+            copyBuffer.clear();
+            final int read = range.source.read(range.dataOffset + offset + count - remaining, copyBuffer,
+                    (int) Math.min(remaining, COPY_BUFFER_SIZE));
+            if (read < 1) {
+                throw new EOFException();
+            }
+            copyBuffer.flip();
+            writeFully(copyBuffer);
+            remaining -= read;
+            written += read;
+            reportProgress();
+        }
+    }
+
+    private void flush() throws IOException {
+        long remaining = gatherLength;
+        while (remaining > 0L) {
+            remaining -= channel.write(gather, 0, gatherCount);
+        }
+        for (int i = 0; i < gatherCount; ++i) {
+            gather[i] = null;
+        }
+        gatherCount = 0;
+        gatherLength = 0L;
+    }
+
+    private void gather(final ByteBuffer buffer, final long offset, final long count) throws IOException {
+        final ByteBuffer slice = buffer.duplicate();
+        slice.limit((int) (offset + count));
+        slice.position((int) offset);
+        gather[gatherCount++] = slice;
+        gatherLength += count;
+        written += count;
+        if (gatherCount == MAXIMUM_GATHER_COUNT || gatherLength >= MAXIMUM_GATHER_LENGTH) {
+            flush();
+            reportProgress();
+        }
+    }
+
+    private void reportProgress() {
+        if (progress.isCanceled()) {
+            throw new OperationCanceledException();
+        }
+        final long now = System.nanoTime();
+        if (now - reportNanos < PROGRESS_INTERVAL_NANOS && written < length) {
+            return;
+        }
+        reportNanos = now;
+
+        final int ticks = length == 0L ? PROGRESS_TICKS : (int) (written * PROGRESS_TICKS / length);
+        progress.worked(ticks - reportedTicks);
+        reportedTicks = ticks;
+        final double seconds = Math.max(now - startNanos, 1L) / 1e9;
+        progress.subTask(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_PROGRESS, String.format("%.1f", written / MEGABYTE),
+                String.format("%.1f", length / MEGABYTE), String.format("%.1f", written / MEGABYTE / seconds)));
+    }
+
+    private void skip(final long count) throws IOException {
+        // zeros are not written, the file system reads holes as zeros
+        flush();
+        channel.position(channel.position() + count);
+        written += count;
+        reportProgress();
+    }
+
+    private void transfer(final FileChannel source, final long position, final long count) throws IOException {
+        flush();
+        long remaining = count;
+        while (remaining > 0L) {
+            final long transferred = source.transferTo(position + count - remaining, Math.min(remaining, MAXIMUM_TRANSFER_LENGTH), channel);
+            if (transferred < 1L) {
+                throw new EOFException();
+            }
+            remaining -= transferred;
+            written += transferred;
+            reportProgress();
+        }
+    }
+
+    /**
+     * Overwrites spans of a file with the bytes of a tree at the same positions. Any other byte of the
+     * file is left alone. A failed or cancelled save is rolled back.
+     *
+     * @param ranges    the ranges, not modified. Their length is the length of the file
+     * @param positions start of each span, in increasing order
+     * @param lengths   length of each span
+     * @param file      the file, must not be read by the spans
+     * @param monitor   receives the progress and may cancel the save, or <code>null</code>
+     * @throws IOException                when the bytes cannot be read or written
+     * @throws OperationCanceledException when the monitor has been cancelled
+     */
+    static void writeInPlace(final RangeTree ranges, final long[] positions, final long[] lengths, final File file, final IProgressMonitor monitor)
+            throws IOException {
+        long length = 0L;
+        for (final long spanLength : lengths) {
+            length += spanLength;
+        }
+
+        final File canonicalFile = file.getCanonicalFile();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            SaveJournal.write(channel, file, positions, lengths);
+            final BinaryContentWriter writer = new BinaryContentWriter(channel, length, false, monitor);
+            for (int i = 0; i < positions.length; ++i) {
+                channel.position(positions[i]);
+                writer.writeRanges(ranges, positions[i], lengths[i]);
+            }
+            channel.force(true);
+        } catch (final Throwable ex) {
+            // the failure or cancellation is what the caller has to know about
+            try {
+                SaveJournal.rollBack(file);
+            } catch (final IOException rollBackException) {
+                ex.addSuppressed(rollBackException);
+            }
+            throw ex;
+        } finally {
+            FileBlockCache.invalidate(canonicalFile);
+        }
+        SaveJournal.discard(file);
+    }
+
+    private void writeFully(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void writeRanges(final RangeTree ranges, final long start, final long count) throws IOException {
+        final long end = start + count;
+        final RangeTree.Cursor cursor = ranges.cursor();
+        long position = start;
+        for (cursor.seek(start); cursor.hasRange() && position < end; cursor.next()) {
+            final Range range = cursor.getRange();
+            final long offset = position - cursor.getPosition();
+            final long partLength = Math.min(range.length - offset, end - position);
+            if (range.source instanceof final RangeSource.Heap heap) {
+                gather(heap.buffer, range.dataOffset + offset, partLength);
+            } else if (range.source instanceof final RangeSource.Direct direct) {
+                gather(direct.buffer, range.dataOffset + offset, partLength);
+            } else if (range.source instanceof final RangeSource.FileRegion region) {
+                transfer(region.getChannel(), range.dataOffset + offset, partLength);
+            } else if (sparse && range.source instanceof RangeSource.Zeros) {
+                skip(partLength);
+            } else {
+                flush();
+                copy(range, offset, partLength);
+            }
+            position += partLength;
+        }
+        flush();
+        reportProgress();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A growable sequence of bytes with a gap at the last edit point. Inserting and removing at the gap
+ * is O(1), moving the gap costs the distance moved. Used for bytes being typed in, which are
+ * inserted consecutively at the caret.
+ */
+final class ByteGapBuffer {
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] buffer;
+    private int gapStart;
+    private int gapEnd;
+
+    ByteGapBuffer() {
+        buffer = EMPTY;
+    }
+
+    /**
+     * Appends a byte
+     *
+     * @param value the byte
+     */
+    void add(final byte value) {
+        insert(size(), value);
+    }
+
+    private void checkIndex(final int index, final int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    /**
+     * Removes all bytes. The storage is kept for reuse
+     */
+    void clear() {
+        gapStart = 0;
+        gapEnd = buffer.length;
+    }
+
+    /**
+     * Takes all bytes out as a buffer ready to be read, and leaves this one empty. The storage is
+     * handed over to the result when it is well used, so no copy is made.
+     *
+     * @return the bytes, position 0 and limit at the end
+     */
+    ByteBuffer commit() {
+        final int size = size();
+        moveGap(size);
+        final ByteBuffer result;
+        if (buffer.length - size > size) {
+            // mostly gap, copy the bytes out and keep the storage for the next changes
+            result = ByteBuffer.wrap(Arrays.copyOf(buffer, size));
+        } else {
+            result = ByteBuffer.wrap(buffer, 0, size).slice();
+            buffer = EMPTY;
+        }
+        clear();
+
+        return result;
+    }
+
+    /**
+     * Copies a sequence of bytes into a new buffer
+     *
+     * @param index  first byte
+     * @param length number of bytes
+     * @return the bytes, position 0 and limit at the end
+     */
+    ByteBuffer copy(final int index, final int length) {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        get(result, index);
+        result.flip();
+
+        return result;
+    }
+
+    /**
+     * @param index of the byte
+     * @return the byte at that index
+     */
+    byte get(final int index) {
+        checkIndex(index, size());
+
+        return index < gapStart ? buffer[index] : buffer[index + gapEnd - gapStart];
+    }
+
+    /**
+     * Copies bytes starting at an index into a buffer, as many as fit.
+     *
+     * @param dst   where to write to
+     * @param index first byte to copy
+     * @return number of bytes copied
+     */
+    int get(final ByteBuffer dst, final int index) {
+        final int size = size();
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+
+        int remaining = Math.min(dst.remaining(), size - index);
+        final int result = remaining;
+        int from = index;
+        if (from < gapStart) {
+            final int length = Math.min(remaining, gapStart - from);
+            dst.put(buffer, from, length);
+            remaining -= length;
+            from += length;
+        }
+        if (remaining > 0) {
+            dst.put(buffer, from + gapEnd - gapStart, remaining);
+        }
+
+        return result;
+    }
+
+    /**
+     * Inserts a byte, shifting the following ones
+     *
+     * @param index where to insert, 0 <= index <= size()
+     * @param value the byte
+     */
+    void insert(final int index, final byte value) {
+        checkIndex(index, size() + 1);
+        if (gapStart == gapEnd) {
+            final int newCapacity = Math.max(INITIAL_CAPACITY, buffer.length * 2);
+            final byte[] newBuffer = new byte[newCapacity];
+            final int tailLength = buffer.length - gapEnd;
+            System.arraycopy(buffer, 0, newBuffer, 0, gapStart);
+            System.arraycopy(buffer, gapEnd, newBuffer, newCapacity - tailLength, tailLength);
+            buffer = newBuffer;
+            gapEnd = newCapacity - tailLength;
+        }
+        moveGap(index);
+        buffer[gapStart++] = value;
+    }
+
+    private void moveGap(final int index) {
+        if (index < gapStart) {
+            final int length = gapStart - index;
+            System.arraycopy(buffer, index, buffer, gapEnd - length, length);
+            gapStart -= length;
+            gapEnd -= length;
+        } else if (index > gapStart) {
+            final int length = index - gapStart;
+            System.arraycopy(buffer, gapEnd, buffer, gapStart, length);
+            gapStart += length;
+            gapEnd += length;
+        }
+    }
+
+    /**
+     * Removes a sequence of bytes, shifting the following ones
+     *
+     * @param index  first byte to remove
+     * @param length number of bytes
+     */
+    void remove(final int index, final int length) {
+        if (length < 0 || index < 0 || index + length > size()) {
+            throw new IndexOutOfBoundsException("Range " + index + "+" + length + " out of bounds for size " + size());
+        }
+        moveGap(index);
+        gapEnd += length;
+    }
+
+    /**
+     * @param index of the byte
+     * @param value the new byte
+     */
+    void set(final int index, final byte value) {
+        checkIndex(index, size());
+        if (index < gapStart) {
+            buffer[index] = value;
+        } else {
+            buffer[index + gapEnd - gapStart] = value;
+        }
+    }
+
+    /**
+     * @return number of bytes
+     */
+    int size() {
+        return buffer.length - (gapEnd - gapStart);
+    }
+}
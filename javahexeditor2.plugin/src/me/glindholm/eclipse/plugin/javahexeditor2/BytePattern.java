@@ -0,0 +1,392 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * A sequence of bytes to search for, with the skip tables of the Boyer-Moore-Horspool algorithm in
+ * both directions. Each window of the searched bytes is compared from its far end, and the byte under
+ * that end tells how far the window can move when it does not match: up to the length of the
+ * pattern, so long patterns look at only a fraction of the bytes. The worst case, for patterns made
+ * of few different bytes, is the product of both lengths like a plain comparison.
+ * <P>
+ * When the case is ignored, ASCII letters are compared through a folding table, so the search costs
+ * the same.
+ * <P>
+ * Short patterns hardly skip anything, so they are searched differently: the bytes are read 8 at a
+ * time as a long and the positions holding the rarest byte of the pattern are found with a few
+ * arithmetic operations on the whole word (SWAR), then the pattern is compared there. The system
+ * property <code>javahexeditor2.scalarSearch</code> turns this off, to measure the difference.
+ * <P>
+ * A mask tells which bits of each byte are compared, the others match anything. The longest run of
+ * bytes compared fully is searched as a pattern of its own, and the whole pattern is compared where
+ * it is found. Without such a byte, the skip tables hold, for each byte value, the nearest pattern
+ * byte it can match.
+ */
+final class BytePattern {
+
+    private static final int MAXIMUM_SCANNED_LENGTH = 8; // longer patterns skip faster than they are scanned
+    private static final boolean SCALAR = Boolean.getBoolean("javahexeditor2.scalarSearch");
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+
+    private static final byte[] IDENTITY = new byte[256];
+    private static final byte[] ASCII_UPPER_CASE = new byte[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            IDENTITY[i] = (byte) i;
+            ASCII_UPPER_CASE[i] = (byte) (i >= 'a' && i <= 'z' ? i - 32 : i);
+        }
+    }
+
+    private final byte[] pattern; // folded, without the bits masked
+    private final byte[] mask; // bits compared in each byte, null when all of them are
+    private final BytePattern core; // longest run of the bytes compared fully, null when there is none
+    private final int coreOffset;
+    private final byte[] fold; // byte value to the value it is compared as
+    private final int[] forwardShift = new int[256]; // by the byte under the last one of the window
+    private final int[] backwardShift = new int[256]; // by the byte under the first one of the window
+    private final int candidateOffset; // of the rarest byte in the pattern, where scanned patterns are looked for
+    private final long candidateWord; // the rarest byte in each byte of a long
+    private final long otherCaseWord; // the same, in the other case when the case is ignored
+
+    /**
+     * @param pattern       the bytes to find, not empty
+     * @param mask          the bits compared in each byte of the pattern, null to compare all of them
+     * @param caseSensitive false: ASCII letters match their other case too
+     */
+    BytePattern(final byte[] pattern, final byte[] mask, final boolean caseSensitive) {
+        if (pattern == null || pattern.length == 0) {
+            throw new IllegalArgumentException("Parameter 'pattern' must not be empty.");
+        }
+        if (mask != null && mask.length != pattern.length) {
+            throw new IllegalArgumentException("Parameter 'mask' must have the length of parameter 'pattern', specified length is " + mask.length);
+        }
+
+        fold = caseSensitive ? IDENTITY : ASCII_UPPER_CASE;
+        final int length = pattern.length;
+        this.pattern = new byte[length];
+        boolean masked = false;
+        for (int i = 0; i < length; ++i) {
+            final int bits = mask == null ? 0xff : mask[i] & 0xff;
+            this.pattern[i] = (byte) (fold[pattern[i] & 0xff] & bits);
+            masked |= bits != 0xff;
+        }
+        this.mask = masked ? mask.clone() : null;
+
+        int runLength = 0;
+        int longestRunLength = 0;
+        int longestRunOffset = 0;
+        for (int i = 0; masked && i < length; ++i) {
+            runLength = mask[i] == -1 ? runLength + 1 : 0;
+            if (runLength > longestRunLength) {
+                longestRunLength = runLength;
+                longestRunOffset = i + 1 - runLength;
+            }
+        }
+        core = longestRunLength > 0 ? new BytePattern(Arrays.copyOfRange(pattern, longestRunOffset, longestRunOffset + longestRunLength), null, caseSensitive)
+                : null;
+        coreOffset = longestRunOffset;
+
+        // shifts of the folded values, then of every byte through its folded value
+        final int[] forward = new int[256];
+        final int[] backward = new int[256];
+        Arrays.fill(forward, length);
+        Arrays.fill(backward, length);
+        for (int i = 0; i < length - 1; ++i) {
+            forward[this.pattern[i] & 0xff] = length - 1 - i;
+        }
+        for (int i = length - 1; i > 0; --i) {
+            backward[this.pattern[i] & 0xff] = i;
+        }
+        for (int i = 0; i < 256; ++i) {
+            forwardShift[i] = forward[fold[i] & 0xff];
+            backwardShift[i] = backward[fold[i] & 0xff];
+        }
+        if (masked && core == null) {
+            initMaskedShifts();
+        }
+
+        int offset = 0;
+        for (int i = 1; i < length; ++i) {
+            if (getCommonness(this.pattern[i]) < getCommonness(this.pattern[offset])) {
+                offset = i;
+            }
+        }
+        candidateOffset = offset;
+        final int candidate = this.pattern[offset] & 0xff;
+        candidateWord = candidate * ONES;
+        otherCaseWord = (!caseSensitive && candidate >= 'A' && candidate <= 'Z' ? candidate + 32 : candidate) * ONES;
+    }
+
+    /*
+     * Shifts of a pattern without a byte compared fully, from the pattern bytes each value can match
+     */
+    private void initMaskedShifts() {
+        final int length = pattern.length;
+        Arrays.fill(forwardShift, length);
+        Arrays.fill(backwardShift, length);
+        for (int i = 0; i < length - 1; ++i) {
+            for (int value = 0; value < 256; ++value) {
+                if ((fold[value] & mask[i]) == pattern[i]) {
+                    forwardShift[value] = length - 1 - i;
+                }
+            }
+        }
+        for (int i = length - 1; i > 0; --i) {
+            for (int value = 0; value < 256; ++value) {
+                if ((fold[value] & mask[i]) == pattern[i]) {
+                    backwardShift[value] = i;
+                }
+            }
+        }
+    }
+
+    /*
+     * How often a byte is expected in binary files, from 0 (rare) to 3 (zeros)
+     */
+    private static int getCommonness(final byte value) {
+        if (value == 0) {
+            return 3;
+        }
+        if (value == -1) {
+            return 2;
+        }
+
+        return value >= ' ' && value <= '~' ? 1 : 0;
+    }
+
+    /*
+     * Bit 7 of each byte of the result is set when that byte is 0 in the value, nothing else is set
+     */
+    private static long getZeroBytes(final long value) {
+        return ~((value & LOW_BITS) + LOW_BITS | value | LOW_BITS);
+    }
+
+    /*
+     * Bit 7 of each byte of the result is set when that byte of the data is the candidate byte
+     */
+    private long getCandidates(final long word) {
+        return getZeroBytes(word ^ candidateWord) | getZeroBytes(word ^ otherCaseWord);
+    }
+
+    private boolean matchesAt(final byte[] data, final int index) {
+        final byte[] folded = pattern;
+        final byte[] table = fold;
+        for (int j = 0; j < folded.length; ++j) {
+            if (table[data[index + j] & 0xff] != folded[j]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matchesMaskedAt(final byte[] data, final int index) {
+        final byte[] folded = pattern;
+        final byte[] table = fold;
+        for (int j = 0; j < folded.length; ++j) {
+            if ((table[data[index + j] & 0xff] & mask[j]) != folded[j]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Finds the first occurrence in a part of an array
+     *
+     * @param data where to search
+     * @param from index of the first byte searched
+     * @param to   index after the last byte searched
+     * @return index of the occurrence, -1 if there is none
+     */
+    int indexOf(final byte[] data, final int from, final int to) {
+        if (mask != null) {
+            return maskedIndexOf(data, from, to);
+        }
+        if (pattern.length <= MAXIMUM_SCANNED_LENGTH && !SCALAR) {
+            return scanIndexOf(data, from, to);
+        }
+
+        final byte[] folded = pattern;
+        final byte[] table = fold;
+        final int last = folded.length - 1;
+        int i = from;
+        while (i <= to - folded.length) {
+            final int end = i + last;
+            final int value = data[end] & 0xff;
+            if (table[value] == folded[last]) {
+                int j = last - 1;
+                while (j >= 0 && table[data[i + j] & 0xff] == folded[j]) {
+                    --j;
+                }
+                if (j < 0) {
+                    return i;
+                }
+            }
+            i += forwardShift[value];
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last occurrence in a part of an array
+     *
+     * @param data where to search
+     * @param from index of the first byte searched
+     * @param to   index after the last byte searched
+     * @return index of the occurrence, -1 if there is none
+     */
+    int lastIndexOf(final byte[] data, final int from, final int to) {
+        if (mask != null) {
+            return maskedLastIndexOf(data, from, to);
+        }
+        if (pattern.length <= MAXIMUM_SCANNED_LENGTH && !SCALAR) {
+            return scanLastIndexOf(data, from, to);
+        }
+
+        final byte[] folded = pattern;
+        final byte[] table = fold;
+        int i = to - folded.length;
+        while (i >= from) {
+            final int value = data[i] & 0xff;
+            if (table[value] == folded[0]) {
+                int j = 1;
+                while (j < folded.length && table[data[i + j] & 0xff] == folded[j]) {
+                    ++j;
+                }
+                if (j == folded.length) {
+                    return i;
+                }
+            }
+            i -= backwardShift[value];
+        }
+
+        return -1;
+    }
+
+    private int scanIndexOf(final byte[] data, final int from, final int to) {
+        // indexes of the candidate byte in the first and after the last window
+        int index = from + candidateOffset;
+        final int end = to - pattern.length + candidateOffset + 1;
+        for (; index <= end - Long.BYTES; index += Long.BYTES) {
+            long candidates = getCandidates((long) LONGS.get(data, index));
+            while (candidates != 0L) {
+                final int start = index + (Long.numberOfTrailingZeros(candidates) >>> 3) - candidateOffset;
+                if (matchesAt(data, start)) {
+                    return start;
+                }
+                candidates &= candidates - 1L;
+            }
+        }
+        for (; index < end; ++index) {
+            if (matchesAt(data, index - candidateOffset)) {
+                return index - candidateOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private int scanLastIndexOf(final byte[] data, final int from, final int to) {
+        // indexes of the candidate byte in the first window and after the last one
+        final int first = from + candidateOffset;
+        int end = to - pattern.length + candidateOffset + 1;
+        for (; end - Long.BYTES >= first; end -= Long.BYTES) {
+            long candidates = getCandidates((long) LONGS.get(data, end - Long.BYTES));
+            while (candidates != 0L) {
+                final long highest = Long.highestOneBit(candidates);
+                final int start = end - Long.BYTES + (Long.numberOfTrailingZeros(highest) >>> 3) - candidateOffset;
+                if (matchesAt(data, start)) {
+                    return start;
+                }
+                candidates ^= highest;
+            }
+        }
+        for (int index = end - 1; index >= first; --index) {
+            if (matchesAt(data, index - candidateOffset)) {
+                return index - candidateOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private int maskedIndexOf(final byte[] data, final int from, final int to) {
+        final int length = pattern.length;
+        if (core == null) {
+            for (int i = from; i <= to - length; i += forwardShift[data[i + length - 1] & 0xff]) {
+                if (matchesMaskedAt(data, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // the core is searched where the whole pattern fits around it
+        final int coreTo = to - length + coreOffset + core.length();
+        for (int i = core.indexOf(data, from + coreOffset, coreTo); i >= 0; i = core.indexOf(data, i + 1, coreTo)) {
+            if (matchesMaskedAt(data, i - coreOffset)) {
+                return i - coreOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    private int maskedLastIndexOf(final byte[] data, final int from, final int to) {
+        final int length = pattern.length;
+        if (core == null) {
+            for (int i = to - length; i >= from; i -= backwardShift[data[i] & 0xff]) {
+                if (matchesMaskedAt(data, i)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        final int coreFrom = from + coreOffset;
+        for (int i = core.lastIndexOf(data, coreFrom, to - length + coreOffset + core.length()); i >= 0; i = core.lastIndexOf(data, coreFrom,
+                i + core.length() - 1)) {
+            if (matchesMaskedAt(data, i - coreOffset)) {
+                return i - coreOffset;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * @return number of bytes of the pattern
+     */
+    int length() {
+        return pattern.length;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.Range;
+
+/**
+ * Reads a content or a snapshot sequentially, forward or backward. The cursor remembers the range
+ * it is in, so reading the next or the previous bytes continues from there instead of searching the
+ * ranges again, and positions close to the current one are reached by walking a few ranges. Reads go
+ * into buffers of the caller, nothing is allocated.
+ * <P>
+ * A cursor over a content follows its modifications. A cursor is not thread safe, but each thread
+ * may read the same snapshot with its own cursor.
+ *
+ * @see BinaryContent#cursor(long)
+ * @see BinaryContent.Snapshot#cursor(long)
+ */
+public final class ContentCursor {
+
+    private final BinaryContent content; // null when reading a snapshot
+    private final RangeTree ranges;
+    private final RangeTree.Cursor cursor;
+    private final ByteBuffer singleByte = ByteBuffer.allocate(1);
+    private long position;
+
+    ContentCursor(final BinaryContent content, final RangeTree ranges, final long position) {
+        this.content = content;
+        this.ranges = ranges;
+        cursor = ranges.cursor();
+        setPosition(position);
+    }
+
+    /**
+     * @return the position of the next byte read forward, and of the byte after the next one read
+     *         backward
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return number of bytes after the position
+     */
+    public long getRemaining() {
+        return Math.max(0L, length() - position);
+    }
+
+    /**
+     * @return length of the content or the snapshot in byte units
+     */
+    public long length() {
+        return content == null ? ranges.length() : content.length();
+    }
+
+    /**
+     * Reads the byte at the position and moves after it
+     *
+     * @return the byte as a value from 0 to 255, -1 at the end
+     * @throws IOException when a file cannot be read
+     */
+    public int read() throws IOException {
+        singleByte.clear();
+        if (read(position, singleByte) < 1) {
+            return -1;
+        }
+        ++position;
+
+        return singleByte.get(0) & 0xff;
+    }
+
+    /**
+     * Reads the bytes starting at the position into a buffer and moves after them
+     *
+     * @param dst where to write the bytes, until it is full or the end is reached
+     * @return number of bytes read
+     * @throws IOException when a file cannot be read
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (dst == null) {
+            throw new IllegalArgumentException("Parameter 'dst' must not be null.");
+        }
+
+        final int result = read(position, dst);
+        position += result;
+
+        return result;
+    }
+
+    /**
+     * Reads the bytes ending before the position into a buffer, in content order, and moves before
+     * them. Reading backward from the end gives the content in chunks from its last bytes to its
+     * first ones.
+     *
+     * @param dst where to write the bytes, as many as fit or as there are before the position
+     * @return number of bytes read
+     * @throws IOException when a file cannot be read
+     */
+    public int readBackward(final ByteBuffer dst) throws IOException {
+        if (dst == null) {
+            throw new IllegalArgumentException("Parameter 'dst' must not be null.");
+        }
+
+        final int length = (int) Math.min(dst.remaining(), Math.min(position, length()));
+        final long start = Math.min(position, length()) - length;
+        final int limit = dst.limit();
+        dst.limit(dst.position() + length);
+        final int result;
+        try {
+            result = read(start, dst);
+        } finally {
+            dst.limit(limit);
+        }
+        position = start;
+
+        return result;
+    }
+
+    private int read(final long start, final ByteBuffer dst) throws IOException {
+        if (content != null && content.myChanges != null) {
+            return content.get(dst, start); // bytes being typed in are not in the ranges yet
+        }
+
+        final int dstInitialRemaining = dst.remaining();
+        long positionSoFar = start;
+        while (dst.hasRemaining() && cursor.move(positionSoFar)) {
+            final Range range = cursor.getRange();
+            final long overlapBytes = positionSoFar - cursor.getPosition();
+            final int length = (int) Math.min(range.length - overlapBytes, Integer.MAX_VALUE);
+            final int read = range.source.read(range.dataOffset + overlapBytes, dst, length);
+            positionSoFar += read;
+            if (read < length && dst.hasRemaining()) {
+                break; // file shorter than expected
+            }
+        }
+
+        return dstInitialRemaining - dst.remaining();
+    }
+
+    /**
+     * Moves the cursor. Moving close to the current position is faster than moving far away.
+     *
+     * @param newPosition the position of the next byte read forward, 0 to {@link #length()}
+     */
+    public void setPosition(final long newPosition) {
+        if (newPosition < 0L) {
+            throw new IllegalArgumentException("Parameter 'newPosition' must not be negative, specified value is " + newPosition);
+        }
+        position = newPosition;
+    }
+
+    /**
+     * Moves the cursor forward or backward
+     *
+     * @param distance number of bytes, negative to move backward
+     */
+    public void skip(final long distance) {
+        setPosition(position + distance);
+    }
+}
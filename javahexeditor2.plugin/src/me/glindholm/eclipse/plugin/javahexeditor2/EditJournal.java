@@ -0,0 +1,440 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
+
+/**
+ * Append-only log of the modifications of a content since it was read from its file. Replaying the
+ * log onto the file gives the content back, with the undo history of the modifications, after a
+ * crash or in a new session. Replaying takes a time proportional to the number of modifications, not
+ * to the size of the file.
+ * <P>
+ * The journal starts with a header (magic number, path, length, modification time of the file and a
+ * CRC32 of its first and last pages), so a file modified by another program since is not replayed
+ * onto. Each record is its
+ * length, the record itself and its CRC32, so a record torn by a crash is ignored. A record is the
+ * modification type, with {@link #NEW_ACTION} set when the modification started a new undo action,
+ * followed by its parameters. Records are written through to the operating system, not synchronized
+ * to the disk.
+ * <P>
+ * Files inserted into the content are logged by name, they must still exist when the journal is
+ * replayed. If the journal cannot be written, it is deleted and the content goes on without one.
+ */
+final class EditJournal {
+
+    private static final long MAGIC = 0x4A48454544495432L; // "JHEEDIT2"
+    private static final int CHECKED_PAGE_SIZE = 4096;
+
+    private static final byte DELETE = 1;
+    private static final byte INSERT_BYTE = 2;
+    private static final byte INSERT_BYTES = 3;
+    private static final byte INSERT_FILE = 4;
+    private static final byte INSERT_ZEROS = 5;
+    private static final byte OVERWRITE_BITS = 6;
+    private static final byte OVERWRITE_BYTES = 7;
+    private static final byte OVERWRITE_FILE = 8;
+    private static final byte FILL = 9;
+    private static final byte UNDO = 10;
+    private static final byte REDO = 11;
+    private static final byte BEGIN_TRANSACTION = 12;
+    private static final byte COMMIT = 13;
+    private static final byte RESTORE_HISTORY = 14;
+    private static final byte REVERT_TO_SAVED = 15;
+    private static final byte NEW_ACTION = (byte) 0x80;
+
+    private final File file;
+    private FileChannel channel; // null when closed
+    private final ByteBuffer record = ByteBuffer.allocate(64);
+    private final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES);
+    private final CRC32 crc = new CRC32();
+    private boolean actionStarted;
+
+    private EditJournal(final File file, final FileChannel channel) {
+        this.file = file;
+        this.channel = channel;
+    }
+
+    /**
+     * Creates a new journal, replacing an existing one
+     *
+     * @param journalFile where to write the journal, not <code>null</code>
+     * @param baseFile    the file the content was read from or saved to, not <code>null</code>
+     * @param baseLength  length of the file
+     * @return the journal, not <code>null</code>
+     * @throws IOException when the journal cannot be written
+     */
+    static EditJournal create(final File journalFile, final File baseFile, final long baseLength) throws IOException {
+        final File parent = journalFile.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory '" + parent.getAbsolutePath() + "'");
+        }
+
+        final FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        try {
+            final byte[] path = baseFile.getCanonicalPath().getBytes(StandardCharsets.UTF_8);
+            final ByteBuffer header = ByteBuffer.allocate(Long.BYTES + Integer.BYTES + path.length + 3 * Long.BYTES);
+            header.putLong(MAGIC).putInt(path.length).put(path).putLong(baseLength).putLong(baseFile.lastModified())
+                    .putLong(getChecksum(baseFile, baseLength)).flip();
+            writeFully(channel, header);
+        } catch (final IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        return new EditJournal(journalFile, channel);
+    }
+
+    /**
+     * Replays a journal onto a content read from its file, and continues it
+     *
+     * @param journalFile the journal, not <code>null</code>
+     * @param baseFile    the file the content was read from, not <code>null</code>
+     * @param content     the content, not modified yet, with its undo history on
+     * @return the journal, to be continued, or <code>null</code> if it does not belong to the file or
+     *         the file has been modified since it was started
+     * @throws IOException when the journal cannot be read or replayed
+     */
+    static EditJournal replay(final File journalFile, final File baseFile, final BinaryContent content) throws IOException {
+        final FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        boolean replayed = false;
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(Long.BYTES + Integer.BYTES);
+            if (!readFully(channel, header) || header.getLong() != MAGIC) {
+                return null;
+            }
+            final int pathLength = header.getInt();
+            if (pathLength < 0 || pathLength > channel.size()) {
+                return null;
+            }
+            final ByteBuffer path = ByteBuffer.allocate(pathLength + 3 * Long.BYTES);
+            if (!readFully(channel, path)) {
+                return null;
+            }
+            final String baseName = new String(path.array(), 0, pathLength, StandardCharsets.UTF_8);
+            path.position(pathLength);
+            final long baseLength = path.getLong();
+            if (!baseName.equals(baseFile.getCanonicalPath()) || baseLength != content.length() || path.getLong() != baseFile.lastModified()
+                    || path.getLong() != getChecksum(baseFile, baseLength)) {
+                return null;
+            }
+
+            final ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES);
+            final CRC32 crc = new CRC32();
+            long end = channel.position();
+            while (readFully(channel, frame.clear())) {
+                final int length = frame.getInt();
+                if (length < 1 || length > channel.size() - channel.position() - Integer.BYTES) {
+                    break; // torn by a crash
+                }
+                final ByteBuffer record = ByteBuffer.allocate(length);
+                readFully(channel, record);
+                readFully(channel, frame.clear());
+                crc.reset();
+                crc.update(record.array());
+                if ((int) crc.getValue() != frame.getInt()) {
+                    break;
+                }
+                apply(record, content);
+                end = channel.position();
+            }
+
+            // continue after the last complete record
+            channel.truncate(end);
+            channel.position(end);
+            replayed = true;
+
+            return new EditJournal(journalFile, channel);
+        } finally {
+            if (!replayed) {
+                channel.close();
+            }
+        }
+    }
+
+    private static void apply(final ByteBuffer record, final BinaryContent content) throws IOException {
+        final byte type = record.get();
+        if ((type & NEW_ACTION) != 0 && content.actions != null) {
+            content.actions.endAction();
+        }
+        switch (type & ~NEW_ACTION) {
+        case DELETE:
+            content.delete(record.getLong(), record.getLong());
+            break;
+        case INSERT_BYTE:
+            content.insert(record.get(), record.getLong());
+            break;
+        case INSERT_BYTES: {
+            final long position = record.getLong();
+            content.insert(record.slice(), position);
+            break;
+        }
+        case INSERT_FILE: {
+            final long position = record.getLong();
+            content.insert(new File(getString(record)), position);
+            break;
+        }
+        case INSERT_ZEROS:
+            content.insertZeros(record.getLong(), record.getLong());
+            break;
+        case OVERWRITE_BITS:
+            content.overwrite(record.get(), record.get(), record.get(), record.getLong());
+            break;
+        case OVERWRITE_BYTES: {
+            final long position = record.getLong();
+            content.overwrite(record.slice(), position);
+            break;
+        }
+        case OVERWRITE_FILE: {
+            final long position = record.getLong();
+            content.overwrite(new File(getString(record)), position);
+            break;
+        }
+        case FILL: {
+            final long position = record.getLong();
+            final long length = record.getLong();
+            final byte[] pattern = new byte[record.remaining()];
+            record.get(pattern);
+            content.fill(pattern, position, length);
+            break;
+        }
+        case UNDO:
+            content.undo();
+            break;
+        case REDO:
+            content.redo();
+            break;
+        case BEGIN_TRANSACTION:
+            content.beginTransaction();
+            break;
+        case COMMIT:
+            content.commit();
+            break;
+        case RESTORE_HISTORY:
+            content.restoreHistory(record.getInt());
+            break;
+        case REVERT_TO_SAVED:
+            content.revertToSaved(record.getLong(), record.getLong());
+            break;
+        default:
+            throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    private static String getString(final ByteBuffer record) {
+        return new String(record.array(), record.arrayOffset() + record.position(), record.remaining(), StandardCharsets.UTF_8);
+    }
+
+    /*
+     * CRC32 of the first and last pages of a file, most modifications of the same length change them
+     */
+    private static long getChecksum(final File file, final long length) throws IOException {
+        final CRC32 checksum = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer page = ByteBuffer.allocate((int) Math.min(length, CHECKED_PAGE_SIZE));
+            if (readFully(channel, page)) {
+                checksum.update(page);
+            }
+            channel.position(Math.max(0L, length - CHECKED_PAGE_SIZE));
+            if (readFully(channel, page.clear())) {
+                checksum.update(page);
+            }
+        }
+
+        return checksum.getValue();
+    }
+
+    private static boolean readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+
+        return true;
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Tells that the next modification starts a new undo action
+     */
+    void actionStarted() {
+        actionStarted = true;
+    }
+
+    /**
+     * Closes the journal and deletes its file
+     */
+    void discard() {
+        close();
+        if (file.exists() && !file.delete()) {
+            Log.logError("Cannot delete journal '{0}'", new Object[] { file.getAbsolutePath() }, null);
+        }
+    }
+
+    private void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (final IOException ex) {
+            Log.logError("Cannot close journal '{0}'", new Object[] { file.getAbsolutePath() }, ex);
+        }
+        channel = null;
+    }
+
+    /**
+     * @return the journal file, not <code>null</code>
+     */
+    File getFile() {
+        return file;
+    }
+
+    private ByteBuffer start(final byte type) {
+        record.clear();
+        record.put(actionStarted ? (byte) (type | NEW_ACTION) : type);
+        actionStarted = false;
+
+        return record;
+    }
+
+    private void write(final ByteBuffer data) {
+        if (channel == null) {
+            return;
+        }
+
+        record.flip();
+        crc.reset();
+        crc.update(record.duplicate());
+        final ByteBuffer payload = data == null ? ByteBuffer.allocate(0) : data.duplicate();
+        crc.update(payload.duplicate());
+        frame.clear();
+        frame.putInt(record.remaining() + payload.remaining()).flip();
+        final ByteBuffer check = ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).flip();
+        try {
+            final ByteBuffer[] buffers = { frame, record, payload, check };
+            while (check.hasRemaining()) {
+                channel.write(buffers);
+            }
+        } catch (final IOException ex) {
+            // a journal with a gap would replay wrong bytes
+            Log.logError("Cannot write journal '{0}', unsaved modifications will not be recovered", new Object[] { file.getAbsolutePath() }, ex);
+            discard();
+        }
+    }
+
+    private void write() {
+        write(null);
+    }
+
+    // one record per modification, written after the content has been modified
+
+    void delete(final long position, final long length) {
+        start(DELETE).putLong(position).putLong(length);
+        write();
+    }
+
+    void insert(final byte value, final long position) {
+        start(INSERT_BYTE).put(value).putLong(position);
+        write();
+    }
+
+    void insert(final ByteBuffer bytes, final long position) {
+        start(INSERT_BYTES).putLong(position);
+        write(bytes);
+    }
+
+    void insert(final File insertedFile, final long position) {
+        start(INSERT_FILE).putLong(position);
+        write(ByteBuffer.wrap(insertedFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void insertZeros(final long length, final long position) {
+        start(INSERT_ZEROS).putLong(length).putLong(position);
+        write();
+    }
+
+    void overwrite(final byte value, final int offset, final int length, final long position) {
+        start(OVERWRITE_BITS).put(value).put((byte) offset).put((byte) length).putLong(position);
+        write();
+    }
+
+    void overwrite(final ByteBuffer bytes, final long position) {
+        start(OVERWRITE_BYTES).putLong(position);
+        write(bytes);
+    }
+
+    void overwrite(final File overwritingFile, final long position) {
+        start(OVERWRITE_FILE).putLong(position);
+        write(ByteBuffer.wrap(overwritingFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    void fill(final byte[] pattern, final long position, final long length) {
+        start(FILL).putLong(position).putLong(length);
+        write(ByteBuffer.wrap(pattern));
+    }
+
+    void undo() {
+        start(UNDO);
+        write();
+    }
+
+    void redo() {
+        start(REDO);
+        write();
+    }
+
+    void beginTransaction() {
+        start(BEGIN_TRANSACTION);
+        write();
+    }
+
+    void commit() {
+        start(COMMIT);
+        write();
+    }
+
+    void restoreHistory(final int index) {
+        start(RESTORE_HISTORY).putInt(index);
+        write();
+    }
+
+    void revertToSaved(final long position, final long length) {
+        start(REVERT_TO_SAVED).putLong(position).putLong(length);
+        write();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Least recently used cache of file pages, shared by all contents. File backed ranges read through
+ * it, so the same bytes read again by a redraw, the status line or the finder do not go to the
+ * disk. Files are assumed not to change while they are in use, the cache has to be invalidated when
+ * a file is written.
+ */
+public final class FileBlockCache {
+
+    /**
+     * Size of a cached page, 64 KB
+     */
+    public static final int PAGE_SIZE = 64 * 1024;
+
+    /**
+     * Default value of {@link #getMaximumSize()}, 16 MB
+     */
+    public static final long DEFAULT_MAXIMUM_SIZE = 16 * 1024 * 1024;
+
+    private static final class PageKey {
+        final File file;
+        final long index;
+
+        PageKey(final File file, final long index) {
+            this.file = file;
+            this.index = index;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof final PageKey other) {
+                return index == other.index && file.equals(other.file);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return file.hashCode() * 31 + Long.hashCode(index);
+        }
+    }
+
+    private static final LinkedHashMap<PageKey, byte[]> pages = new LinkedHashMap<>(64, 0.75f, true);
+    private static final Map<File, Long> generations = new HashMap<>(); // incremented by invalidate
+    private static long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private static long size;
+    private static long hitCount;
+    private static long missCount;
+
+    private FileBlockCache() {
+    }
+
+    /**
+     * Removes all pages from the cache. The counters are kept.
+     */
+    public static void clear() {
+        synchronized (pages) {
+            pages.clear();
+            size = 0L;
+        }
+    }
+
+    private static void evict() {
+        final Iterator<byte[]> iterator = pages.values().iterator();
+        while (size > maximumSize && iterator.hasNext()) {
+            size -= iterator.next().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return number of reads served from the cache, one per page
+     */
+    public static long getHitCount() {
+        synchronized (pages) {
+            return hitCount;
+        }
+    }
+
+    /**
+     * @return maximum number of bytes kept in the cache
+     */
+    public static long getMaximumSize() {
+        synchronized (pages) {
+            return maximumSize;
+        }
+    }
+
+    /**
+     * @return number of reads that had to go to the disk, one per page
+     */
+    public static long getMissCount() {
+        synchronized (pages) {
+            return missCount;
+        }
+    }
+
+    private static byte[] getPage(final File file, final FileChannel channel, final long index) throws IOException {
+        final PageKey key = new PageKey(file, index);
+        final Long generation;
+        synchronized (pages) {
+            final byte[] page = pages.get(key);
+            if (page != null) {
+                ++hitCount;
+                return page;
+            }
+            ++missCount;
+            generation = generations.get(file);
+        }
+
+        // read outside the lock, a concurrent miss on the same page only costs a second read
+        final ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        final long start = index * PAGE_SIZE;
+        while (buffer.hasRemaining() && channel.read(buffer, start + buffer.position()) > 0) {
+            // until the page is full or the end of the file is reached
+        }
+        final byte[] page = buffer.position() == PAGE_SIZE ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+
+        synchronized (pages) {
+            // not if the file has been written meanwhile, the page may be stale
+            if (maximumSize > 0L && Objects.equals(generation, generations.get(file))) {
+                final byte[] previous = pages.put(key, page);
+                size += page.length - (previous == null ? 0 : previous.length);
+                evict();
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * @return number of bytes currently kept in the cache
+     */
+    public static long getSize() {
+        synchronized (pages) {
+            return size;
+        }
+    }
+
+    /**
+     * Removes all pages of a file. Must be called after the file has been written.
+     *
+     * @param file the file, not <code>null</code>
+     */
+    public static void invalidate(final File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+
+        synchronized (pages) {
+            generations.merge(file, 1L, Long::sum);
+            for (final Iterator<Map.Entry<PageKey, byte[]>> iterator = pages.entrySet().iterator(); iterator.hasNext();) {
+                final Map.Entry<PageKey, byte[]> entry = iterator.next();
+                if (entry.getKey().file.equals(file)) {
+                    size -= entry.getValue().length;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a sequence of bytes of a file through the cache
+     *
+     * @param file     the file, identifies the pages
+     * @param channel  open channel on the file, used on a miss
+     * @param dst      where to write to
+     * @param position first byte in the file
+     * @param length   maximum number of bytes, also limited by dst and the end of the file
+     * @return number of bytes read
+     * @throws IOException when the file cannot be read
+     */
+    static int read(final File file, final FileChannel channel, final ByteBuffer dst, final long position, final int length) throws IOException {
+        int remaining = Math.min(length, dst.remaining());
+        if (getMaximumSize() <= 0L) {
+            final int limit = dst.limit();
+            dst.limit(dst.position() + remaining);
+            try {
+                return Math.max(0, channel.read(dst, position));
+            } finally {
+                dst.limit(limit);
+            }
+        }
+
+        int result = 0;
+        long positionSoFar = position;
+        while (remaining > 0) {
+            final byte[] page = getPage(file, channel, positionSoFar / PAGE_SIZE);
+            final int offset = (int) (positionSoFar % PAGE_SIZE);
+            if (offset >= page.length) {
+                break;
+            }
+            final int count = Math.min(remaining, page.length - offset);
+            dst.put(page, offset, count);
+            result += count;
+            remaining -= count;
+            positionSoFar += count;
+            if (page.length < PAGE_SIZE && offset + count == page.length) {
+                break; // end of file
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Sets the maximum number of bytes kept in the cache. Pages are evicted right away if needed. A
+     * value of 0 disables the cache.
+     *
+     * @param newMaximumSize in bytes, not negative
+     */
+    public static void setMaximumSize(final long newMaximumSize) {
+        if (newMaximumSize < 0L) {
+            throw new IllegalArgumentException("Parameter 'newMaximumSize' must not be negative, specified value is " + newMaximumSize);
+        }
+
+        synchronized (pages) {
+            maximumSize = newMaximumSize;
+            evict();
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
+
+/**
+ * Read only file channels shared by all contents, one per canonical file. Each user holds a
+ * {@link Lease}, the channel is closed when the last lease is released. A lease is released
+ * explicitly, or by a {@link Cleaner} once its holder is no longer reachable, so an open file never
+ * waits for finalization.
+ */
+public final class FileChannelRegistry {
+
+    /**
+     * One reference to a shared channel
+     */
+    static final class Lease {
+        final File file; // canonical
+        private final Entry entry;
+        private boolean released; // guarded by entries
+
+        Lease(final Entry entry) {
+            file = entry.file;
+            this.entry = entry;
+        }
+
+        /**
+         * @return the open channel, reopened if a thread interrupted while reading closed it
+         * @throws IOException when the lease has been released or the file cannot be opened again
+         */
+        FileChannel getChannel() throws IOException {
+            synchronized (entries) {
+                if (released) {
+                    throw new ClosedChannelException();
+                }
+                if (!entry.channel.isOpen()) {
+                    if (entry.replaced) {
+                        throw new ClosedChannelException(); // the file now has other contents
+                    }
+                    entry.channel = open(file);
+                }
+                return entry.channel;
+            }
+        }
+
+        /**
+         * @return true: the file has been replaced since the channel was opened, the channel still
+         *         reads the previous file
+         */
+        boolean isReplaced() {
+            synchronized (entries) {
+                return entry.replaced;
+            }
+        }
+
+        /**
+         * Gives the reference back. Releasing a lease again has no effect.
+         */
+        void release() {
+            final FileChannel channel;
+            synchronized (entries) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                if (--entry.references > 0) {
+                    return;
+                }
+                if (entries.get(file) == entry) {
+                    entries.remove(file);
+                }
+                channel = entry.channel;
+            }
+            try {
+                channel.close();
+            } catch (final IOException ex) {
+                Log.logError("Cannot close file channel '{0}'", new Object[] { file.getAbsolutePath() }, ex);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final File file;
+        FileChannel channel;
+        int references;
+        boolean replaced;
+
+        Entry(final File file, final FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+
+    private static final HashMap<File, Entry> entries = new HashMap<>();
+    private static final Cleaner cleaner = Cleaner.create();
+
+    private FileChannelRegistry() {
+    }
+
+    /**
+     * Gets a reference to the channel of a file, opening it if nobody else uses it
+     *
+     * @param file the file, not <code>null</code>
+     * @return the lease, to be released
+     * @throws IOException when the file cannot be opened
+     */
+    static Lease acquire(final File file) throws IOException {
+        final File canonicalFile = file.getCanonicalFile();
+        synchronized (entries) {
+            Entry entry = entries.get(canonicalFile);
+            if (entry == null) {
+                entry = new Entry(canonicalFile, open(canonicalFile));
+                entries.put(canonicalFile, entry);
+            }
+            ++entry.references;
+            return new Lease(entry);
+        }
+    }
+
+    private static File canonical(final File file) {
+        try {
+            return file.getCanonicalFile();
+        } catch (final IOException ex) {
+            return file.getAbsoluteFile();
+        }
+    }
+
+    /**
+     * @return number of files currently open for reading by all contents
+     */
+    public static int getChannelCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * @param file the file, canonical
+     * @return number of leases of the channel of the file not released yet, 0 when it is not open
+     */
+    static int getLeaseCount(final File file) {
+        synchronized (entries) {
+            final Entry entry = entries.get(file);
+            return entry == null ? 0 : entry.references;
+        }
+    }
+
+    /**
+     * Tells whether a file is currently read by any content, including its undo history
+     *
+     * @param file the file, not <code>null</code>
+     * @return true: the file must not be modified
+     */
+    public static boolean isInUse(final File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("Parameter 'file' must not be null.");
+        }
+
+        final File canonicalFile = canonical(file);
+        synchronized (entries) {
+            return entries.containsKey(canonicalFile);
+        }
+    }
+
+    private static FileChannel open(final File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    }
+
+    /**
+     * Tells that a file has been replaced by another one, for instance by a save. Open channels keep
+     * reading the previous file as long as they have leases, the next lease opens the new file.
+     *
+     * @param file the file, not <code>null</code>
+     * @throws IOException when the canonical file cannot be determined
+     */
+    static void replaced(final File file) throws IOException {
+        final File canonicalFile = file.getCanonicalFile();
+        synchronized (entries) {
+            final Entry entry = entries.remove(canonicalFile);
+            if (entry != null) {
+                entry.replaced = true;
+            }
+        }
+    }
+
+    /**
+     * Makes sure a lease is released at the latest when its holder is no longer reachable
+     *
+     * @param holder the object using the lease, must not be referenced by the lease
+     * @param lease  the lease
+     * @return the registration, cleaning it releases the lease right away
+     */
+    static Cleaner.Cleanable register(final Object holder, final Lease lease) {
+        return cleaner.register(holder, lease::release);
+    }
+}
@@ -83,6 +83,7 @@ final class FindReplaceDialog extends Dialog {
     boolean lastReplaceHexButtonSelected = true;
     boolean lastIgnoreCase = false;
     boolean searching = false;
+    boolean findingAll = false;
 
     // Visual components
     Shell shell;
@@ -93,6 +94,7 @@ final class FindReplaceDialog extends Dialog {
     Button backwardRadioButton;
     private Group optionsGroup;
     Button ignoreCaseCheckBox;
+    Button inSelectionCheckBox;
 
     private Composite feedbackComposite;
     Label feedbackLabel;
@@ -101,6 +103,7 @@ final class FindReplaceDialog extends Dialog {
     private Button progressBarStopButton;
 
     private Button findButton;
+    private Button findAllButton;
     private Button replaceButton;
     private Button replaceAllButton;
     private Button closeButton;
@@ -185,7 +188,14 @@ final class FindReplaceDialog extends Dialog {
             hexRadioButton.addSelectionListener(new SelectionAdapter() {
                 @Override
                 public void widgetSelected(final SelectionEvent e) {
-                    if (ByteArrayUtility.parseString(textCombo.getText()) == null) {
+                    // only the find value may have wildcards
+                    try {
+                        if (TextHexInputGroup.this == findGroup) {
+                            ByteArrayUtility.parsePattern(textCombo.getText());
+                        } else {
+                            ByteArrayUtility.parseString(textCombo.getText());
+                        }
+                    } catch (final NumberFormatException ex) {
                         textCombo.setText(Texts.EMPTY);
                     }
                 }
@@ -264,7 +274,12 @@ final class FindReplaceDialog extends Dialog {
         });
         long max = myTarget.myContent.length();
         long min = myTarget.getCaretPos();
-        if (backwardRadioButton.getSelection()) {
+        if (findingAll) {
+            min = inSelectionCheckBox.getSelection() ? myTarget.getSelection().start : 0L;
+            if (inSelectionCheckBox.getSelection()) {
+                max = myTarget.getSelection().end;
+            }
+        } else if (backwardRadioButton.getSelection()) {
             max = min;
             min = 0L;
         }
@@ -288,11 +303,15 @@ final class FindReplaceDialog extends Dialog {
                 int selection = 0;
                 if (myTarget.myFinder != null) {
                     selection = (int) (myTarget.myFinder.getSearchPosition() >>> finalFactor);
-                    if (backwardRadioButton.getSelection()) {
+                    if (backwardRadioButton.getSelection() && !findingAll) {
                         selection = progressBar.getMaximum() - selection;
                     }
                 }
                 progressBar.setSelection(selection);
+                final MatchIndex matches = myTarget.myMatchIndex;
+                if (findingAll && matches != null) {
+                    sendInfoMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_COUNTING_MATCHES, NumberUtility.getDecimalString(matches.size())));
+                }
                 Display.getCurrent().timerExec(1000, this);
             }
         });
@@ -377,6 +396,10 @@ final class FindReplaceDialog extends Dialog {
         ignoreCaseCheckBox = new Button(optionsGroup, SWT.CHECK);
         ignoreCaseCheckBox.setText(Texts.FIND_REPLACE_DIALOG_IGNORE_CASE_CHECKBOX_LABEL);
         ignoreCaseCheckBox.addSelectionListener(defaultSelectionAdapter);
+
+        inSelectionCheckBox = new Button(optionsGroup, SWT.CHECK);
+        inSelectionCheckBox.setText(Texts.FIND_REPLACE_DIALOG_IN_SELECTION_CHECKBOX_LABEL);
+        inSelectionCheckBox.addSelectionListener(defaultSelectionAdapter);
     }
 
     /**
@@ -450,7 +473,7 @@ final class FindReplaceDialog extends Dialog {
     private void createButtonBarComposite() {
 
         final Composite buttonBar = new Composite(shell, SWT.NONE);
-        buttonBar.setLayout(new GridLayout(5, false));
+        buttonBar.setLayout(new GridLayout(6, false));
         buttonBar.setLayoutData(new GridData(SWT.FILL, SWT.FILL, true, false, 2, 1));
 
         // This Label does not show anything.
@@ -468,6 +491,16 @@ final class FindReplaceDialog extends Dialog {
             }
         });
 
+        findAllButton = new Button(buttonBar, SWT.NONE);
+        findAllButton.setText(Texts.FIND_REPLACE_DIALOG_FIND_ALL_BUTTON_LABEL);
+        findAllButton.addSelectionListener(defaultSelectionAdapter);
+        findAllButton.addSelectionListener(new SelectionAdapter() {
+            @Override
+            public void widgetSelected(final SelectionEvent e) {
+                doFindAll();
+            }
+        });
+
         replaceButton = new Button(buttonBar, SWT.NONE);
         replaceButton.setText(Texts.FIND_REPLACE_DIALOG_REPLACE_BUTTON_LABEL);
         replaceButton.addSelectionListener(defaultSelectionAdapter);
@@ -571,6 +604,34 @@ final class FindReplaceDialog extends Dialog {
         endOfRun();
     }
 
+    void doFindAll() {
+        findingAll = true;
+        prepareToRun();
+        progressBarStopButton.setText(Texts.FIND_REPLACE_DIALOG_STOP_SEARCHING_BUTTON_LABEL);
+        final String findLiteral = findGroup.textCombo.getText();
+
+        if (findLiteral.length() > 0) {
+            try {
+                final MatchIndex matches = myTarget.findAll(findLiteral, findGroup.hexRadioButton.getSelection(), ignoreCaseCheckBox.getSelection(),
+                        inSelectionCheckBox.getSelection() && myTarget.isSelected());
+                if (matches.size() > 0L) {
+                    sendInfoMessage(
+                            TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_MATCHES_FOUND, NumberUtility.getDecimalString(matches.size()), findLiteral));
+                } else {
+                    sendErrorMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_NOT_FOUND, findLiteral));
+                }
+            } catch (final NumberFormatException ex) {
+                sendErrorMessage(ex.getMessage());
+            } catch (final IOException ex) {
+                sendErrorMessage(TextUtility.format(Texts.FIND_REPLACE_DIALOG_MESSAGE_ERROR_WHILE_SEARCHING, findLiteral, ex.getLocalizedMessage()));
+            }
+        } else {
+            sendErrorMessage(Texts.FIND_REPLACE_DIALOG_MESSAGE_SPECIFY_VALUE_TO_FIND);
+        }
+        findingAll = false;
+        endOfRun();
+    }
+
     void doReplace() {
         replace();
         doFind();
@@ -618,8 +679,10 @@ final class FindReplaceDialog extends Dialog {
         backwardRadioButton.setEnabled(!searching);
 
         ignoreCaseCheckBox.setEnabled(!searching);
+        inSelectionCheckBox.setEnabled(!searching);
 
         findButton.setEnabled(!searching);
+        findAllButton.setEnabled(!searching);
         replaceButton.setEnabled(!searching);
         replaceAllButton.setEnabled(!searching);
 
@@ -634,6 +697,8 @@ final class FindReplaceDialog extends Dialog {
             selectionLength = myTarget.getSelection().getLength();
         }
         findButton.setEnabled(somethingToFind);
+        findAllButton.setEnabled(somethingToFind);
+        inSelectionCheckBox.setEnabled(selectionLength > 0L);
         replaceButton.setEnabled(selectionLength > 0L && somethingToFind);
         replaceAllButton.setEnabled(somethingToFind);
     }
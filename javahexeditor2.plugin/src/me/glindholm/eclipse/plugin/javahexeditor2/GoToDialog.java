@@ -55,6 +55,8 @@ final class GoToDialog extends Dialog {
     private Button decRadioButton;
     Button showButton;
     Button gotoButton;
+    private Button previousAnnotationButton;
+    private Button nextAnnotationButton;
     private Button closeButton;
     private Composite composite1;
     Text text;
@@ -75,6 +77,8 @@ final class GoToDialog extends Dialog {
     String lastLocationText;
     long limit = -1L;
     long tempResult = -1L;
+    private BinaryContent content;
+    private long annotationPosition;
 
     public GoToDialog(final Shell aShell) {
         super(aShell);
@@ -143,6 +147,22 @@ final class GoToDialog extends Dialog {
         return buttonPressed;
     }
 
+    /**
+     * Enter the start of the annotation before or after the last one shown, or the initial position
+     */
+    void showAnnotation(final boolean next) {
+        final Annotation annotation = next ? content.getNextAnnotation(annotationPosition) : content.getPreviousAnnotation(annotationPosition);
+        if (annotation == null) {
+            label2.setText(Texts.GOTO_DIALOG_MESSAGE_NO_MORE_ANNOTATIONS);
+            return;
+        }
+
+        annotationPosition = annotation.getStart();
+        text.setText(hexRadioButton.getSelection() ? NumberUtility.getHexString(annotationPosition) : NumberUtility.getDecimalString(annotationPosition));
+        text.selectAll();
+        label2.setText(annotation.getLabel());
+    }
+
     /**
      * This method initializes composite2
      *
@@ -183,6 +203,26 @@ final class GoToDialog extends Dialog {
             }
         });
 
+        previousAnnotationButton = new Button(composite2, SWT.NONE);
+        previousAnnotationButton.setText(Texts.GOTO_DIALOG_PREVIOUS_ANNOTATION_BUTTON_LABEL);
+        previousAnnotationButton.addSelectionListener(defaultSelectionAdapter);
+        previousAnnotationButton.addSelectionListener(new org.eclipse.swt.events.SelectionAdapter() {
+            @Override
+            public void widgetSelected(final org.eclipse.swt.events.SelectionEvent e) {
+                showAnnotation(false);
+            }
+        });
+
+        nextAnnotationButton = new Button(composite2, SWT.NONE);
+        nextAnnotationButton.setText(Texts.GOTO_DIALOG_NEXT_ANNOTATION_BUTTON_LABEL);
+        nextAnnotationButton.addSelectionListener(defaultSelectionAdapter);
+        nextAnnotationButton.addSelectionListener(new org.eclipse.swt.events.SelectionAdapter() {
+            @Override
+            public void widgetSelected(final org.eclipse.swt.events.SelectionEvent e) {
+                showAnnotation(true);
+            }
+        });
+
         closeButton = new Button(composite2, SWT.NONE);
         closeButton.setText(Texts.BUTTON_CLOSE_LABEL);
         closeButton.addSelectionListener(new org.eclipse.swt.events.SelectionAdapter() {
@@ -263,7 +303,22 @@ final class GoToDialog extends Dialog {
     }
 
     public long open(final Shell parentShell, final long limit) {
+        return open(parentShell, limit, null, 0L);
+    }
+
+    /**
+     * Opens the dialog with buttons to go through the annotations of a content
+     *
+     * @param parentShell the shell to center the dialog in
+     * @param limit       the highest location
+     * @param content     the content with the annotations, <code>null</code> for none
+     * @param position    where to start looking for the previous or next annotation
+     * @return the location, -1 when the dialog was closed
+     */
+    public long open(final Shell parentShell, final long limit, final BinaryContent content, final long position) {
         this.limit = limit;
+        this.content = content;
+        annotationPosition = position;
         finalResult = -1L;
         buttonPressed = 0;
         if (shell == null || shell.isDisposed()) {
@@ -277,6 +332,9 @@ final class GoToDialog extends Dialog {
             decRadioButton.setSelection(true);
         }
         label.setText(TextUtility.format(Texts.GOTO_DIALOG_MESSAGE_ENTER_LOCATION, NumberUtility.getDecimalAndHexRangeString(0, this.limit)));
+        final boolean annotated = content != null && content.getAnnotationCount() > 0;
+        previousAnnotationButton.setEnabled(annotated);
+        nextAnnotationButton.setEnabled(annotated);
         text.setText(lastLocationText);
         text.selectAll();
         text.setFocus();
@@ -288,6 +346,8 @@ final class GoToDialog extends Dialog {
             }
         }
 
+        this.content = null;
+
         return finalResult;
     }
 }
@@ -27,7 +27,9 @@ import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.StyleRange;
@@ -129,8 +131,11 @@ public final class HexTexts extends Composite {
     BinaryContentFinder myFinder;
     boolean myInserting = false;
     private final KeyListener myKeyAdapter = new MyKeyAdapter();
+    private final MyContentListener myContentListener = new MyContentListener();
+    private long myDrawnVersion = -1L; // version of the content shown by the text areas, -1 if not all of it
     int myLastFocusedTextArea = -1; // 1 or 2;
     private long myLastLocationPosition = -1L;
+    MatchIndex myMatchIndex; // of myFinder, while and after a complete findAll()
     private final List<SelectionListener> myLongSelectionListeners;
     private long myPreviousFindEnd = -1;
     private boolean myPreviousFindIgnoredCase = false;
@@ -148,12 +153,14 @@ public final class HexTexts extends Composite {
     private int numberOfLines = 16;
     private int numberOfLines_1 = numberOfLines - 1;
     private boolean stopSearching = false;
+    private ContentCursor myCursor; // reads single bytes of the content
     private final byte[] tmpRawBuffer = new byte[MAX_SCREEN_RESOLUTION / MIN_CHAR_SIZE / 3 * MAX_SCREEN_RESOLUTION / MIN_CHAR_SIZE];
     private int verticalBarFactor = 0;
 
     // visual components
     private final Color colorCaretLine;
     private final Color colorHighlight;
+    private final Map<Integer, Color> annotationColors = new HashMap<>(); // by 0xRRGGBB value
     private Font fontCurrent; // disposed externally
     private Font fontDefault; // disposed internally
 
@@ -249,6 +256,36 @@ public final class HexTexts extends Composite {
         composeByteToCharMap();
     }
 
+    /*
+     * Collects the changes of the content until the next time the display runs its queue, so a burst
+     * of modifications updates the screen once
+     */
+    private class MyContentListener implements BinaryContent.ModifyListener {
+        private BinaryContent.Change pendingChange; // null when nothing is queued
+
+        @Override
+        public void modified() {
+            // the change is given to modified(Change)
+        }
+
+        @Override
+        public void modified(final BinaryContent.Change change) {
+            if (pendingChange != null) {
+                pendingChange = pendingChange.followedBy(change);
+                return;
+            }
+
+            pendingChange = change;
+            if (!isDisposed()) {
+                getDisplay().asyncExec(() -> {
+                    final BinaryContent.Change queued = pendingChange;
+                    pendingChange = null;
+                    contentChanged(queued);
+                });
+            }
+        }
+    }
+
     private class MyKeyAdapter extends KeyAdapter {
         public MyKeyAdapter() {
         }
@@ -558,6 +595,9 @@ public final class HexTexts extends Composite {
         addDisposeListener(e -> {
             colorCaretLine.dispose();
             colorHighlight.dispose();
+            for (final Color color : annotationColors.values()) {
+                color.dispose();
+            }
             if (fontDefault != null && !fontDefault.isDisposed()) {
                 fontDefault.dispose();
             }
@@ -981,6 +1021,23 @@ public final class HexTexts extends Composite {
         return true;
     }
 
+    /**
+     * Brings the selection back to the bytes of the file opened or saved last, as one undo action
+     *
+     * @return did revert something
+     * @see BinaryContent#revertToSaved(long, long)
+     */
+    public boolean revertSelected() {
+        if (myStart >= myEnd || !myContent.revertToSaved(myStart, myEnd - myStart)) {
+            return false;
+        }
+        myUpANibble = 0;
+        ensureWholeScreenIsVisible();
+        restoreStateAfterModify();
+
+        return true;
+    }
+
     void doModifyKeyPressed(final KeyEvent event) {
         final char aChar = event.character;
         if (aChar == '\0' || aChar == '\b' || aChar == '\u007f' || event.stateMask == SWT.CTRL || event.widget == styledText1
@@ -994,6 +1051,7 @@ public final class HexTexts extends Composite {
             return;
         }
         handleSelectedPreModify();
+        final boolean drawn = myDrawnVersion == myContent.getVersion();
         try {
             if (myInserting) {
                 if (event.widget == styledText2) {
@@ -1015,6 +1073,10 @@ public final class HexTexts extends Composite {
                 styledText1.setStyleRange(new StyleRange(offset * 3, 2, colorBlue, null));
                 styledText2.replaceTextRange(offset, 1, Character.toString(byteToChar[tmpRawBuffer[0] & 0x0ff]));
                 styledText2.setStyleRange(new StyleRange(offset, 1, colorBlue, null));
+                if (drawn) {
+                    // the only changed byte is on screen already
+                    myDrawnVersion = myContent.getVersion();
+                }
             }
         } catch (final IOException e) {
             throw new RuntimeException(e);
@@ -1022,13 +1084,10 @@ public final class HexTexts extends Composite {
         final long position = incrementPosWithinLimits(getCaretPos(), event.widget == styledText1);
         setStartAndEnd(position, position);
 
+        // inserted bytes are drawn by the content listener, which runs first
         final Runnable delayed = () -> {
             ensureCaretIsVisible();
             redrawTextAreas(false);
-            if (myInserting) {
-                updateScrollBar();
-                redrawTextAreas(true);
-            }
             refreshSelections();
             runnableEnd();
         };
@@ -1192,17 +1251,96 @@ public final class HexTexts extends Composite {
      * @param searchForward look for matches after current position
      * @param ignoreCase    match upper case with lower case characters
      * @return whether a match was found
+     * @see ByteArrayUtility#parsePattern(String)
      */
     public Match findAndSelect(final String findString, final boolean isHexString, final boolean searchForward, final boolean ignoreCase)
             throws NumberFormatException {
         if (findString == null) {
             throw new IllegalArgumentException("Parameter 'findString' must not be null.");
         }
+        if (myMatchIndex != null && myMatchIndex.getVersion() != myContent.getVersion()) {
+            myMatchIndex = null; // stale, find again
+        }
+        if (myMatchIndex != null && findString.equals(myPreviousFindString) && isHexString == myPreviousFindStringWasHex
+                && ignoreCase == myPreviousFindIgnoredCase) {
+            return selectMatch(searchForward);
+        }
         final Match result = findAndSelectInternal(findString, isHexString, searchForward, ignoreCase, true);
 
         return result;
     }
 
+    /**
+     * Finds all matches of a literal, in the selection or in all the text. The following finds of
+     * the same literal go through the matches found, until the text is modified.
+     *
+     * @param findString  the literal to find
+     * @param isHexString consider the literal as an hex string (ie. "0fdA1"). Used for binary finds.
+     *                    Will search full bytes only, odd number of hex characters will have a
+     *                    leading '0' added.
+     * @param ignoreCase  match upper case with lower case characters
+     * @param inSelection find in the selection only
+     * @return the matches, fewer than all when the find was stopped
+     * @throws IOException           when the content cannot be read
+     * @throws NumberFormatException if the find string is not a valid hex string
+     * @see ByteArrayUtility#parsePattern(String)
+     */
+    public MatchIndex findAll(final String findString, final boolean isHexString, final boolean ignoreCase, final boolean inSelection)
+            throws IOException, NumberFormatException {
+        if (findString == null) {
+            throw new IllegalArgumentException("Parameter 'findString' must not be null.");
+        }
+
+        initFinder(findString, isHexString, true, ignoreCase);
+        final long start = inSelection ? myStart : 0L;
+        final long end = inSelection ? myEnd : myContent.length();
+        final MatchIndex result = new MatchIndex();
+        myMatchIndex = result; // counted while it grows
+        final boolean[] complete = { false };
+        final IOException[] exception = { null };
+        SWTUtility.blockUntilFinished(() -> {
+            try {
+                complete[0] = myFinder.findAll(start, end, result);
+            } catch (final IOException ex) {
+                exception[0] = ex;
+            }
+        });
+        if (!complete[0]) {
+            myMatchIndex = null;
+        }
+        if (exception[0] != null) {
+            throw exception[0];
+        }
+
+        return result;
+    }
+
+    /**
+     * Selects the next or previous match found by the last {@link #findAll(String, boolean, boolean,
+     * boolean)}, from the selection.
+     *
+     * @param searchForward select the first match after the selection start, or the last one before
+     * @return the match, not found if there is none or the text was modified since
+     */
+    public Match selectMatch(final boolean searchForward) {
+        if (myMatchIndex == null || myMatchIndex.getVersion() != myContent.getVersion()) {
+            myMatchIndex = null;
+            return new Match(false, 0, 0, null);
+        }
+
+        final long index = searchForward ? myMatchIndex.indexOfNext(myStart == myEnd ? myStart : myStart + 1L)
+                : myMatchIndex.indexOfPrevious(myStart);
+        if (index < 0L) {
+            return new Match(false, 0, 0, null);
+        }
+        final Match match = myMatchIndex.getMatch(index);
+        myCaretStickToStart = false;
+        setSelection(match.getStartPosition(), match.getEndPosition());
+        myPreviousFindEnd = getCaretPos();
+
+        return match;
+    }
+
     // Used by "find" and by "replace".
     private Match findAndSelectInternal(final String findString, final boolean isHexString, final boolean searchForward, final boolean ignoreCase,
             final boolean updateGui) throws NumberFormatException {
@@ -1252,7 +1390,11 @@ public final class HexTexts extends Composite {
             return -1;
         }
         try {
-            myContent.get(ByteBuffer.wrap(tmpRawBuffer, 0, 1), null, pos);
+            myCursor.setPosition(pos);
+            final int value = myCursor.read();
+            if (value >= 0) {
+                tmpRawBuffer[0] = (byte) value;
+            }
         } catch (final IOException ex) {
             throw new RuntimeException("Unexpected IO error at position " + pos, ex);
         }
@@ -1335,9 +1477,10 @@ public final class HexTexts extends Composite {
             myPreviousFindStringWasHex = isHexString;
             myPreviousFindIgnoredCase = ignoreCase;
 
+            myMatchIndex = null;
             if (isHexString) {
-                final byte[] byteArray = ByteArrayUtility.parseString(findString);
-                myFinder = new BinaryContentFinder(byteArray, myContent);
+                final byte[][] pattern = ByteArrayUtility.parsePattern(findString);
+                myFinder = new BinaryContentFinder(pattern[0], pattern[1], myContent);
             } else {
                 myFinder = new BinaryContentFinder(findString, myContent);
                 if (ignoreCase) {
@@ -1346,6 +1489,8 @@ public final class HexTexts extends Composite {
             }
             myFinder.setNewStart(getCaretPos());
         }
+        // the find runs in another thread while the user interface stays responsive
+        myFinder.takeSnapshot();
         if (myPreviousFindEnd != getCaretPos()) {
             myFinder.setNewStart(getCaretPos());
         }
@@ -1400,6 +1545,60 @@ public final class HexTexts extends Composite {
         return result;
     }
 
+    /*
+     * Adds the backgrounds of the annotations in a part of the screen below the styles of the changes
+     * and highlights there. Only the annotations of that part are read from the content.
+     */
+    private List<StyleRange> mergeAnnotations(final List<StyleRange> ranges, final long start, final int length) {
+        final List<Annotation> annotations = myContent.getAnnotations(start, length);
+        if (annotations.isEmpty()) {
+            return ranges;
+        }
+
+        final int offset = (int) (start - myTextAreasStart);
+        final Color[] foregrounds = new Color[length];
+        final Color[] backgrounds = new Color[length];
+        for (final Annotation annotation : annotations) {
+            if (annotation.getColor() < 0) {
+                continue;
+            }
+            final Color color = annotationColors.computeIfAbsent(annotation.getColor(),
+                    value -> new Color(getDisplay(), value >>> 16 & 0xff, value >>> 8 & 0xff, value & 0xff));
+            final long annotationStart = annotation.getStart();
+            final int from = (int) Math.max(0L, annotationStart - start);
+            final int to = (int) Math.min(length, annotationStart + Math.max(annotation.getLength(), 1L) - start);
+            for (int i = from; i < to; ++i) {
+                backgrounds[i] = color;
+            }
+        }
+        if (ranges != null) {
+            for (final StyleRange range : ranges) {
+                final int to = Math.min(length, range.start + range.length - offset);
+                for (int i = Math.max(0, range.start - offset); i < to; ++i) {
+                    if (range.foreground != null) {
+                        foregrounds[i] = range.foreground;
+                    }
+                    if (range.background != null) {
+                        backgrounds[i] = range.background;
+                    }
+                }
+            }
+        }
+
+        final List<StyleRange> result = new ArrayList<>();
+        int runStart = 0;
+        for (int i = 1; i <= length; ++i) {
+            if (i == length || foregrounds[i] != foregrounds[runStart] || backgrounds[i] != backgrounds[runStart]) {
+                if (foregrounds[runStart] != null || backgrounds[runStart] != null) {
+                    result.add(new StyleRange(offset + runStart, i - runStart, foregrounds[runStart], backgrounds[runStart]));
+                }
+                runStart = i;
+            }
+        }
+
+        return result;
+    }
+
     private boolean mergerCatchUps() {
         boolean withinRange = false;
         if (mergeChangeRanges != null && mergeChangeRanges.size() > mergeIndexChange) {
@@ -1602,6 +1801,9 @@ public final class HexTexts extends Composite {
         myPreviousRedrawStart = myTextAreasStart;
 
         final StringBuilder newText = cookAddresses(newLinesStart, linesShifted * myBytesPerLine);
+        if (mode == SET_TEXT) {
+            myDrawnVersion = myContent.getVersion();
+        }
 
         final ArrayList<Long> changeRanges = new ArrayList<>();
         int actuallyRead = 0;
@@ -1613,12 +1815,35 @@ public final class HexTexts extends Composite {
         final StringBuilder resultHex = cookTexts(true, actuallyRead);
         final StringBuilder resultChar = cookTexts(false, actuallyRead);
         getHighlightRangesInScreen(newLinesStart, linesShifted * myBytesPerLine);
-        final List<StyleRange> viewRanges = mergeRanges(changeRanges, highlightRangesInScreen);
+        final List<StyleRange> viewRanges = mergeAnnotations(mergeRanges(changeRanges, highlightRangesInScreen), newLinesStart,
+                linesShifted * myBytesPerLine);
         redrawTextAreas(mode, newText, resultHex, resultChar, viewRanges);
         refreshSelections();
         refreshCaretsPosition();
     }
 
+    /*
+     * Brings the screen up to date after modifications of the content not drawn yet. Only the part of
+     * the content on screen is read again, and only when the changed bytes are on screen or shift it.
+     */
+    private void contentChanged(final BinaryContent.Change change) {
+        if (myMatchIndex != null && myContent != null && myMatchIndex.getVersion() != myContent.getVersion()) {
+            myMatchIndex = null;
+        }
+        if (change == null || myContent == null || isDisposed() || myDrawnVersion == myContent.getVersion()) {
+            return;
+        }
+
+        if (change.getInsertedLength() != change.getRemovedLength()) {
+            updateScrollBar();
+        }
+        if (change.affects(myTextAreasStart, (long) numberOfLines * myBytesPerLine)) {
+            redrawTextAreas(true);
+        } else {
+            myDrawnVersion = myContent.getVersion();
+        }
+    }
+
     void refreshCaretsPosition() {
         drawUnfocusedCaret(false);
         final long caretLocation = getCaretPos() - myTextAreasStart;
@@ -1717,27 +1942,38 @@ public final class HexTexts extends Composite {
         if (replaceString == null) {
             throw new IllegalArgumentException("Parameter 'replaceString' must not be null.");
         }
-        handleSelectedPreModify();
         byte[] replaceData = replaceString.getBytes();
         if (isHexString) {
             replaceData = ByteArrayUtility.parseString(replaceString);
         }
-        final ByteBuffer newSelection = ByteBuffer.wrap(replaceData);
-        if (myInserting) {
-            myContent.insert(newSelection, myStart);
-        } else {
-            newSelection.limit((int) Math.min(newSelection.limit(), myContent.length() - myStart));
-            myContent.overwrite(newSelection, myStart);
+        replaceSelection(replaceData);
+        restoreStateAfterModify();
+    }
+
+    /*
+     * Replaces the selection as one undo action, without updating the screen
+     */
+    private void replaceSelection(final byte[] replaceData) {
+        myContent.beginTransaction();
+        try {
+            handleSelectedPreModify();
+            final ByteBuffer newSelection = ByteBuffer.wrap(replaceData);
+            if (myInserting) {
+                myContent.insert(newSelection, myStart);
+            } else {
+                newSelection.limit((int) Math.min(newSelection.limit(), myContent.length() - myStart));
+                myContent.overwrite(newSelection, myStart);
+            }
+            myEnd = myStart + newSelection.limit() - newSelection.position();
+        } finally {
+            myContent.commit();
         }
-        myEnd = myStart + newSelection.limit() - newSelection.position();
         myCaretStickToStart = false;
-        redrawTextAreas(true);
-        restoreStateAfterModify();
     }
 
     /**
      * Replaces all occurrences of findString with replaceString. The find starts at the current caret
-     * position.
+     * position. All replacements are one undo action, the screen is updated once at the end.
      *
      * @param findString         the literal to find
      * @param isFindHexString    consider the literal as an hex string (ie. "0fdA1"). Used for binary
@@ -1752,6 +1988,7 @@ public final class HexTexts extends Composite {
      * @return An array with [0]=number of replacements, [1]=last replaced start position
      * @throws IOException
      * @throws NumberFormatException
+     * @see ByteArrayUtility#parsePattern(String)
      */
     public long[] replaceAll(final String findString, final boolean isFindHexString, final boolean searchForward, final boolean ignoreCase,
             final String replaceString, final boolean isReplaceHexString) throws IOException, NumberFormatException {
@@ -1761,22 +1998,34 @@ public final class HexTexts extends Composite {
         if (replaceString == null) {
             throw new IllegalArgumentException("Parameter 'replaceString' must not be null.");
         }
+        byte[] replaceData = replaceString.getBytes();
+        if (isReplaceHexString) {
+            replaceData = ByteArrayUtility.parseString(replaceString);
+        }
         long replacements = 0;
         long lastStartPosition = 0;
         stopSearching = false;
-        while (!stopSearching) {
+        myContent.beginTransaction();
+        try {
+            while (!stopSearching) {
 
-            final Match match = findAndSelectInternal(findString, isFindHexString, searchForward, ignoreCase, false);
-            if (match.isFound()) {
-                replacements++;
-                lastStartPosition = match.getStartPosition();
-                replace(replaceString, isReplaceHexString);
-            } else {
-                stopSearching = true;
-                if (match.getException() != null) {
-                    throw match.getException();
+                final Match match = findAndSelectInternal(findString, isFindHexString, searchForward, ignoreCase, false);
+                if (match.isFound()) {
+                    replacements++;
+                    lastStartPosition = match.getStartPosition();
+                    replaceSelection(replaceData);
+                } else {
+                    stopSearching = true;
+                    if (match.getException() != null) {
+                        throw match.getException();
+                    }
                 }
             }
+        } finally {
+            myContent.commit();
+            if (replacements > 0) {
+                restoreStateAfterModify();
+            }
         }
         if (replacements > 0) {
             final RangeSelection selection = getSelection();
@@ -1883,13 +2132,20 @@ public final class HexTexts extends Composite {
      */
     public void setContentProvider(final BinaryContent newContent) {
         final boolean firstContent = myContent == null;
-        if (myContent != null && myContent != newContent) {
-            myContent.dispose();
+        if (myContent != null) {
+            myContent.removeModifyListener(myContentListener);
+            if (myContent != newContent) {
+                myContent.dispose();
+            }
         }
         myContent = newContent;
         myFinder = null;
+        myMatchIndex = null;
+        myDrawnVersion = -1L;
         if (myContent != null) {
             myContent.setActionsHistory();
+            myContent.addModifyListener(myContentListener);
+            myCursor = myContent.cursor(0L);
         }
 
         if (firstContent || myEnd > myContent.length() || myTextAreasStart >= myContent.length()) {
@@ -2038,8 +2294,49 @@ public final class HexTexts extends Composite {
         undo(true);
     }
 
+    /**
+     * Adds a bookmark or a labeled region to the content and shows it
+     *
+     * @param position position of the first annotated byte
+     * @param length   number of annotated bytes, 0 for a bookmark
+     * @param label    the label, not <code>null</code>
+     * @param color    background color of the annotated bytes as 0xRRGGBB, -1 for none
+     * @return the annotation, not <code>null</code>
+     * @see BinaryContent#addAnnotation(long, long, String, int)
+     */
+    public Annotation addAnnotation(final long position, final long length, final String label, final int color) {
+        final Annotation result = myContent.addAnnotation(position, length, label, color);
+        redrawTextAreas(true);
+
+        return result;
+    }
+
+    /**
+     * Removes an annotation from the content and from the screen
+     *
+     * @param annotation an annotation of the content, already removed ones are ignored
+     * @see BinaryContent#removeAnnotation(Annotation)
+     */
+    public void removeAnnotation(final Annotation annotation) {
+        myContent.removeAnnotation(annotation);
+        redrawTextAreas(true);
+    }
+
+    /**
+     * Brings the content to its state after a number of actions of its undo history, in one step
+     *
+     * @param index number of actions done, from 0 (undo all) to the size of the history (redo all)
+     * @see BinaryContent#restoreHistory(int)
+     */
+    public void restoreHistory(final int index) {
+        showSelection(myContent.restoreHistory(index));
+    }
+
     private void undo(final boolean previousAction) {
-        final long[] selection = previousAction ? myContent.undo() : myContent.redo();
+        showSelection(previousAction ? myContent.undo() : myContent.redo());
+    }
+
+    private void showSelection(final long[] selection) {
         if (selection == null) {
             return;
         }
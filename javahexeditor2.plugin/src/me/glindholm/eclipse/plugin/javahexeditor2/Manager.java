@@ -29,6 +29,7 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.events.SelectionAdapter;
 import org.eclipse.swt.events.SelectionEvent;
@@ -43,6 +44,7 @@ import org.eclipse.swt.widgets.Listener;
 import org.eclipse.swt.widgets.Shell;
 
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.RangeSelection;
+import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
 import me.glindholm.eclipse.plugin.javahexeditor2.common.ResourceUtility;
 import me.glindholm.eclipse.plugin.javahexeditor2.common.SWTUtility;
 import me.glindholm.eclipse.plugin.javahexeditor2.common.TextUtility;
@@ -70,6 +72,7 @@ public final class Manager {
     // State
     private BinaryContent content;
     private File contentFile;
+    private File journalDirectory; // null when modifications are not logged
 
     private FindReplaceHistory findReplaceHistory;
     private FontData fontData;
@@ -145,6 +148,10 @@ public final class Manager {
             if (font != null && !font.isDisposed()) {
                 font.dispose();
             }
+            // closed normally, the modifications have been saved or discarded
+            if (content != null) {
+                content.stopJournal();
+            }
             hexTexts = null;
         });
         if (fontData != null) {
@@ -336,7 +343,7 @@ public final class Manager {
             goToDialog = new GoToDialog(textsParent.getShell());
         }
 
-        final long location = goToDialog.open(hexTexts.getShell(), content.length() - 1L);
+        final long location = goToDialog.open(hexTexts.getShell(), content.length() - 1L, content, hexTexts.getCaretPos());
         if (location >= 0L) {
             final long button = goToDialog.getButtonPressed();
             if (button == 1) {
@@ -418,13 +425,25 @@ public final class Manager {
      * @throws IOException If the operation fails
      */
     public void doSaveSelectionAs(final File file) throws IOException {
+        doSaveSelectionAs(file, null);
+    }
+
+    /**
+     * Perform save-selected-as action on selected data
+     *
+     * @param file    The file, not <code>null</code>.
+     * @param monitor The progress monitor or <code>null</code>.
+     *
+     * @throws IOException If the operation fails
+     */
+    public void doSaveSelectionAs(final File file, final IProgressMonitor monitor) throws IOException {
         if (isFileBeingRead(file)) {
             throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE_IN_USE, file.getAbsolutePath()));
         }
 
         final RangeSelection selection = hexTexts.getSelection();
         try {
-            content.get(file, selection.start, selection.getLength());
+            content.get(file, selection.start, selection.getLength(), monitor);
         } catch (final IOException ex) {
             throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_SAVE_FILE, file.getAbsolutePath(), ex.getMessage()));
 
@@ -449,6 +468,13 @@ public final class Manager {
         hexTexts.redo();
     }
 
+    /**
+     * Brings the selection back to the bytes of the saved file
+     */
+    public void doRevertSelection() {
+        hexTexts.revertSelected();
+    }
+
     /**
      * While in insert mode, trims the selection
      */
@@ -511,7 +537,7 @@ public final class Manager {
     }
 
     private boolean isFileBeingRead(final File file) {
-        return file.equals(contentFile) || content.getOpenFiles().contains(file);
+        return file.equals(contentFile) || FileChannelRegistry.isInUse(file);
     }
 
     /**
@@ -553,7 +579,9 @@ public final class Manager {
             content = new BinaryContent();
         } else {
             try {
-                content = new BinaryContent(contentFile);
+                // a previous save may have been interrupted in the middle of overwriting the file
+                BinaryContent.rollBackInterruptedSave(contentFile);
+                content = openContent(contentFile);
             } catch (final IOException ex) {
                 this.contentFile = null;
                 throw new CoreException(
@@ -571,6 +599,73 @@ public final class Manager {
 
     }
 
+    /*
+     * Recovers the modifications not saved in a previous session, if there are any
+     */
+    private BinaryContent openContent(final File file) throws IOException {
+        if (journalDirectory == null) {
+            return new BinaryContent(file);
+        }
+
+        final File journalFile = getJournalFile(file);
+        BinaryContent result = null;
+        boolean journalStuck = false;
+        if (journalFile.exists()) {
+            try {
+                result = BinaryContent.restore(file, journalFile);
+            } catch (final IOException ex) {
+                Log.logError("Cannot recover the unsaved modifications of '{0}'", new Object[] { file.getAbsolutePath() }, ex);
+            }
+            if (result == null) {
+                journalStuck = !keepJournal(file, journalFile);
+            }
+        }
+        if (result == null) {
+            result = new BinaryContent(file);
+            if (!journalStuck) {
+                startJournal(result, file);
+            }
+        }
+
+        return result;
+    }
+
+    /*
+     * Moves a journal that cannot be replayed out of the way of the new one and tells the user where it
+     * is. Returns false when it could not be moved, it must not be replaced then.
+     */
+    private boolean keepJournal(final File file, final File journalFile) {
+        final File keptFile = new File(journalFile.getPath() + '.' + System.currentTimeMillis());
+        final boolean moved = journalFile.renameTo(keptFile);
+        final String keptPath = (moved ? keptFile : journalFile).getAbsolutePath();
+        Log.logError("Unsaved modifications of '{0}' kept in '{1}'", new Object[] { file.getAbsolutePath(), keptPath }, null);
+        if (shell != null && !shell.isDisposed()) {
+            // after the editor has been opened
+            shell.getDisplay().asyncExec(() -> {
+                if (!shell.isDisposed()) {
+                    SWTUtility.showErrorMessage(shell, Texts.MANAGER_OPEN_DIALOG_TITLE_CANNOT_RECOVER_MODIFICATIONS,
+                            Texts.MANAGER_OPEN_DIALOG_MESSAGE_CANNOT_RECOVER_MODIFICATIONS, file.getAbsolutePath(), keptPath);
+                }
+            });
+        }
+
+        return moved;
+    }
+
+    private File getJournalFile(final File file) throws IOException {
+        final String path = file.getCanonicalPath();
+
+        return new File(journalDirectory, file.getName() + '-' + Integer.toHexString(path.hashCode()) + ".hexedits");
+    }
+
+    private void startJournal(final BinaryContent journaledContent, final File file) {
+        try {
+            journaledContent.startJournal(file, getJournalFile(file));
+        } catch (final IOException ex) {
+            Log.logError("Cannot write the journal of '{0}', unsaved modifications will not be recovered", new Object[] { file.getAbsolutePath() }, ex);
+        }
+    }
+
     /**
      * Reuse the status line control from another manager. Useful for multiple open editors
      *
@@ -600,18 +695,33 @@ public final class Manager {
             throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE_IN_USE, file.getAbsolutePath()));
         }
 
+        final SubMonitor progress = SubMonitor.convert(monitor, 100);
         try {
-            content.get(file);
-            content.dispose();
+            // the content continues with the saved file, keeping its undo history
+            content.save(file, progress.split(95));
         } catch (final IOException ex) {
             throw new IOException(TextUtility.format(Texts.MANAGER_SAVE_MESSAGE_CANNOT_SAVE_FILE, file.getAbsolutePath(), ex.getMessage()));
         }
 
-        content = new BinaryContent(file);
+        if (journalDirectory != null && !file.equals(contentFile)) {
+            startJournal(content, file);
+        }
         contentFile = file;
-        fileToucher.touchFile(contentFile, monitor);
+        fileToucher.touchFile(contentFile, progress.split(5));
 
-        hexTexts.setContentProvider(content);
+        // the bytes shown are the same, only their modified state changed
+        hexTexts.redrawTextAreas(true);
+        hexTexts.notifyListeners(SWT.Modify, null);
+    }
+
+    /**
+     * Sets where the modifications of the files opened from now on are logged, so they are recovered
+     * when a file is opened again after the application ended without saving them.
+     *
+     * @param journalDirectory the directory, created when needed, or <code>null</code> to log nothing
+     */
+    public void setJournalDirectory(final File journalDirectory) {
+        this.journalDirectory = journalDirectory;
     }
 
     /**
@@ -651,6 +761,8 @@ public final class Manager {
                 }
                 statusLine.updateValue(hexTexts.getActualValue());
                 statusLine.updateSize(size);
+                final BinaryContent.Statistics statistics = hexTexts.getContent().getStatistics();
+                statusLine.updateUndo(statistics.getUndoBytes(), statistics.getUndoEntryCount());
 
             } else {
                 statusLine.updatePositionWidth(0);
@@ -658,6 +770,7 @@ public final class Manager {
                 statusLine.clearPosition();
                 statusLine.clearValue();
                 statusLine.clearSize();
+                statusLine.clearUndo();
             }
         }
     }
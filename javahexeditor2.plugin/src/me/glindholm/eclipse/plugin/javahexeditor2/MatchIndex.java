@@ -0,0 +1,168 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.util.Arrays;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContentFinder.Match;
+
+/**
+ * The positions of all matches of a find, in increasing order. The positions are kept in pages of
+ * primitive longs, 8 bytes a match, so hundreds of millions of matches fit where as many objects
+ * would not. Both neighbors of a position are found by a binary search.
+ * <P>
+ * The index is filled by {@link BinaryContentFinder#findAll(long, long, MatchIndex)} in one thread
+ * while others may read the matches found so far: {@link #size()} grows as they are added. The
+ * positions are those of the content version returned by {@link #getVersion()}.
+ */
+public final class MatchIndex {
+
+    private static final int PAGE_BITS = 13;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS; // matches per page, 64 KB
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    // position << 1, plus 1 when the match has the wide length
+    private long[][] pages = new long[16][];
+    private volatile long size; // written after the match it counts
+    private long version = -1L;
+    private int narrowLength;
+    private int wideLength;
+
+    /*
+     * Forgets the matches, before a find of matches with the given lengths
+     */
+    void start(final long contentVersion, final int narrow, final int wide) {
+        size = 0L;
+        version = contentVersion;
+        narrowLength = narrow;
+        wideLength = wide;
+    }
+
+    /*
+     * Appends a match, after all the others
+     */
+    void add(final long position, final boolean wide) {
+        final long count = size;
+        final int page = (int) (count >>> PAGE_BITS);
+        if (page == pages.length) {
+            pages = Arrays.copyOf(pages, page * 2);
+        }
+        if (pages[page] == null) {
+            pages[page] = new long[PAGE_SIZE];
+        }
+        pages[page][(int) (count & PAGE_MASK)] = position << 1 | (wide ? 1L : 0L);
+        size = count + 1L;
+    }
+
+    private long getEntry(final long index) {
+        if (index < 0L || index >= size) {
+            throw new IllegalArgumentException("Parameter index must be within 0 and " + (size - 1L) + ", specified value is " + index);
+        }
+
+        return pages[(int) (index >>> PAGE_BITS)][(int) (index & PAGE_MASK)];
+    }
+
+    /**
+     * Get the number of matches found so far
+     *
+     * @return number of matches
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return version of the content the positions refer to, -1 before a find
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get the start position of a match
+     *
+     * @param index of the match, from 0 to {@link #size()} exclusive
+     * @return position of the first byte of the match
+     */
+    public long getPosition(final long index) {
+        return getEntry(index) >>> 1;
+    }
+
+    /**
+     * Get the length of a match. Text finds match ASCII and Unicode bytes of different lengths.
+     *
+     * @param index of the match, from 0 to {@link #size()} exclusive
+     * @return length of the match in bytes
+     */
+    public int getLength(final long index) {
+        return (getEntry(index) & 1L) == 0L ? narrowLength : wideLength;
+    }
+
+    /**
+     * Get a match as returned by {@link BinaryContentFinder#getNextMatch()}
+     *
+     * @param index of the match, from 0 to {@link #size()} exclusive
+     * @return the match, found
+     */
+    public Match getMatch(final long index) {
+        return new Match(true, getPosition(index), getLength(index), null);
+    }
+
+    /**
+     * Finds the first match starting at or after a position
+     *
+     * @param position in the content
+     * @return index of the match, -1 if there is none
+     */
+    public long indexOfNext(final long position) {
+        final long result = countBefore(position);
+
+        return result < size ? result : -1L;
+    }
+
+    /**
+     * Finds the last match starting before a position
+     *
+     * @param position in the content
+     * @return index of the match, -1 if there is none
+     */
+    public long indexOfPrevious(final long position) {
+        return countBefore(position) - 1L;
+    }
+
+    /*
+     * Number of matches starting before the position, by binary search
+     */
+    private long countBefore(final long position) {
+        long low = 0L;
+        long high = size;
+        while (low < high) {
+            final long middle = low + high >>> 1;
+            if (getPosition(middle) < position) {
+                low = middle + 1L;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.Range;
+
+/**
+ * Merges runs of adjacent small dirty heap ranges into one buffer each. Many single byte
+ * overwrites or a replace all leave thousands of tiny ranges behind, which slow down every read.
+ * <P>
+ * Runs are collected on the thread owning the content, without copying any bytes. The bytes are
+ * copied by {@link #merge(List)}, which may run in the background since heap range buffers are
+ * never modified once in a range. The owner then replaces each run still present unchanged in the
+ * tree by a single range.
+ */
+final class RangeCompactor {
+
+    static final class Run {
+        final long position;
+        final long length;
+        final Range[] ranges; // as found in the tree, to check they are still there
+        private final ByteBuffer[] sources;
+        ByteBuffer merged;
+
+        Run(final long position, final List<Range> ranges) {
+            this.position = position;
+            this.ranges = ranges.toArray(new Range[ranges.size()]);
+            sources = new ByteBuffer[this.ranges.length];
+            long length = 0L;
+            for (int i = 0; i < this.ranges.length; ++i) {
+                final Range range = this.ranges[i];
+                // duplicates, reading must not touch the position and limit of the buffer
+                final ByteBuffer source = ((RangeSource.Heap) range.source).buffer.duplicate();
+                source.limit((int) (range.dataOffset + range.length));
+                source.position((int) range.dataOffset);
+                sources[i] = source;
+                length += range.length;
+            }
+            this.length = length;
+        }
+    }
+
+    /**
+     * Number of ranges above which a content is always compacted
+     */
+    static final int RANGE_COUNT_THRESHOLD = 4096;
+
+    /**
+     * Number of ranges above which a content is compacted if its ranges are small on average
+     */
+    static final int MINIMUM_RANGE_COUNT = 512;
+
+    /**
+     * Average range length below which a content with many ranges is compacted
+     */
+    static final int AVERAGE_LENGTH_THRESHOLD = 256;
+
+    private static final int MAXIMUM_CANDIDATE_LENGTH = 4096;
+    private static final int MAXIMUM_MERGED_LENGTH = 1024 * 1024;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "Hex Editor Range Compaction");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private RangeCompactor() {
+    }
+
+    private static boolean isCandidate(final Range range) {
+        return range.dirty && range.source instanceof RangeSource.Heap && range.length < MAXIMUM_CANDIDATE_LENGTH;
+    }
+
+    /**
+     * Finds the runs of at least two adjacent candidate ranges.
+     *
+     * @param ranges the tree of the content
+     * @return the runs in order, not merged yet
+     */
+    static List<Run> collectRuns(final RangeTree ranges) {
+        final List<Run> result = new ArrayList<>();
+        final List<Range> run = new ArrayList<>();
+        long runPosition = 0L;
+        long runLength = 0L;
+        final RangeTree.Cursor cursor = ranges.cursor();
+        for (cursor.seek(0L); cursor.hasRange(); cursor.next()) {
+            final Range range = cursor.getRange();
+            if (!isCandidate(range) || runLength + range.length > MAXIMUM_MERGED_LENGTH) {
+                if (run.size() > 1) {
+                    result.add(new Run(runPosition, run));
+                }
+                run.clear();
+                runLength = 0L;
+                if (!isCandidate(range)) {
+                    continue;
+                }
+            }
+            if (run.isEmpty()) {
+                runPosition = cursor.getPosition();
+            }
+            run.add(range);
+            runLength += range.length;
+        }
+        if (run.size() > 1) {
+            result.add(new Run(runPosition, run));
+        }
+
+        return result;
+    }
+
+    /**
+     * Tells whether a content has so many or so small ranges that it should be compacted
+     *
+     * @param ranges the tree of the content
+     * @return true: it should be compacted
+     */
+    static boolean isFragmented(final RangeTree ranges) {
+        final int size = ranges.size();
+
+        return size > RANGE_COUNT_THRESHOLD || size > MINIMUM_RANGE_COUNT && ranges.length() / size < AVERAGE_LENGTH_THRESHOLD;
+    }
+
+    /**
+     * Copies the bytes of each run into a new buffer. Does not use the content or its tree.
+     *
+     * @param runs as returned by {@link #collectRuns(RangeTree)}
+     */
+    static void merge(final List<Run> runs) {
+        for (final Run run : runs) {
+            final ByteBuffer merged = ByteBuffer.allocate((int) run.length);
+            for (final ByteBuffer source : run.sources) {
+                merged.put(source);
+            }
+            merged.flip();
+            run.merged = merged;
+        }
+    }
+
+    /**
+     * Runs a task in the background compaction thread
+     *
+     * @param task not <code>null</code>
+     */
+    static void submit(final Runnable task) {
+        executor.execute(task);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Where the bytes of a range come from. A range reads the part of its source starting at its data
+ * offset. Sources never change once created, so reading does not modify them and may be done from
+ * any thread.
+ */
+sealed interface RangeSource
+        permits RangeSource.Heap, RangeSource.Direct, RangeSource.FileRegion, RangeSource.Zeros, RangeSource.Pattern, RangeSource.Deflated {
+
+    /**
+     * Bytes in a heap ByteBuffer. Offsets are absolute indexes in the buffer.
+     */
+    final class Heap implements RangeSource {
+        final ByteBuffer buffer;
+
+        Heap(final ByteBuffer buffer) {
+            if (buffer.isDirect()) {
+                throw new IllegalArgumentException("Parameter 'buffer' must not be a direct buffer.");
+            }
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) {
+            return readBuffer(buffer, offset, dst, length);
+        }
+    }
+
+    /**
+     * Bytes in a direct ByteBuffer, outside the heap. Offsets are absolute indexes in the buffer.
+     */
+    final class Direct implements RangeSource {
+        final ByteBuffer buffer;
+
+        Direct(final ByteBuffer buffer) {
+            if (!buffer.isDirect()) {
+                throw new IllegalArgumentException("Parameter 'buffer' must be a direct buffer.");
+            }
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) {
+            return readBuffer(buffer, offset, dst, length);
+        }
+    }
+
+    /**
+     * Bytes in a file, read through the {@link FileBlockCache}. Offsets are positions in the file.
+     * Opened files share a channel from the {@link FileChannelRegistry}.
+     */
+    final class FileRegion implements RangeSource {
+        final File file;
+        private final FileChannel channel; // null when leased
+        private final FileChannelRegistry.Lease lease;
+        private final Cleaner.Cleanable cleanable;
+
+        /**
+         * Creates a source on a channel owned by the caller, closing the source does not close it
+         */
+        FileRegion(final File file, final FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+            lease = null;
+            cleanable = null;
+        }
+
+        private FileRegion(final FileChannelRegistry.Lease lease) {
+            file = lease.file;
+            channel = null;
+            this.lease = lease;
+            cleanable = FileChannelRegistry.register(this, lease);
+        }
+
+        /**
+         * Opens a file for reading. The file stays in use until the source is closed or no longer
+         * reachable.
+         *
+         * @param file the file, not <code>null</code>
+         * @return the source, to be closed
+         * @throws IOException when the file cannot be opened
+         */
+        static FileRegion open(final File file) throws IOException {
+            return new FileRegion(FileChannelRegistry.acquire(file));
+        }
+
+        @Override
+        public void close() {
+            if (cleanable != null) {
+                cleanable.clean();
+            }
+        }
+
+        /**
+         * @return the channel reading the file, for transfers that do not go through the cache
+         * @throws IOException when the source has been closed
+         */
+        FileChannel getChannel() throws IOException {
+            return lease == null ? channel : lease.getChannel();
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) throws IOException {
+            if (lease != null && lease.isReplaced()) {
+                return readReplaced(offset, dst, length);
+            }
+
+            return FileBlockCache.read(file, getChannel(), dst, offset, length);
+        }
+
+        /*
+         * The cache holds the blocks of the file replacing this one
+         */
+        private int readReplaced(final long offset, final ByteBuffer dst, final int length) throws IOException {
+            final FileChannel fileChannel = getChannel();
+            final int limit = dst.limit();
+            dst.limit(dst.position() + Math.min(length, dst.remaining()));
+            int result = 0;
+            try {
+                while (dst.hasRemaining()) {
+                    final int count = fileChannel.read(dst, offset + result);
+                    if (count < 0) {
+                        break;
+                    }
+                    result += count;
+                }
+            } finally {
+                dst.limit(limit);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Any number of zero bytes. Offsets are ignored.
+     */
+    final class Zeros implements RangeSource {
+        static final Zeros INSTANCE = new Zeros();
+        private static final byte[] ZERO_BLOCK = new byte[4096];
+
+        private Zeros() {
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) {
+            final int result = Math.min(length, dst.remaining());
+            int remaining = result;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, ZERO_BLOCK.length);
+                dst.put(ZERO_BLOCK, 0, count);
+                remaining -= count;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * A sequence of bytes repeated forever. Offset 0 is the start of the sequence.
+     */
+    final class Pattern implements RangeSource {
+        private final byte[] pattern;
+
+        Pattern(final byte[] pattern) {
+            if (pattern.length == 0) {
+                throw new IllegalArgumentException("Parameter 'pattern' must not be empty.");
+            }
+            this.pattern = pattern.clone();
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) {
+            final int result = Math.min(length, dst.remaining());
+            int index = (int) (offset % pattern.length);
+            int remaining = result;
+            while (remaining > 0) {
+                final int count = Math.min(remaining, pattern.length - index);
+                dst.put(pattern, index, count);
+                remaining -= count;
+                index = 0;
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Bytes of a buffer compressed with a {@link Deflater}, for buffers of the undo history that are
+     * rarely read. Offsets are absolute indexes in the buffer, each read inflates all of it.
+     */
+    final class Deflated implements RangeSource {
+        private final byte[] compressed;
+        private final int length;
+
+        private Deflated(final byte[] compressed, final int length) {
+            this.compressed = compressed;
+            this.length = length;
+        }
+
+        /**
+         * Compresses a part of a buffer
+         *
+         * @param buffer the buffer, not modified
+         * @param offset index of the first byte
+         * @param length number of bytes
+         * @return the compressed bytes, <code>null</code> when they are not smaller
+         */
+        static Deflated compress(final ByteBuffer buffer, final int offset, final int length) {
+            final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(buffer.slice(offset, length));
+                deflater.finish();
+                final byte[] output = new byte[length];
+                int outputLength = 0;
+                while (!deflater.finished() && outputLength < output.length) {
+                    outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+                }
+                if (!deflater.finished()) {
+                    return null;
+                }
+
+                return new Deflated(Arrays.copyOf(output, outputLength), length);
+            } finally {
+                deflater.end();
+            }
+        }
+
+        /**
+         * @return number of bytes held in memory
+         */
+        int getCompressedLength() {
+            return compressed.length;
+        }
+
+        /**
+         * @return number of bytes once inflated
+         */
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the uncompressed bytes, in a new heap buffer
+         */
+        ByteBuffer inflate() {
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                final byte[] output = new byte[length];
+                int outputLength = 0;
+                while (outputLength < length && !inflater.finished()) {
+                    outputLength += inflater.inflate(output, outputLength, length - outputLength);
+                }
+
+                return ByteBuffer.wrap(output);
+            } catch (final DataFormatException ex) {
+                throw new IllegalStateException("Compressed bytes are corrupt", ex);
+            } finally {
+                inflater.end();
+            }
+        }
+
+        @Override
+        public int read(final long offset, final ByteBuffer dst, final int length) {
+            return readBuffer(inflate(), offset, dst, length);
+        }
+    }
+
+    private static int readBuffer(final ByteBuffer buffer, final long offset, final ByteBuffer dst, final int length) {
+        final int result = Math.min(length, dst.remaining());
+        dst.put(dst.position(), buffer, (int) offset, result);
+        dst.position(dst.position() + result);
+
+        return result;
+    }
+
+    /**
+     * Releases resources held by this source, if any. Ranges sharing the source cannot be read
+     * afterwards.
+     *
+     * @throws IOException when the resource cannot be released
+     */
+    default void close() throws IOException {
+    }
+
+    /**
+     * Reads bytes of the source into a buffer
+     *
+     * @param offset first byte in the source
+     * @param dst    where to write to
+     * @param length maximum number of bytes, also limited by dst. The range reading must not ask for
+     *               bytes beyond its end
+     * @return number of bytes read
+     * @throws IOException when the bytes cannot be read
+     */
+    int read(long offset, ByteBuffer dst, int length) throws IOException;
+}
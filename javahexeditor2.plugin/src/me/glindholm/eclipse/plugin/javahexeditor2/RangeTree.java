@@ -0,0 +1,585 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent.Range;
+
+/**
+ * The piece table behind a BinaryContent. Ranges are kept in a treap ordered by their position in
+ * the content, but positions are never stored: each node only knows the total length of its
+ * subtree, so a position is the sum of the lengths to its left. Finding, inserting and removing
+ * ranges is O(log n), and inserting or removing bytes shifts everything after it for free.
+ * <P>
+ * The <code>position</code> field of the ranges held by the tree is not maintained. Positions are
+ * reported by {@link Cursor} and set on the ranges returned by {@link #getRangeAt(long)} and
+ * {@link #remove(long, long)}.
+ * <P>
+ * The tree is persistent: {@link #snapshot()} shares all nodes with a new tree in O(1). Nodes are
+ * then copied on their first modification by either tree, so neither of them sees the changes of
+ * the other one. Ranges held by the tree are never modified in place.
+ */
+final class RangeTree implements Iterable<Range> {
+
+    private static final class Node {
+        final Object owner; // the tree that may modify the node in place
+        Range range;
+        Node left;
+        Node right;
+        final int priority;
+        long length; // of the whole subtree
+        int count; // of the whole subtree
+        long dirtyLength; // of the whole subtree
+        long heapLength; // of the whole subtree
+
+        Node(final Object owner, final Range range, final int priority) {
+            this.owner = owner;
+            this.range = range;
+            this.priority = priority;
+            update(this);
+        }
+
+        Node(final Object owner, final Node node) {
+            this.owner = owner;
+            range = node.range;
+            left = node.left;
+            right = node.right;
+            priority = node.priority;
+            length = node.length;
+            count = node.count;
+            dirtyLength = node.dirtyLength;
+            heapLength = node.heapLength;
+        }
+    }
+
+    /**
+     * A position in the tree. Walks the ranges in order in both directions. A cursor is invalidated
+     * by any modification of the tree, it must be positioned again with {@link #seek(long)} or
+     * {@link #move(long)}.
+     */
+    final class Cursor {
+        private static final int MAXIMUM_STEPS = 4; // ranges walked by move() before searching
+
+        private Node[] path = new Node[32];
+        private int depth; // path[depth - 1] is the current node, 0: no current range
+        private long position;
+        private int treeModifications; // of the tree when the cursor was positioned
+
+        Cursor() {
+        }
+
+        /**
+         * Positions the cursor at the range containing the given position
+         *
+         * @param aPosition the position in the content
+         * @return true: there is a range containing the position
+         */
+        boolean seek(final long aPosition) {
+            depth = 0;
+            position = 0L;
+            treeModifications = modifications;
+            if (aPosition < 0L) {
+                return false;
+            }
+            long base = 0L;
+            Node node = root;
+            while (node != null) {
+                push(node);
+                final long leftLength = length(node.left);
+                if (aPosition < base + leftLength) {
+                    node = node.left;
+                } else if (aPosition < base + leftLength + node.range.length) {
+                    position = base + leftLength;
+                    return true;
+                } else {
+                    base += leftLength + node.range.length;
+                    node = node.right;
+                }
+            }
+            depth = 0;
+            position = base;
+
+            return false;
+        }
+
+        /**
+         * Positions the cursor at the range containing the given position like {@link #seek(long)},
+         * but walks from the current range when the position is in it or a few ranges away and the tree
+         * has not been modified since. Sequential reads then cost O(1) per range instead of a search.
+         *
+         * @param aPosition the position in the content
+         * @return true: there is a range containing the position
+         */
+        boolean move(final long aPosition) {
+            if (depth == 0 || treeModifications != modifications) {
+                return seek(aPosition);
+            }
+            for (int step = 0; step <= MAXIMUM_STEPS; ++step) {
+                if (aPosition < position) {
+                    if (!previous()) {
+                        break;
+                    }
+                } else if (aPosition >= position + path[depth - 1].range.length) {
+                    if (!next()) {
+                        break;
+                    }
+                } else {
+                    return true;
+                }
+            }
+
+            return seek(aPosition);
+        }
+
+        /**
+         * @return whether the cursor is on a range
+         */
+        boolean hasRange() {
+            return depth > 0;
+        }
+
+        /**
+         * @return the current range. Its position field is not valid, use {@link #getPosition()}
+         */
+        Range getRange() {
+            return path[depth - 1].range;
+        }
+
+        /**
+         * @return start position of the current range in the content
+         */
+        long getPosition() {
+            return position;
+        }
+
+        /**
+         * Moves to the following range
+         *
+         * @return true: there is a following range
+         */
+        boolean next() {
+            if (depth == 0) {
+                return false;
+            }
+            Node node = path[depth - 1];
+            final long nextPosition = position + node.range.length;
+            if (node.right != null) {
+                node = node.right;
+                while (node != null) {
+                    push(node);
+                    node = node.left;
+                }
+            } else {
+                Node child;
+                do {
+                    child = path[--depth];
+                } while (depth > 0 && path[depth - 1].right == child);
+            }
+            position = nextPosition;
+
+            return depth > 0;
+        }
+
+        /**
+         * Moves to the preceding range
+         *
+         * @return true: there is a preceding range
+         */
+        boolean previous() {
+            if (depth == 0) {
+                return false;
+            }
+            Node node = path[depth - 1];
+            if (node.left != null) {
+                node = node.left;
+                while (node != null) {
+                    push(node);
+                    node = node.right;
+                }
+            } else {
+                Node child;
+                do {
+                    child = path[--depth];
+                } while (depth > 0 && path[depth - 1].left == child);
+            }
+            if (depth > 0) {
+                position -= path[depth - 1].range.length;
+            }
+
+            return depth > 0;
+        }
+
+        private void push(final Node node) {
+            if (depth == path.length) {
+                path = Arrays.copyOf(path, depth * 2);
+            }
+            path[depth++] = node;
+        }
+    }
+
+    private Node root;
+    private Object owner = new Object(); // replaced when nodes become shared
+    private int modifications; // incremented by each modification, to detect invalid cursors
+    private int seed = 0x2545F491;
+
+    // results of split()
+    private Node splitLeft;
+    private Node splitRight;
+
+    RangeTree() {
+    }
+
+    private RangeTree(final Node root, final int seed) {
+        this.root = root;
+        this.seed = seed;
+    }
+
+    /**
+     * Makes this tree hold the same ranges as another one, in O(1). Both trees can be modified
+     * independently afterwards, like after {@link #snapshot()}.
+     *
+     * @param source the tree to copy, not <code>null</code>
+     */
+    void assign(final RangeTree source) {
+        // all nodes of both trees become shared
+        source.owner = new Object();
+        owner = new Object();
+        root = source.root;
+        ++modifications;
+    }
+
+    private static long length(final Node node) {
+        return node == null ? 0L : node.length;
+    }
+
+    private static int count(final Node node) {
+        return node == null ? 0 : node.count;
+    }
+
+    private static void update(final Node node) {
+        final Range range = node.range;
+        final Node left = node.left;
+        final Node right = node.right;
+        node.length = length(left) + range.length + length(right);
+        node.count = count(left) + 1 + count(right);
+        node.dirtyLength = (left == null ? 0L : left.dirtyLength) + (range.dirty ? range.length : 0L) + (right == null ? 0L : right.dirtyLength);
+        node.heapLength = (left == null ? 0L : left.heapLength) + (range.source instanceof RangeSource.Heap ? range.length : 0L)
+                + (right == null ? 0L : right.heapLength);
+    }
+
+    /**
+     * @return a new cursor over this tree, not positioned
+     */
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * @return number of bytes in dirty ranges
+     */
+    long getDirtyLength() {
+        return root == null ? 0L : root.dirtyLength;
+    }
+
+    /**
+     * @return number of bytes in ranges backed by heap buffers
+     */
+    long getHeapLength() {
+        return root == null ? 0L : root.heapLength;
+    }
+
+    /**
+     * Gets the range containing a position
+     *
+     * @param position in the content
+     * @return a copy of the range with its position set, or <code>null</code> if beyond the end
+     */
+    Range getRangeAt(final long position) {
+        long base = 0L;
+        Node node = root;
+        while (node != null) {
+            final long leftLength = length(node.left);
+            if (position < base + leftLength) {
+                node = node.left;
+            } else if (position < base + leftLength + node.range.length) {
+                final Range result = node.range.clone();
+                result.position = base + leftLength;
+                return result;
+            } else {
+                base += leftLength + node.range.length;
+                node = node.right;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Inserts a range at a position, shifting the ranges after it. A range containing the position
+     * is split in two.
+     *
+     * @param position where the range starts, 0 <= position <= length()
+     * @param range    the range to insert, not empty. Its position field is ignored
+     */
+    void insert(final long position, final Range range) {
+        if (position < 0L || position > length()) {
+            throw new IllegalArgumentException("Parameter position must be within 0 and " + length() + ", specified value is " + position);
+        }
+        if (range.length < 1L) {
+            return;
+        }
+
+        split(root, position);
+        final Node right = splitRight;
+        root = merge(merge(splitLeft, new Node(owner, range, nextPriority())), right);
+        ++modifications;
+    }
+
+    /**
+     * @return whether the tree holds no ranges
+     */
+    boolean isEmpty() {
+        return root == null;
+    }
+
+    @Override
+    public Iterator<Range> iterator() {
+        final Cursor cursor = new Cursor();
+        cursor.seek(0L);
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return cursor.hasRange();
+            }
+
+            @Override
+            public Range next() {
+                if (!cursor.hasRange()) {
+                    throw new NoSuchElementException();
+                }
+                final Range result = cursor.getRange();
+                cursor.next();
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return total number of bytes in the ranges
+     */
+    long length() {
+        return length(root);
+    }
+
+    private Node merge(final Node left, final Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            final Node result = own(left);
+            result.right = merge(left.right, right);
+            update(result);
+            return result;
+        }
+        final Node result = own(right);
+        result.left = merge(left, right.left);
+        update(result);
+
+        return result;
+    }
+
+    /**
+     * @return the node itself if this tree may modify it, else a copy it may modify
+     */
+    private Node own(final Node node) {
+        return node.owner == owner ? node : new Node(owner, node);
+    }
+
+    private int nextPriority() {
+        // xorshift, no need for anything better
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+
+        return seed;
+    }
+
+    /**
+     * Removes a sequence of bytes, shifting the ranges after it. Ranges partially within the sequence
+     * are split.
+     *
+     * @param position start of the sequence
+     * @param length   number of bytes, limited to the end of the content
+     * @return the removed ranges in order, with their position set. Empty if nothing was removed
+     */
+    List<Range> remove(final long position, long length) {
+        final List<Range> result = new ArrayList<>();
+        if (position < 0L || position >= length() || length < 1L) {
+            return result;
+        }
+        length = Math.min(length, length() - position);
+
+        split(root, position);
+        final Node left = splitLeft;
+        split(splitRight, length);
+        final Node removed = splitLeft;
+        root = merge(left, splitRight);
+        ++modifications;
+        collect(removed, position, result);
+
+        return result;
+    }
+
+    private static void collect(final Node node, final long position, final List<Range> result) {
+        if (node == null) {
+            return;
+        }
+        collect(node.left, position, result);
+        // copied, the range may still be in a snapshot
+        final Range range = node.range.clone();
+        range.position = position + length(node.left);
+        result.add(range);
+        collect(node.right, range.exclusiveEnd(), result);
+    }
+
+    /**
+     * Replaces the range starting at a position by another one of the same length, for instance
+     * holding the same bytes from another source.
+     *
+     * @param position start of the range to replace
+     * @param range    the new range, same length. Its position field is ignored
+     */
+    void replace(final long position, final Range range) {
+        final Node newRoot = replace(root, position, range);
+        if (newRoot == null) {
+            throw new IllegalArgumentException("No range of length " + range.length + " starts at position " + position);
+        }
+        root = newRoot;
+        ++modifications;
+    }
+
+    /**
+     * @return the modified subtree, <code>null</code> if there is no such range in it
+     */
+    private Node replace(final Node node, final long position, final Range range) {
+        if (node == null) {
+            return null;
+        }
+
+        final long leftLength = length(node.left);
+        if (position < leftLength) {
+            final Node left = replace(node.left, position, range);
+            if (left == null) {
+                return null;
+            }
+            final Node result = own(node);
+            result.left = left;
+            update(result);
+            return result;
+        }
+        if (position == leftLength) {
+            if (node.range.length != range.length) {
+                return null;
+            }
+            final Node result = own(node);
+            result.range = range;
+            update(result);
+            return result;
+        }
+        final Node right = replace(node.right, position - leftLength - node.range.length, range);
+        if (right == null) {
+            return null;
+        }
+        final Node result = own(node);
+        result.right = right;
+        update(result);
+
+        return result;
+    }
+
+    /**
+     * @return number of ranges
+     */
+    int size() {
+        return count(root);
+    }
+
+    /**
+     * Creates a tree holding the same ranges as this one, in O(1). Both trees can be modified
+     * independently afterwards, nodes are copied on their first modification.
+     *
+     * @return the new tree
+     */
+    RangeTree snapshot() {
+        // all existing nodes become shared, neither tree owns them anymore
+        owner = new Object();
+
+        return new RangeTree(root, nextPriority());
+    }
+
+    /**
+     * Splits a subtree in splitLeft, holding exactly the first <code>position</code> bytes, and
+     * splitRight, holding the rest. A range containing the position is cut in two.
+     */
+    private void split(final Node subtree, final long position) {
+        if (subtree == null) {
+            splitLeft = null;
+            splitRight = null;
+            return;
+        }
+
+        final Node node = own(subtree);
+        final long leftLength = length(node.left);
+        if (position <= leftLength) {
+            split(node.left, position);
+            node.left = splitRight;
+            update(node);
+            splitRight = node;
+        } else if (position >= leftLength + node.range.length) {
+            split(node.right, position - leftLength - node.range.length);
+            node.right = splitLeft;
+            update(node);
+            splitLeft = node;
+        } else {
+            final long delta = position - leftLength;
+            final Range head = node.range.clone();
+            head.length = delta;
+            final Range tail = node.range.clone();
+            tail.length -= delta;
+            tail.dataOffset += delta;
+
+            final Node right = node.right;
+            node.range = head;
+            node.right = null;
+            update(node);
+            splitRight = merge(new Node(owner, tail, nextPriority()), right);
+            splitLeft = node;
+        }
+    }
+}
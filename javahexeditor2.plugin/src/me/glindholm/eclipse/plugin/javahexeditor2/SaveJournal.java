@@ -0,0 +1,239 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import me.glindholm.eclipse.plugin.javahexeditor2.common.Log;
+
+/**
+ * Write-ahead journal of an in-place save. Before the modified spans of a file are overwritten, their
+ * previous bytes are written to a journal file next to it and synchronized to the disk. The journal
+ * is deleted when the save is complete. If it is still there when the file is opened again, the save
+ * was interrupted and the previous bytes are written back.
+ * <P>
+ * The journal is a header (magic number, file length), one entry per span (position, length,
+ * previous bytes), an end mark and the CRC32 of everything before it. A journal without a valid end
+ * was interrupted while being written, so the file itself was not modified yet. A journal is
+ * emptied before it is deleted, so one that cannot be deleted is never rolled back.
+ */
+final class SaveJournal {
+
+    private static final long MAGIC = 0x4A48454A524E4C31L; // "JHEJRNL1"
+    private static final long END_MARK = -1L;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private SaveJournal() {
+    }
+
+    /**
+     * @param file the saved file, not <code>null</code>. Links are followed to the file they point to
+     * @return the journal of the file, which may not exist
+     * @throws IOException when the canonical file cannot be determined
+     */
+    static File getFile(final File file) throws IOException {
+        final File canonicalFile = file.getCanonicalFile();
+
+        return new File(canonicalFile.getParentFile(), '.' + canonicalFile.getName() + ".hexjournal");
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+        buffer.flip();
+    }
+
+    private static long readLong(final FileChannel channel, final ByteBuffer buffer, final CRC32 crc) throws IOException {
+        buffer.clear().limit(Long.BYTES);
+        readFully(channel, buffer);
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+
+        return buffer.getLong(0);
+    }
+
+    /**
+     * Writes the previous bytes of an interrupted save back into the file and deletes the journal
+     *
+     * @param file the file, not <code>null</code>
+     * @return true: the file has been restored, false: there was nothing to restore
+     * @throws IOException when the journal or the file cannot be read or written
+     */
+    static boolean rollBack(final File file) throws IOException {
+        final File journalFile = getFile(file);
+        if (!journalFile.exists()) {
+            return false;
+        }
+
+        boolean result = false;
+        try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+            if (isComplete(journal)) {
+                journal.position(0L);
+                restore(journal, file);
+                result = true;
+            }
+        }
+        discard(file);
+
+        return result;
+    }
+
+    /**
+     * Empties the journal of a file and deletes it, after a complete save or a rollback. An empty
+     * journal is incomplete, so the save is not rolled back even if it cannot be deleted.
+     *
+     * @param file the file, not <code>null</code>
+     * @throws IOException when the journal cannot be emptied
+     */
+    static void discard(final File file) throws IOException {
+        final File journalFile = getFile(file);
+        try (FileChannel journal = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+            journal.truncate(0L);
+            journal.force(true);
+        } catch (final NoSuchFileException ex) {
+            return;
+        }
+        if (!journalFile.delete()) {
+            Log.logError("Cannot delete journal '{0}'", new Object[] { journalFile.getAbsolutePath() }, null);
+        }
+    }
+
+    private static boolean isComplete(final FileChannel journal) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final CRC32 crc = new CRC32();
+        try {
+            if (readLong(journal, buffer, crc) != MAGIC) {
+                return false;
+            }
+            readLong(journal, buffer, crc); // file length
+            long position;
+            while ((position = readLong(journal, buffer, crc)) != END_MARK) {
+                if (position < 0L) {
+                    return false;
+                }
+                long remaining = readLong(journal, buffer, crc);
+                while (remaining > 0L) {
+                    buffer.clear().limit((int) Math.min(remaining, BUFFER_SIZE));
+                    readFully(journal, buffer);
+                    crc.update(buffer);
+                    remaining -= buffer.limit();
+                }
+            }
+            final long expected = crc.getValue();
+
+            return readLong(journal, buffer, null) == expected;
+        } catch (final EOFException ex) {
+            return false;
+        }
+    }
+
+    private static void restore(final FileChannel journal, final File file) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            readLong(journal, buffer, null); // magic
+            final long fileLength = readLong(journal, buffer, null);
+            long position;
+            while ((position = readLong(journal, buffer, null)) != END_MARK) {
+                long remaining = readLong(journal, buffer, null);
+                while (remaining > 0L) {
+                    buffer.clear().limit((int) Math.min(remaining, BUFFER_SIZE));
+                    readFully(journal, buffer);
+                    remaining -= buffer.limit();
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                }
+            }
+            if (channel.size() > fileLength) {
+                channel.truncate(fileLength);
+            }
+            channel.force(true);
+        } finally {
+            FileBlockCache.invalidate(file.getCanonicalFile());
+        }
+    }
+
+    /**
+     * Writes the journal of a save, before the file is modified
+     *
+     * @param channel   the file, open for reading
+     * @param file      the file
+     * @param positions start of each span to be overwritten
+     * @param lengths   length of each span
+     * @throws IOException when the journal cannot be written
+     */
+    static void write(final FileChannel channel, final File file, final long[] positions, final long[] lengths) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        final CRC32 crc = new CRC32();
+        try (FileChannel journal = FileChannel.open(getFile(file).toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            writeLong(journal, buffer, crc, MAGIC);
+            writeLong(journal, buffer, crc, channel.size());
+            for (int i = 0; i < positions.length; ++i) {
+                writeLong(journal, buffer, crc, positions[i]);
+                writeLong(journal, buffer, crc, lengths[i]);
+                long position = positions[i];
+                final long end = position + lengths[i];
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(end - position, BUFFER_SIZE));
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, position + buffer.position()) < 0) {
+                            throw new EOFException();
+                        }
+                    }
+                    buffer.flip();
+                    crc.update(buffer.duplicate());
+                    writeFully(journal, buffer);
+                    position += buffer.limit();
+                }
+            }
+            writeLong(journal, buffer, crc, END_MARK);
+            writeLong(journal, buffer, null, crc.getValue());
+            journal.force(true);
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void writeLong(final FileChannel channel, final ByteBuffer buffer, final CRC32 crc, final long value) throws IOException {
+        buffer.clear();
+        buffer.putLong(value).flip();
+        if (crc != null) {
+            crc.update(buffer.duplicate());
+        }
+        writeFully(channel, buffer);
+    }
+}
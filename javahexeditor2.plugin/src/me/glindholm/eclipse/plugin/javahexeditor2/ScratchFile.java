@@ -0,0 +1,131 @@
+/*
+ * javahexeditor, a java hex editor
+ * Copyright (C) 2006, 2009 Jordi Bergenthal, pestatije(-at_)users.sourceforge.net
+ * Copyright (C) 2018 - 2021 Peter Dell, peterdell(-at_)users.sourceforge.net
+ * The official javahexeditor site is https://sourceforge.net/projects/javahexeditor
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package me.glindholm.eclipse.plugin.javahexeditor2;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temporary append-only file holding buffers moved out of the heap. The bytes are never modified
+ * once written, ranges read them back like any other file range. The file is deleted on
+ * {@link #dispose()}.
+ */
+final class ScratchFile {
+
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final RangeSource.FileRegion source;
+    private long length;
+
+    ScratchFile() throws IOException {
+        file = File.createTempFile("javahexeditor", ".scratch");
+        file.deleteOnExit();
+        randomAccessFile = RandomAccessFileFactory.createRandomAccessFile(file, "rw");
+        source = new RangeSource.FileRegion(file, randomAccessFile.getChannel());
+    }
+
+    /**
+     * Appends all bytes of a buffer, from index 0 to its capacity, so offsets into the buffer stay
+     * valid relative to the returned position.
+     *
+     * @param buffer the buffer, its position and limit are not changed
+     * @return position of index 0 of the buffer in the file
+     * @throws IOException when the file cannot be written
+     */
+    long append(final ByteBuffer buffer) throws IOException {
+        final long result = length;
+        final ByteBuffer source = buffer.duplicate().clear();
+        final FileChannel channel = randomAccessFile.getChannel();
+        while (source.hasRemaining()) {
+            channel.write(source, result + source.position());
+        }
+        length += source.capacity();
+        // the cache may hold a short last page
+        FileBlockCache.invalidate(file);
+
+        return result;
+    }
+
+    /**
+     * Appends a sequence of bytes of another file
+     *
+     * @param source   the other file
+     * @param position first byte in the other file
+     * @param count    number of bytes
+     * @return position of the first byte in this file
+     * @throws IOException when a file cannot be read or written
+     */
+    long append(final FileChannel source, final long position, final long count) throws IOException {
+        final long result = length;
+        final FileChannel channel = randomAccessFile.getChannel();
+        channel.position(result);
+        long transferred = 0L;
+        while (transferred < count) {
+            final long partLength = source.transferTo(position + transferred, count - transferred, channel);
+            if (partLength < 1L) {
+                throw new EOFException();
+            }
+            transferred += partLength;
+        }
+        length += count;
+        FileBlockCache.invalidate(file);
+
+        return result;
+    }
+
+    /**
+     * Closes and deletes the file
+     */
+    void dispose() {
+        try {
+            randomAccessFile.close();
+        } catch (final IOException e) {
+            // ok, it is deleted on exit anyway
+        }
+        FileBlockCache.invalidate(file);
+        file.delete();
+    }
+
+    /**
+     * @return the file, not <code>null</code>
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of bytes written so far
+     */
+    long getLength() {
+        return length;
+    }
+
+    /**
+     * @return the source for ranges reading the file, shared by all of them, not <code>null</code>
+     */
+    RangeSource.FileRegion getSource() {
+        return source;
+    }
+}
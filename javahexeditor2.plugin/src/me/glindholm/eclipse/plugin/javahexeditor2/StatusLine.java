@@ -34,7 +34,7 @@ import me.glindholm.eclipse.plugin.javahexeditor2.common.TextUtility;
 
 /**
  * Status line component of the editor. Displays the current position, value at position, the
- * insert/overwrite status and the file size.
+ * insert/overwrite status, the file size and the memory used by the undo history.
  */
 final class StatusLine extends Composite {
 
@@ -42,6 +42,7 @@ final class StatusLine extends Composite {
     private Label valueLabel;
     private Label insertModeLabel;
     private Label sizeLabel;
+    private Label undoLabel;
 
     /**
      * Create a status line part
@@ -62,7 +63,7 @@ final class StatusLine extends Composite {
         // Every control in a Composite that is
         // managed by a GridLayout must have a unique GridData instance
         final GridLayout statusLayout = new GridLayout();
-        statusLayout.numColumns = withSeparator ? 8 : 7;
+        statusLayout.numColumns = withSeparator ? 10 : 9;
         statusLayout.marginHeight = 0;
         setLayout(statusLayout);
 
@@ -97,6 +98,13 @@ final class StatusLine extends Composite {
         sizeLabel.setLayoutData(createGridData());
         updateSizeWidth(MAX_FILE_SIZE);
 
+        final Label separator5 = new Label(this, SWT.SEPARATOR);
+        separator5.setLayoutData(createGridData());
+
+        undoLabel = new Label(this, SWT.SHADOW_NONE);
+        maxLength = getUndoText(1024L * 1024L * 1024L, BinaryContent.DEFAULT_UNDO_MAXIMUM_ENTRIES).length();
+        undoLabel.setLayoutData(createGridData(maxLength));
+
     }
 
     private int getWidthHint(final int maxLength) {
@@ -270,4 +278,33 @@ final class StatusLine extends Composite {
         return text;
     }
 
+    /**
+     * Clear the undo history status.
+     */
+    public void clearUndo() {
+        if (isDisposed() || undoLabel.isDisposed()) {
+            return;
+        }
+        undoLabel.setText(Texts.EMPTY);
+    }
+
+    /**
+     * Update the undo history status. Displays the memory it uses and its number of actions.
+     *
+     * @param bytes      bytes held in memory by the undo history
+     * @param entryCount number of actions in the undo history
+     */
+    public void updateUndo(final long bytes, final int entryCount) {
+        if (isDisposed() || undoLabel.isDisposed()) {
+            return;
+        }
+        undoLabel.setText(getUndoText(bytes, entryCount));
+    }
+
+    private static String getUndoText(final long bytes, final int entryCount) {
+        final String text = TextUtility.format(Texts.STATUS_LINE_MESSAGE_UNDO, NumberUtility.getDecimalString((bytes + 1023L) / 1024L),
+                NumberUtility.getDecimalString(entryCount));
+        return text;
+    }
+
 }
@@ -44,6 +44,7 @@ public final class Texts extends NLS {
 
     public static String EDITOR_SAVE_SELECTION_AS_MENU_ITEM_LABEL;
     public static String EDITOR_TRIM_MENU_ITEM_LABEL;
+    public static String EDITOR_REVERT_SELECTION_MENU_ITEM_LABEL;
     public static String EDITOR_SELECT_BLOCK_MENU_ITEM_LABEL;
     public static String EDITOR_GO_TO_MENU_ITEM_LABEL;
 
@@ -59,8 +60,10 @@ public final class Texts extends NLS {
     public static String FIND_REPLACE_DIALOG_DIRECTION_BACKWARD_RADIO_LABEL;
     public static String FIND_REPLACE_DIALOG_DIRECTION_FORWARD_RADIO_LABEL;
     public static String FIND_REPLACE_DIALOG_IGNORE_CASE_CHECKBOX_LABEL;
+    public static String FIND_REPLACE_DIALOG_IN_SELECTION_CHECKBOX_LABEL;
 
     public static String FIND_REPLACE_DIALOG_FIND_BUTTON_LABEL;
+    public static String FIND_REPLACE_DIALOG_FIND_ALL_BUTTON_LABEL;
     public static String FIND_REPLACE_DIALOG_REPLACE_BUTTON_LABEL;
     public static String FIND_REPLACE_DIALOG_REPLACE_ALL_BUTTON_LABEL;
 
@@ -71,6 +74,8 @@ public final class Texts extends NLS {
     public static String FIND_REPLACE_DIALOG_MESSAGE_FOUND;
     public static String FIND_REPLACE_DIALOG_MESSAGE_NOT_FOUND;
     public static String FIND_REPLACE_DIALOG_MESSAGE_ERROR_WHILE_SEARCHING;
+    public static String FIND_REPLACE_DIALOG_MESSAGE_COUNTING_MATCHES;
+    public static String FIND_REPLACE_DIALOG_MESSAGE_MATCHES_FOUND;
 
     public static String FIND_REPLACE_DIALOG_MESSAGE_ONE_REPLACEMENT;
     public static String FIND_REPLACE_DIALOG_MESSAGE_MANY_REPLACEMENTS;
@@ -83,6 +88,9 @@ public final class Texts extends NLS {
     public static String GOTO_DIALOG_GOTO_LOCATION_SHELL_LABEL;
     public static String GOTO_DIALOG_HEX;
     public static String GOTO_DIALOG_DECIMAL;
+    public static String GOTO_DIALOG_PREVIOUS_ANNOTATION_BUTTON_LABEL;
+    public static String GOTO_DIALOG_NEXT_ANNOTATION_BUTTON_LABEL;
+    public static String GOTO_DIALOG_MESSAGE_NO_MORE_ANNOTATIONS;
 
     // Hex Texts
     public static String HEX_TEXTS_TITLE_INCONSISTENT_CLIPBOARD_FILES;
@@ -92,6 +100,8 @@ public final class Texts extends NLS {
     public static String MANAGER_OPEN_MESSAGE_CANNOT_OPEN_FILE;
     public static String MANAGER_OPEN_MESSAGE_CANNOT_DETERMINE_CHARSET_OF_FILE;
     public static String MANAGER_OPEN_TITLE_FILE_FROM_HISTORY;
+    public static String MANAGER_OPEN_DIALOG_TITLE_CANNOT_RECOVER_MODIFICATIONS;
+    public static String MANAGER_OPEN_DIALOG_MESSAGE_CANNOT_RECOVER_MODIFICATIONS;
 
     public static String MANAGER_SAVE_DIALOG_TITLE_SAVE_SELECTION_AS;
     public static String MANAGER_SAVE_DIALOG_TITLE_SAVE_AS;
@@ -104,6 +114,7 @@ public final class Texts extends NLS {
     public static String MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE;
     public static String MANAGER_SAVE_MESSAGE_CANNOT_OVERWRITE_FILE_IN_USE;
     public static String MANAGER_SAVE_MESSAGE_CANNOT_CREATE_TEMP_FILE_WITH_UNIQUE_NAME;
+    public static String MANAGER_SAVE_MESSAGE_PROGRESS;
 
     // Preferences Manager
     public static String PREFERENCES_MANAGER_DIALOG_TITLE;
@@ -131,6 +142,7 @@ public final class Texts extends NLS {
     public static String STATUS_LINE_MESSAGE_POSITION;
     public static String STATUS_LINE_MESSAGE_VALUE;
     public static String STATUS_LINE_MESSAGE_SIZE;
+    public static String STATUS_LINE_MESSAGE_UNDO;
 
     public static String STATUS_LINE_MODE_INSERT;
     public static String STATUS_LINE_MODE_OVERWRITE;
@@ -73,4 +73,53 @@ public final class ByteArrayUtility {
 
         return result;
     }
+
+    /**
+     * Converts a hex pattern to the values and masks of its bytes. Ignores white spaces. A hex
+     * character may be '?' to match any nibble, so "??" is any byte and "4?" any byte from 40 to 4F. A
+     * token may be followed by '/' and a mask of as many bytes, whose 0 bits match any bit: "88/F8" is
+     * any byte from 88 to 8F. Odd numbers of characters have a leading '0' added.
+     *
+     * @param value an hex pattern (ie. "E8 ?? ?? ?? ??").
+     * @return An array with [0]=values of the bytes, without the bits masked, [1]=masks of the bytes
+     */
+    public static byte[][] parsePattern(final String value) throws NumberFormatException {
+        final List<Byte> values = new ArrayList<>();
+        final List<Byte> masks = new ArrayList<>();
+        final StringTokenizer st = new StringTokenizer(value);
+        while (st.hasMoreTokens()) {
+            final String token = st.nextToken();
+            final int slash = token.indexOf('/');
+            String hexString = slash < 0 ? token : token.substring(0, slash);
+            if ((hexString.length() & 1) == 1) {
+                hexString = '0' + hexString;
+            }
+            String maskString = slash < 0 ? null : token.substring(slash + 1);
+            if (maskString != null && (maskString.length() & 1) == 1) {
+                maskString = '0' + maskString;
+            }
+            if (maskString != null && maskString.length() != hexString.length()) {
+                throw new NumberFormatException(TextUtility.format(Texts.BYTE_ARRAY_UTILITY_INVALID_HEX_STRING, value));
+            }
+            for (int i = 0; i < hexString.length(); i = i + 2) {
+                final int high = Character.digit(hexString.charAt(i), 16);
+                final int low = Character.digit(hexString.charAt(i + 1), 16);
+                final int maskHigh = maskString == null ? 15 : Character.digit(maskString.charAt(i), 16);
+                final int maskLow = maskString == null ? 15 : Character.digit(maskString.charAt(i + 1), 16);
+                if (high < 0 && hexString.charAt(i) != '?' || low < 0 && hexString.charAt(i + 1) != '?' || maskHigh < 0 || maskLow < 0) {
+                    throw new NumberFormatException(TextUtility.format(Texts.BYTE_ARRAY_UTILITY_INVALID_HEX_STRING, value));
+                }
+                final int mask = (high < 0 ? 0 : maskHigh) << 4 | (low < 0 ? 0 : maskLow);
+                values.add((byte) ((Math.max(high, 0) << 4 | Math.max(low, 0)) & mask));
+                masks.add((byte) mask);
+            }
+        }
+        final byte[][] result = new byte[2][values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            result[0][i] = values.get(i);
+            result[1][i] = masks.get(i);
+        }
+
+        return result;
+    }
 }
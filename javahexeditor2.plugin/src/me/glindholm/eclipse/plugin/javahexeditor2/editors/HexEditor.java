@@ -37,8 +37,10 @@ import org.eclipse.core.runtime.IExtension;
 import org.eclipse.core.runtime.IExtensionPoint;
 import org.eclipse.core.runtime.IExtensionRegistry;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.SubMonitor;
 import org.eclipse.jface.action.Action;
 import org.eclipse.jface.action.IAction;
 import org.eclipse.jface.action.IStatusLineManager;
@@ -177,6 +179,8 @@ public final class HexEditor extends EditorPart implements ISelectionProvider {
         final HexEditorPlugin plugin = HexEditorPlugin.getDefault();
         getManager().setTextFont(HexEditorPreferences.getFontData());
         manager.setFindReplaceHistory(plugin.getFindReplaceHistory());
+        // unsaved modifications are recovered after a crash
+        manager.setJournalDirectory(plugin.getStateLocation().append("journals").toFile());
         hexTexts = manager.createEditorPart(parent);
         final FillLayout fillLayout = new FillLayout();
         parent.setLayout(fillLayout);
@@ -405,18 +409,23 @@ public final class HexEditor extends EditorPart implements ISelectionProvider {
     }
 
     void saveToFile(final File file, final boolean selection, final IProgressMonitor monitor) {
-        monitor.beginTask(Texts.EDITOR_MESSAGE_SAVING_FILE_PLEASE_WAIT, IProgressMonitor.UNKNOWN);
+        final SubMonitor progress = SubMonitor.convert(monitor, Texts.EDITOR_MESSAGE_SAVING_FILE_PLEASE_WAIT, 1);
         try {
             if (selection) {
-                manager.doSaveSelectionAs(file);
+                manager.doSaveSelectionAs(file, progress.split(1));
             } else {
-                manager.saveAsFile(file, monitor);
+                manager.saveAsFile(file, progress.split(1));
             }
         } catch (final IOException ex) {
             monitor.setCanceled(true);
             monitor.done();
             statusLineManager.setErrorMessage(ex.getMessage());
             return;
+        } catch (final OperationCanceledException ex) {
+            // the file is left as it was
+            monitor.setCanceled(true);
+            monitor.done();
+            return;
         }
         monitor.done();
         if (!selection) {
@@ -80,6 +80,18 @@ public final class HexEditorActionBarContributor extends EditorActionBarContribu
                         }
                     }
                 });
+            } else if (MenuIds.REVERT_SELECTION.equals(getId())) {
+                myMenuItem.setText(Texts.EDITOR_REVERT_SELECTION_MENU_ITEM_LABEL);
+                myMenuItem.addSelectionListener(new SelectionAdapter() {
+
+                    @Override
+                    public void widgetSelected(final SelectionEvent e) {
+                        final Manager manager = activeEditor.getManager();
+                        if (manager.isValid()) {
+                            manager.doRevertSelection();
+                        }
+                    }
+                });
             } else if (MenuIds.SELECT_BLOCK.equals(getId())) {
                 myMenuItem.setText(Texts.EDITOR_SELECT_BLOCK_MENU_ITEM_LABEL);
                 // TODO This only works after the "Edit" menu was shown once
@@ -116,6 +128,10 @@ public final class HexEditorActionBarContributor extends EditorActionBarContribu
             if (menuItem != null) {
                 menuItem.setEnabled(lengthModifiable);
             }
+            menuItem = getMenuItem(IWorkbenchActionConstants.M_EDIT, MenuIds.REVERT_SELECTION);
+            if (menuItem != null) {
+                menuItem.setEnabled(textSelected && activeEditor.getManager().isEditable());
+            }
             menuItem = getMenuItem(IWorkbenchActionConstants.M_EDIT, MenuIds.SELECT_BLOCK);
             if (menuItem != null) {
                 menuItem.setEnabled(filled);
@@ -150,6 +166,7 @@ public final class HexEditorActionBarContributor extends EditorActionBarContribu
     private static final class MenuIds {
         public static final String SAVE_SELECTION_AS = "saveSelectionAs";
         public static final String TRIM = "trim";
+        public static final String REVERT_SELECTION = "revertSelection";
         public static final String SELECT_BLOCK = "selectBlock";
         public static final String SAVE_AS = "saveAs";
         public static final String DELETE = "delete";
@@ -180,6 +197,7 @@ public final class HexEditorActionBarContributor extends EditorActionBarContribu
         menu = menuManager.findMenuUsingPath(IWorkbenchActionConstants.M_EDIT);
         if (menu != null) {
             menu.insertAfter(MenuIds.DELETE, new MyMenuContributionItem(MenuIds.TRIM));
+            menu.insertAfter(MenuIds.TRIM, new MyMenuContributionItem(MenuIds.REVERT_SELECTION));
             menu.addMenuListener(myMenuListener);
         }
 
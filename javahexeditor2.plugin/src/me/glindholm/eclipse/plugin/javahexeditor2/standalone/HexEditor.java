@@ -277,6 +277,7 @@ public final class HexEditor {
 
         menu.pushDelete.setEnabled(lengthModifiable);
         menu.pushTrim.setEnabled(lengthModifiable);
+        menu.pushRevertSelection.setEnabled(selected && manager.isEditable());
         menu.pushUndo.setEnabled(manager.canUndo());
         menu.pushRedo.setEnabled(manager.canRedo());
 
@@ -332,6 +333,9 @@ public final class HexEditor {
         case Actions.TRIM:
             manager.doTrim();
             break;
+        case Actions.REVERT_SELECTION:
+            manager.doRevertSelection();
+            break;
 
         case Actions.SELECT_ALL:
             manager.doSelectAll();
@@ -52,6 +52,7 @@ public final class HexEditorMenu {
         public static final int TRIM = 18;
         public static final int UNDO = 19;
         public static final int SELECT_BLOCK = 20;
+        public static final int REVERT_SELECTION = 21;
     }
 
     private final class MySelectionAdapter extends SelectionAdapter {
@@ -86,6 +87,7 @@ public final class HexEditorMenu {
     public final MenuItem pushSelectBlock;
     public final MenuItem pushSelectAll;
     public final MenuItem pushTrim;
+    public final MenuItem pushRevertSelection;
     public final MenuItem pushUndo;
 
     public final MenuItem helpContentsMenuItem;
@@ -133,6 +135,9 @@ public final class HexEditorMenu {
 
         pushTrim = createMenuItem(editSubMenu, me.glindholm.eclipse.plugin.javahexeditor2.Texts.EDITOR_TRIM_MENU_ITEM_LABEL, Actions.TRIM);
 
+        pushRevertSelection = createMenuItem(editSubMenu, me.glindholm.eclipse.plugin.javahexeditor2.Texts.EDITOR_REVERT_SELECTION_MENU_ITEM_LABEL,
+                Actions.REVERT_SELECTION);
+
         pushSelectAll = createMenuItem(editSubMenu, Texts.HEX_EDITOR_SELECT_ALL_MENU_ITEM_LABEL, Actions.SELECT_ALL);
 
         pushSelectBlock = createMenuItem(editSubMenu, me.glindholm.eclipse.plugin.javahexeditor2.Texts.EDITOR_SELECT_BLOCK_MENU_ITEM_LABEL,
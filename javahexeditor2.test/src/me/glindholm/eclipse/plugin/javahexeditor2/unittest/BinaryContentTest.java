@@ -22,19 +22,34 @@ package me.glindholm.eclipse.plugin.javahexeditor2.unittest;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.NullProgressMonitor;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import me.glindholm.eclipse.plugin.javahexeditor2.Annotation;
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent;
+import me.glindholm.eclipse.plugin.javahexeditor2.ContentCursor;
+import me.glindholm.eclipse.plugin.javahexeditor2.FileBlockCache;
+import me.glindholm.eclipse.plugin.javahexeditor2.FileChannelRegistry;
 
 public final class BinaryContentTest {
 
@@ -74,6 +89,634 @@ public final class BinaryContentTest {
         }
     }
 
+    @Test
+    public void testSaveWritesAllKindsOfRanges() {
+        try {
+            content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+            content.insertZeros(100000L, 20L);
+            content.fill(new byte[] { 7, 8, 9 }, 100L, 50L);
+            content.insert((byte) 4, 0L);
+            final ByteBuffer expected = ByteBuffer.allocate((int) content.length());
+            content.get(expected, 0L);
+
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            assertEquals(expected.capacity(), content.get(file));
+            assertEquals(expected.flip(), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+
+            // trailing zeros
+            content.insertZeros(5000L, content.length());
+            assertEquals(expected.capacity() + 5000L, content.get(file));
+            assertEquals(expected.capacity() + 5000L, file.length());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveOverBackingFile() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.copy(TestUtilities.getDataFile(TestUtilities.resourceData).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            final BinaryContent backed = new BinaryContent(file);
+            backed.insert(ByteBuffer.wrap(new byte[100]), 0L);
+            backed.delete(200L, 10L);
+            final ByteBuffer expected = ByteBuffer.allocate((int) backed.length());
+            backed.get(expected, 0L);
+
+            backed.get(file);
+            backed.dispose();
+            assertEquals(expected.flip(), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveThroughLink() {
+        try {
+            final File directory = Files.createTempDirectory("JavaHexEditor").toFile();
+            final File file = new File(directory, "file.bin");
+            final File link = new File(directory, "link.bin");
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            Files.createSymbolicLink(link.toPath(), file.toPath());
+            final BinaryContent linked = new BinaryContent(link);
+            linked.insert(ByteBuffer.wrap(new byte[] { 9 }), 1L);
+
+            linked.save(link, null);
+            linked.dispose();
+            assertTrue(Files.isSymbolicLink(link.toPath()));
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 9, 2, 3, 4, 5, 6 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            link.delete();
+            file.delete();
+            directory.delete();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveCanBeCancelled() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+            final IProgressMonitor monitor = new NullProgressMonitor();
+            monitor.setCanceled(true);
+
+            assertThrows(OperationCanceledException.class, () -> content.get(file, 0L, content.length(), monitor));
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testFailedCopyKeepsTemporaryFile() {
+        try {
+            // a directory that is not empty can neither be replaced nor written over
+            final File directory = Files.createTempDirectory("JavaHexEditor").toFile();
+            final File destination = new File(directory, "file.bin");
+            final File child = new File(destination, "child");
+            destination.mkdir();
+            Files.write(child.toPath(), new byte[] { 1 });
+            content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0L);
+            final ByteBuffer expected = ByteBuffer.allocate((int) content.length());
+            content.get(expected, 0L);
+
+            final IOException exception = assertThrows(IOException.class, () -> content.get(destination));
+            final File[] temporaryFiles = directory.listFiles(file -> !file.equals(destination));
+            assertEquals(1, temporaryFiles.length);
+            assertTrue(exception.getMessage().contains(temporaryFiles[0].toString()));
+            assertEquals(expected.flip(), ByteBuffer.wrap(Files.readAllBytes(temporaryFiles[0].toPath())));
+            temporaryFiles[0].delete();
+            child.delete();
+            destination.delete();
+            directory.delete();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveInPlace() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            final BinaryContent inPlace = new BinaryContent(file);
+            inPlace.setActionsHistory();
+            inPlace.overwrite((byte) 20, 1L);
+            inPlace.overwrite((byte) 50, 4L);
+
+            assertTrue(inPlace.saveInPlace(file, null));
+            assertFalse(inPlace.isDirty());
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 20, 3, 4, 50, 6 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            assertEquals(1, inPlace.getStatistics().getRangeCount());
+            assertFalse(BinaryContent.rollBackInterruptedSave(file));
+
+            // the history no longer reads the overwritten bytes from the file
+            inPlace.undo();
+            inPlace.undo();
+            final ByteBuffer buffer = ByteBuffer.allocate(6);
+            inPlace.get(buffer, 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 }), buffer.flip());
+
+            inPlace.insert((byte) 7, 6L);
+            assertFalse(inPlace.saveInPlace(file, null));
+            inPlace.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveInPlaceKeepsOtherReaders() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            final BinaryContent inPlace = new BinaryContent(file);
+            inPlace.overwrite((byte) 20, 1L);
+
+            // another content reads the file
+            final BinaryContent other = new BinaryContent(file);
+            assertFalse(inPlace.saveInPlace(file, null));
+            other.dispose();
+
+            // a snapshot of the modified content does not read the bytes to be overwritten
+            final BinaryContent.Snapshot current = inPlace.snapshot();
+            assertTrue(inPlace.saveInPlace(file, null));
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 20, 3, 4, 5, 6 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+
+            // an older one does
+            final BinaryContent.Snapshot previous = inPlace.snapshot();
+            inPlace.overwrite((byte) 40, 3L);
+            assertFalse(inPlace.saveInPlace(file, null));
+            assertEquals(current.length(), previous.length());
+            inPlace.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testEmptySaveJournalIsNotRolledBack() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+            // left by a complete save that could not delete it
+            final File journalFile = new File(file.getParentFile(), '.' + file.getName() + ".hexjournal");
+            Files.write(journalFile.toPath(), new byte[0]);
+
+            assertFalse(BinaryContent.rollBackInterruptedSave(file));
+            assertFalse(journalFile.exists());
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+
+            // the journal is next to the file a link points to
+            final File directory = Files.createTempDirectory("JavaHexEditor").toFile();
+            final File link = new File(directory, "link.bin");
+            Files.createSymbolicLink(link.toPath(), file.toPath());
+            Files.write(journalFile.toPath(), new byte[0]);
+            BinaryContent.rollBackInterruptedSave(link);
+            assertFalse(journalFile.exists());
+            link.delete();
+            directory.delete();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveKeepsHistory() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            final BinaryContent saved = new BinaryContent(file);
+            saved.setActionsHistory();
+            saved.delete(1L, 2L);
+            saved.insert((byte) 9, 0L);
+
+            saved.save(file, null);
+            assertFalse(saved.isDirty());
+            assertFalse(saved.isDirtySize());
+            assertEquals(1, saved.getStatistics().getRangeCount());
+            assertEquals(ByteBuffer.wrap(new byte[] { 9, 1, 4, 5, 6 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+
+            saved.undo();
+            saved.undo();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) saved.length());
+            saved.get(buffer, 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 }), buffer.flip());
+            saved.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testUndoAfterSaveIsDirty() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            final BinaryContent saved = new BinaryContent(file);
+            saved.setActionsHistory();
+            saved.insert((byte) 9, 0L);
+            saved.save(file, null);
+            assertFalse(saved.isDirty());
+
+            saved.undo();
+            assertEquals(8L, saved.length());
+            assertTrue(saved.isDirty());
+            assertTrue(saved.isDirtySize());
+            saved.redo();
+            assertFalse(saved.isDirty());
+            saved.restoreHistory(0);
+            assertTrue(saved.isDirty());
+            saved.restoreHistory(1);
+            assertFalse(saved.isDirty());
+
+            saved.overwrite((byte) 10, 2L);
+            assertTrue(saved.saveInPlace(file, null));
+            saved.undo();
+            assertTrue(saved.isDirty());
+            assertFalse(saved.isDirtySize());
+            saved.redo();
+            assertFalse(saved.isDirty());
+
+            // the saved state cannot come back once other actions replace it
+            saved.undo();
+            saved.overwrite((byte) 11, 3L);
+            saved.undo();
+            assertTrue(saved.isDirty());
+            saved.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testCursor() {
+        try {
+            content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+            content.insertZeros(50L, 20L);
+            content.overwrite((byte) 4, 5L);
+            content.overwrite(ByteBuffer.wrap(new byte[] { 5, 6 }), 100L);
+            final ByteBuffer expected = ByteBuffer.allocate((int) content.length());
+            content.get(expected, 0L);
+            expected.flip();
+
+            final ContentCursor cursor = content.cursor(0L);
+            final ByteBuffer forward = ByteBuffer.allocate(expected.capacity());
+            final ByteBuffer chunk = ByteBuffer.allocate(7);
+            while (cursor.read(chunk.clear()) > 0) {
+                forward.put(chunk.flip());
+            }
+            assertEquals(expected, forward.flip());
+            assertEquals(content.length(), cursor.getPosition());
+
+            final ByteBuffer backward = ByteBuffer.allocate(expected.capacity());
+            int end = backward.capacity();
+            while (cursor.readBackward(chunk.clear()) > 0) {
+                end -= chunk.position();
+                backward.put(end, chunk.flip(), 0, chunk.limit());
+            }
+            assertEquals(0, end);
+            assertEquals(expected, backward);
+
+            cursor.setPosition(99L);
+            assertEquals(expected.get(99) & 0xff, cursor.read());
+            assertEquals(5, cursor.read());
+            cursor.setPosition(content.length());
+            assertEquals(-1, cursor.read());
+
+            // the cursor follows the modifications of the content, the snapshot ones do not
+            final ContentCursor snapshotCursor = content.snapshot().cursor(100L);
+            content.delete(0L, 1L);
+            cursor.setPosition(100L);
+            assertEquals(6, cursor.read());
+            assertEquals(5, snapshotCursor.read());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRevertToSaved() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            final byte[] bytes = new byte[20];
+            for (int i = 0; i < bytes.length; ++i) {
+                bytes[i] = (byte) i;
+            }
+            Files.write(file.toPath(), bytes);
+            final BinaryContent reverted = new BinaryContent(file);
+            reverted.setActionsHistory();
+            reverted.insert(ByteBuffer.wrap(new byte[] { 100, 101 }), 0L);
+            reverted.overwrite(ByteBuffer.wrap(new byte[] { 127, 127, 127, 127 }), 5L);
+            reverted.overwrite((byte) 126, 12L);
+
+            assertTrue(reverted.revertToSaved(4L, 10L));
+            final ByteBuffer buffer = ByteBuffer.allocate((int) reverted.length());
+            reverted.get(buffer, 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 100, 101, 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 }), buffer.flip());
+
+            reverted.undo();
+            reverted.get(buffer.clear(), 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 100, 101, 0, 1, 2, 127, 127, 127, 127, 7, 8, 9, 126, 11, 12, 13, 14, 15, 16, 17, 18, 19 }), buffer.flip());
+
+            // the length is limited to the end, sequences outside the content are ignored
+            assertTrue(reverted.revertToSaved(10L, 100L));
+            assertFalse(reverted.revertToSaved(-1L, 2L));
+            assertFalse(reverted.revertToSaved(reverted.length(), 1L));
+            assertFalse(reverted.revertToSaved(3L, 0L));
+            reverted.get(buffer.clear(), 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 100, 101, 0, 1, 2, 127, 127, 127, 127, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 }), buffer.flip());
+
+            // inserted or deleted bytes have no saved bytes
+            assertFalse(reverted.revertToSaved(0L, 4L));
+            reverted.delete(15L, 1L);
+            assertFalse(reverted.revertToSaved(14L, 2L));
+            reverted.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testJournalRestoresModifications() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            final File journalFile = File.createTempFile("JavaHexEditor", ".hexedits");
+            journalFile.deleteOnExit();
+            final BinaryContent crashed = new BinaryContent(file);
+            crashed.setActionsHistory();
+            crashed.startJournal(file, journalFile);
+            crashed.overwrite((byte) 20, 1L);
+            crashed.insert((byte) 9, 0L);
+            crashed.delete(3L, 2L);
+            crashed.insert(ByteBuffer.wrap(new byte[] { 7, 7 }), 0L);
+            crashed.undo();
+            final ByteBuffer expected = ByteBuffer.allocate((int) crashed.length());
+            crashed.get(expected, 0L);
+
+            // the application ends without disposing the content
+            final BinaryContent restored = BinaryContent.restore(file, journalFile);
+            final ByteBuffer buffer = ByteBuffer.allocate((int) restored.length());
+            restored.get(buffer, 0L);
+            assertEquals(expected.flip(), buffer.flip());
+            assertTrue(restored.isDirty());
+
+            restored.undo();
+            restored.undo();
+            restored.undo();
+            assertFalse(restored.canUndo());
+            final ByteBuffer original = ByteBuffer.allocate((int) restored.length());
+            restored.get(original, 0L);
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6 }), original.flip());
+
+            restored.dispose();
+            assertFalse(journalFile.exists());
+            crashed.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testJournalIsNotReplayedOntoModifiedFile() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            final File journalFile = File.createTempFile("JavaHexEditor", ".hexedits");
+            journalFile.deleteOnExit();
+            final BinaryContent crashed = new BinaryContent(file);
+            crashed.setActionsHistory();
+            crashed.startJournal(file, journalFile);
+            crashed.overwrite((byte) 20, 1L);
+            final long lastModified = file.lastModified();
+
+            // another program rewrites the file with the same length
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 7 });
+            assertTrue(file.setLastModified(lastModified + 2000L));
+            assertNull(BinaryContent.restore(file, journalFile));
+
+            // even at the same time
+            assertTrue(file.setLastModified(lastModified));
+            assertNull(BinaryContent.restore(file, journalFile));
+
+            Files.write(file.toPath(), new byte[] { 1, 2, 3, 4, 5, 6 });
+            assertTrue(file.setLastModified(lastModified));
+            final BinaryContent restored = BinaryContent.restore(file, journalFile);
+            assertTrue(restored.isDirty());
+            restored.dispose();
+            crashed.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSaveInPlaceCanBeCancelled() {
+        try {
+            final File file = File.createTempFile("JavaHexEditor", ".tmp");
+            file.deleteOnExit();
+            Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+            final BinaryContent inPlace = new BinaryContent(file);
+            inPlace.overwrite((byte) 20, 1L);
+            final IProgressMonitor monitor = new NullProgressMonitor();
+            monitor.setCanceled(true);
+
+            assertThrows(OperationCanceledException.class, () -> inPlace.saveInPlace(file, monitor));
+            assertEquals(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+            assertFalse(BinaryContent.rollBackInterruptedSave(file));
+            inPlace.dispose();
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testFileChannelsAreShared() {
+        try {
+            final File file = TestUtilities.getDataFile(TestUtilities.resourceData);
+            assertTrue(FileChannelRegistry.isInUse(file));
+            final int channelCount = FileChannelRegistry.getChannelCount();
+
+            final BinaryContent other = new BinaryContent(file);
+            content.insert(file, 10L);
+            content.insert(file, 20L);
+            assertEquals(channelCount, FileChannelRegistry.getChannelCount());
+
+            other.dispose();
+            assertTrue(FileChannelRegistry.isInUse(file));
+            content.dispose();
+            assertFalse(FileChannelRegistry.isInUse(file));
+            assertEquals(channelCount - 1, FileChannelRegistry.getChannelCount());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testFileReadsAreCached() {
+        try {
+            FileBlockCache.clear();
+            final long misses = FileBlockCache.getMissCount();
+            final long hits = FileBlockCache.getHitCount();
+            assertEquals(8, content.get(data, 100));
+            assertEquals(misses + 1, FileBlockCache.getMissCount());
+
+            data.position(0);
+            assertEquals(8, content.get(data, 4));
+            assertEquals(misses + 1, FileBlockCache.getMissCount());
+            assertEquals(hits + 1, FileBlockCache.getHitCount());
+            assertEquals(4, data.get(0));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testCompactKeepsContentAndUndo() {
+        try {
+            content.setActionsHistory();
+            for (int i = 10; i < 110; ++i) {
+                content.overwrite(ByteBuffer.wrap(new byte[] { (byte) (i + 1) }), i);
+            }
+            assertEquals(100, content.compact());
+            assertEquals(100, content.getCompactedRangeCount());
+            assertEquals(0, content.compact());
+
+            final ByteBuffer all = ByteBuffer.allocate(256);
+            assertEquals(256, content.get(all, 0L));
+            for (int i = 0; i < 256; ++i) {
+                assertEquals((byte) (i >= 10 && i < 110 ? i + 1 : i), all.get(i));
+            }
+
+            while (content.canUndo()) {
+                content.undo();
+            }
+            all.clear();
+            assertEquals(256, content.get(all, 0L));
+            for (int i = 0; i < 256; ++i) {
+                assertEquals((byte) i, all.get(i));
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testHeapBudgetSpillsToDisk() {
+        try {
+            content.setActionsHistory();
+            content.setHeapBudget(4096);
+            final byte[] expected = new byte[256 + 16 * 1024];
+            for (int i = 0; i < 16; ++i) {
+                final byte[] inserted = new byte[1024];
+                Arrays.fill(inserted, (byte) i);
+                content.insert(ByteBuffer.wrap(inserted), i * 1024);
+                System.arraycopy(inserted, 0, expected, i * 1024, 1024);
+            }
+            for (int i = 0; i < 256; ++i) {
+                expected[16 * 1024 + i] = (byte) i;
+            }
+            assertTrue(content.getHeapBytes() <= 4096);
+            assertTrue(content.getSpilledBytes() >= 12 * 1024);
+
+            final ByteBuffer all = ByteBuffer.allocate(expected.length);
+            assertEquals(expected.length, content.get(all, 0L));
+            for (int i = 0; i < expected.length; ++i) {
+                assertEquals(expected[i], all.get(i), "Position " + i);
+            }
+
+            while (content.canUndo()) {
+                content.undo();
+            }
+            assertEquals(256, content.length());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testZerosAndPattern() {
+        try {
+            content.setActionsHistory();
+            content.setLength(1024L * 1024 * 1024 * 4);
+            assertEquals(1024L * 1024 * 1024 * 4, content.length());
+            assertEquals(8, content.get(data, 1024L * 1024 * 1024 * 3));
+            assertEquals(0, data.get(7));
+
+            content.fill(new byte[] { 1, 2, 3 }, 254, 4);
+            data.clear();
+            assertEquals(8, content.get(data, 252));
+            assertEquals(-3, data.get(1));
+            assertEquals(1, data.get(2));
+            assertEquals(2, data.get(3));
+            assertEquals(3, data.get(4));
+            assertEquals(1, data.get(5));
+            assertEquals(0, data.get(6));
+
+            content.insertZeros(2, 0);
+            data.clear();
+            assertEquals(8, content.get(data, 0));
+            assertEquals(0, data.get(1));
+            assertEquals(0, data.get(2));
+            assertEquals(1, data.get(3));
+
+            content.setLength(10);
+            assertEquals(10, content.length());
+            content.undo();
+            content.undo();
+            content.undo();
+            content.undo();
+            assertEquals(256, content.length());
+            data.clear();
+            assertEquals(6, content.get(data, 250));
+            assertEquals((byte) 255, data.get(5));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testStatistics() {
+        try {
+            BinaryContent.Statistics statistics = content.getStatistics();
+            assertEquals(256, statistics.getLength());
+            assertEquals(1, statistics.getRangeCount());
+            assertEquals(0, statistics.getDirtyBytes());
+            assertEquals(0, statistics.getHeapBytes());
+
+            content.insert(ByteBuffer.wrap(new byte[10]), 100);
+            content.insertZeros(20, 0);
+            content.insert((byte) 1, 5);
+            statistics = content.getStatistics();
+            assertEquals(287, statistics.getLength());
+            assertEquals(4, statistics.getRangeCount());
+            assertEquals(31, statistics.getDirtyBytes());
+            assertEquals(11, statistics.getHeapBytes());
+
+            content.delete(0, 30);
+            statistics = content.getStatistics();
+            assertEquals(257, statistics.getLength());
+            assertEquals(10, statistics.getDirtyBytes());
+            assertEquals(10, statistics.getHeapBytes());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Test
     public void testDelete() {
         try {
@@ -205,6 +848,142 @@ public final class BinaryContentTest {
         }
     }
 
+    @Test
+    public void testManyEditsKeepContentConsistent() {
+        try {
+            final List<Byte> expected = new ArrayList<>();
+            for (int i = 0; i < 256; ++i) {
+                expected.add((byte) i);
+            }
+            final Random random = new Random(4711);
+            for (int i = 0; i < 2000; ++i) {
+                final int position = random.nextInt(expected.size() + 1);
+                final byte value = (byte) random.nextInt();
+                switch (random.nextInt(5)) {
+                case 0:
+                    content.insert(value, position);
+                    expected.add(position, value);
+                    break;
+                case 1:
+                    final byte[] inserted = new byte[1 + random.nextInt(16)];
+                    random.nextBytes(inserted);
+                    content.insert(ByteBuffer.wrap(inserted), position);
+                    for (int j = 0; j < inserted.length; ++j) {
+                        expected.add(position + j, inserted[j]);
+                    }
+                    break;
+                case 2:
+                    if (position < expected.size()) {
+                        content.overwrite(value, position);
+                        expected.set(position, value);
+                    }
+                    break;
+                case 3:
+                    if (position < expected.size()) {
+                        final byte[] overwritten = new byte[1 + random.nextInt(Math.min(16, expected.size() - position))];
+                        random.nextBytes(overwritten);
+                        content.overwrite(ByteBuffer.wrap(overwritten), position);
+                        for (int j = 0; j < overwritten.length; ++j) {
+                            expected.set(position + j, overwritten[j]);
+                        }
+                    }
+                    break;
+                default:
+                    if (position < expected.size() && expected.size() > 16) {
+                        final int length = 1 + random.nextInt(Math.min(8, expected.size() - position));
+                        content.delete(position, length);
+                        expected.subList(position, position + length).clear();
+                    }
+                    break;
+                }
+                assertEquals(expected.size(), content.length());
+            }
+
+            final ByteBuffer all = ByteBuffer.allocate(expected.size());
+            assertEquals(expected.size(), content.get(all, 0L));
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(expected.get(i).byteValue(), all.get(i), "Position " + i);
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSnapshotKeepsOldContent() {
+        try {
+            final byte[] original = new byte[256];
+            assertEquals(256, content.get(ByteBuffer.wrap(original), 0L));
+            final BinaryContent.Snapshot first = content.snapshot();
+            assertEquals(content.getVersion(), first.getVersion());
+
+            content.insert((byte) 1, 10);
+            content.insert((byte) 2, 11);
+            final BinaryContent.Snapshot typed = content.snapshot();
+            content.insert(ByteBuffer.wrap(new byte[] { 3, 4, 5 }), 0);
+            content.delete(100, 50);
+            content.overwrite((byte) 6, 200);
+            assertTrue(content.getVersion() > typed.getVersion());
+
+            final ByteBuffer all = ByteBuffer.allocate(300);
+            assertEquals(256, first.length());
+            assertEquals(256, first.get(all, 0L));
+            assertEquals(ByteBuffer.wrap(original), all.flip());
+
+            all.clear();
+            assertEquals(258, typed.get(all, 0L));
+            assertEquals(1, all.get(10));
+            assertEquals(2, all.get(11));
+            assertEquals(original[10], all.get(12));
+            assertEquals(original[255], all.get(257));
+
+            final ByteBuffer current = ByteBuffer.allocate(300);
+            final BinaryContent.Snapshot last = content.snapshot();
+            assertEquals(content.length(), last.length());
+            assertEquals(content.get(current, 0L), last.get(all.clear(), 0L));
+            assertEquals(current.flip(), all.flip());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testSnapshotReadByOtherThread() {
+        try {
+            final byte[] original = new byte[256];
+            content.get(ByteBuffer.wrap(original), 0L);
+            final BinaryContent.Snapshot snapshot = content.snapshot();
+            final int[] mismatches = new int[1];
+            final Thread reader = new Thread(() -> {
+                final ByteBuffer buffer = ByteBuffer.allocate(256);
+                try {
+                    for (int i = 0; i < 2000; ++i) {
+                        buffer.clear();
+                        if (snapshot.get(buffer, 0L) != 256 || !ByteBuffer.wrap(original).equals(buffer.flip())) {
+                            ++mismatches[0];
+                        }
+                    }
+                } catch (final IOException e) {
+                    ++mismatches[0];
+                }
+            });
+            reader.start();
+            final Random random = new Random(42);
+            for (int i = 0; i < 2000; ++i) {
+                final long position = random.nextInt((int) content.length());
+                if (random.nextBoolean()) {
+                    content.insert(ByteBuffer.wrap(new byte[] { (byte) i }), position);
+                } else {
+                    content.overwrite(ByteBuffer.wrap(new byte[] { (byte) i }), position);
+                }
+            }
+            reader.join();
+            assertEquals(0, mismatches[0]);
+        } catch (final IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     /*
      * Test method for overwrite(byte)
      */
@@ -328,4 +1107,141 @@ public final class BinaryContentTest {
             throw new RuntimeException(e);
         }
     }
+
+    @Test
+    public void testChangeEvents() {
+        final BinaryContent content = new BinaryContent();
+        try {
+            content.insert(ByteBuffer.wrap(new byte[100]), 0L);
+            content.setActionsHistory();
+            final List<BinaryContent.Change> changes = new ArrayList<>();
+            content.addModifyListener(new BinaryContent.ModifyListener() {
+                @Override
+                public void modified() {
+                    fail("modified(Change) is overridden");
+                }
+
+                @Override
+                public void modified(final BinaryContent.Change change) {
+                    changes.add(change);
+                }
+            });
+
+            content.insert(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 10L);
+            content.delete(50L, 5L);
+            content.overwrite((byte) 4, 20L);
+            content.beginTransaction();
+            content.overwrite(ByteBuffer.wrap(new byte[] { 5, 6 }), 30L);
+            content.insert(ByteBuffer.wrap(new byte[] { 7 }), 40L);
+            content.commit();
+            content.undo();
+            assertEquals(List.of(new BinaryContent.Change(10L, 0L, 3L), new BinaryContent.Change(50L, 5L, 0L), new BinaryContent.Change(20L, 1L, 1L),
+                    new BinaryContent.Change(30L, 10L, 11L), new BinaryContent.Change(30L, 11L, 10L)), changes);
+
+            final BinaryContent.Change change = new BinaryContent.Change(10L, 2L, 5L);
+            assertTrue(change.affects(100L, 1L));
+            assertFalse(change.affects(0L, 10L));
+            assertFalse(new BinaryContent.Change(10L, 2L, 2L).affects(12L, 100L));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            content.dispose();
+        }
+    }
+
+    @Test
+    public void testAnnotations() {
+        final BinaryContent content = new BinaryContent();
+        try {
+            content.insert(ByteBuffer.wrap(new byte[100]), 0L);
+            final Annotation a = content.addAnnotation(10L, 5L, "a", 0xff0000);
+            final Annotation b = content.addAnnotation(40L, 0L, "b", -1);
+            final Annotation c = content.addAnnotation(60L, 10L, "c", 0x00ff00);
+            final Annotation d = content.addAnnotation(80L, 4L, "d", -1);
+            assertThrows(IllegalArgumentException.class, () -> content.addAnnotation(90L, 11L, "e", -1));
+            assertTrue(b.isBookmark());
+
+            content.insert(ByteBuffer.wrap(new byte[3]), 0L);
+            assertEquals(13L, a.getStart());
+            assertEquals(43L, b.getStart());
+            assertEquals(63L, c.getStart());
+            assertEquals(83L, d.getStart());
+
+            // Inside a region: the region grows
+            content.insert(ByteBuffer.wrap(new byte[2]), 65L);
+            assertEquals(12L, c.getLength());
+            assertEquals(85L, d.getStart());
+
+            // Across the start of a region: the region shrinks
+            content.delete(12L, 2L);
+            assertEquals(12L, a.getStart());
+            assertEquals(4L, a.getLength());
+            content.overwrite((byte) 1, 12L);
+            assertEquals(4L, a.getLength());
+
+            // Around a bookmark: the bookmark stays at the deletion
+            content.delete(40L, 10L);
+            assertEquals(40L, b.getStart());
+            assertEquals(51L, c.getStart());
+
+            // Around a region: the region is removed
+            content.delete(50L, 20L);
+            assertEquals(-1L, c.getStart());
+            assertEquals(53L, d.getStart());
+            assertEquals(3, content.getAnnotationCount());
+
+            assertEquals(List.of(a), content.getAnnotations(0L, 13L));
+            assertEquals(List.of(), content.getAnnotations(16L, 24L));
+            assertEquals(List.of(b), content.getAnnotations(40L, 1L));
+            assertEquals(List.of(a, b, d), content.getAnnotations(0L, content.length()));
+
+            assertEquals(b, content.getNextAnnotation(12L));
+            assertEquals(d, content.getNextAnnotation(40L));
+            assertEquals(null, content.getNextAnnotation(53L));
+            assertEquals(b, content.getPreviousAnnotation(53L));
+            assertEquals(null, content.getPreviousAnnotation(12L));
+
+            content.removeAnnotation(b);
+            assertEquals(-1L, b.getStart());
+            assertEquals(2, content.getAnnotationCount());
+            assertEquals(d, content.getNextAnnotation(12L));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            content.dispose();
+        }
+    }
+
+    @Test
+    public void testAnnotationsFollowRestoredHistory() {
+        final BinaryContent restored = new BinaryContent();
+        final BinaryContent undone = new BinaryContent();
+        final List<Annotation> annotations = new ArrayList<>();
+        for (final BinaryContent content : List.of(restored, undone)) {
+            content.insert(ByteBuffer.wrap(new byte[500]), 0L);
+            content.setActionsHistory();
+            for (int i = 0; i < 60; ++i) {
+                if (i % 3 == 2) {
+                    content.delete(5L * i, 2L);
+                } else {
+                    content.insert(ByteBuffer.wrap(new byte[] { 1, 2 }), 5L * i);
+                }
+            }
+            assertEquals(60, content.getHistoryIndex());
+            annotations.add(content.addAnnotation(400L, 4L, "a", -1));
+        }
+
+        // the restore starts from the checkpoint of the first action
+        restored.restoreHistory(2);
+        while (undone.getHistoryIndex() > 2) {
+            undone.undo();
+        }
+        assertEquals(annotations.get(1).getStart(), annotations.get(0).getStart());
+        assertEquals(364L, annotations.get(0).getStart());
+
+        restored.restoreHistory(60);
+        assertEquals(400L, annotations.get(0).getStart());
+        restored.dispose();
+        undone.dispose();
+    }
 }
@@ -21,11 +21,20 @@
 package me.glindholm.eclipse.plugin.javahexeditor2.unittest;
 
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -34,6 +43,8 @@ import org.junit.jupiter.api.Test;
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContent;
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContentFinder;
 import me.glindholm.eclipse.plugin.javahexeditor2.BinaryContentFinder.Match;
+import me.glindholm.eclipse.plugin.javahexeditor2.MatchIndex;
+import me.glindholm.eclipse.plugin.javahexeditor2.common.ByteArrayUtility;
 
 public final class FinderTest {
 
@@ -152,6 +163,221 @@ public final class FinderTest {
         content3.dispose();
     }
 
+    @Test
+    public void testFindEveryMatchBothWays() {
+        assertFindsEveryMatchBothWays(3 * BinaryContentFinder.MAP_SIZE, 1L, searched -> new BinaryContentFinder("aBaA", searched));
+    }
+
+    @Test
+    public void testFindEverySequenceBothWays() {
+        assertFindsEveryMatchBothWays(BinaryContentFinder.MAP_SIZE + 1000, 2L,
+                searched -> new BinaryContentFinder(new byte[] { 'a', 'B', 'a', 'A' }, searched));
+    }
+
+    /*
+     * Finds "abaa" ignoring case in random "a", "A" and "b", forward then backward
+     */
+    private void assertFindsEveryMatchBothWays(final int length, final long seed, final Function<BinaryContent, BinaryContentFinder> newFinder) {
+        final byte[] bytes = new byte[length];
+        final Random random = new Random(seed);
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) "aAb".charAt(random.nextInt(3));
+        }
+        final List<Long> expected = new ArrayList<>();
+        for (int i = 0; i + 4 <= bytes.length; ++i) {
+            if ((bytes[i] | 32) == 'a' && (bytes[i + 1] | 32) == 'b' && (bytes[i + 2] | 32) == 'a' && (bytes[i + 3] | 32) == 'a') {
+                expected.add((long) i);
+            }
+        }
+        final BinaryContent randomContent = new BinaryContent();
+        randomContent.insert(ByteBuffer.wrap(bytes), 0L);
+
+        finder = newFinder.apply(randomContent);
+        finder.setCaseSensitive(false);
+        final List<Long> forward = new ArrayList<>();
+        for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+            forward.add(match.getStartPosition());
+        }
+        assertEquals(expected, forward);
+
+        finder.setDirectionForward(false);
+        finder.setNewStart(bytes.length);
+        final List<Long> backward = new ArrayList<>();
+        for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+            backward.add(0, match.getStartPosition());
+        }
+        assertEquals(expected, backward);
+        randomContent.dispose();
+    }
+
+    @Test
+    public void testFindAll() {
+        final byte[] bytes = new byte[3 * BinaryContentFinder.MAP_SIZE];
+        final Random random = new Random(3);
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) "aAb".charAt(random.nextInt(3));
+        }
+        final BinaryContent randomContent = new BinaryContent();
+        randomContent.insert(ByteBuffer.wrap(bytes), 0L);
+        finder = new BinaryContentFinder(new byte[] { 'a', 'B', 'a', 'A' }, randomContent);
+        finder.setCaseSensitive(false);
+        final List<Long> expected = new ArrayList<>();
+        for (Match match = getNextMatch(finder); match.isFound(); match = getNextMatch(finder)) {
+            expected.add(match.getStartPosition());
+        }
+
+        final MatchIndex index = new MatchIndex();
+        try {
+            assertTrue(finder.findAll(0L, bytes.length, index));
+            assertEquals(expected.size(), index.size());
+            for (int i = 0; i < expected.size(); ++i) {
+                assertEquals(expected.get(i), index.getPosition(i));
+                assertEquals(4, index.getLength(i));
+            }
+            final long middle = expected.get(expected.size() / 2);
+            assertEquals(expected.size() / 2, index.indexOfNext(middle));
+            assertEquals(expected.size() / 2 + 1, index.indexOfNext(middle + 1L));
+            assertEquals(expected.size() / 2 - 1, index.indexOfPrevious(middle));
+            assertEquals(-1L, index.indexOfPrevious(expected.get(0)));
+            assertEquals(-1L, index.indexOfNext(expected.get(expected.size() - 1) + 1L));
+
+            // matches ending after the range are not in it
+            final long start = expected.get(10);
+            final long end = expected.get(20) + 3L;
+            assertTrue(finder.findAll(start, end, index));
+            assertEquals(10, index.size());
+            assertEquals(start, index.getPosition(0));
+            assertEquals(expected.get(19), index.getPosition(9));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        randomContent.dispose();
+
+        // ASCII and Unicode matches have different lengths
+        final BinaryContent textContent = new BinaryContent();
+        textContent.insert(ByteBuffer.wrap(new byte[] { 'x', 'a', 'b', 0, 'a', 0, 'b', 0, 'a', 'b', 'a', 0, 'b', 0 }), 0L);
+        finder = new BinaryContentFinder("ab", textContent);
+        try {
+            assertTrue(finder.findAll(0L, textContent.length(), index));
+            assertEquals(5, index.size());
+            final long[] positions = { 1L, 3L, 4L, 8L, 10L };
+            final int[] lengths = { 2, 4, 4, 2, 4 };
+            for (int i = 0; i < positions.length; ++i) {
+                assertEquals(positions[i], index.getPosition(i));
+                assertEquals(lengths[i], index.getLength(i));
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        textContent.dispose();
+
+        // a Unicode match crossing a part boundary starts before an ASCII match within the part
+        final byte[] mixed = new byte[2 * BinaryContentFinder.MAP_SIZE];
+        Arrays.fill(mixed, (byte) 'x');
+        final int boundary = BinaryContentFinder.MAP_SIZE;
+        System.arraycopy(new byte[] { 0, 0, 'a', 0 }, 0, mixed, boundary - 3, 4);
+        final BinaryContent mixedContent = new BinaryContent();
+        mixedContent.insert(ByteBuffer.wrap(mixed), 0L);
+        finder = new BinaryContentFinder("\0a", mixedContent);
+        try {
+            assertTrue(finder.findAll(0L, mixed.length, index));
+            assertEquals(2, index.size());
+            assertEquals(boundary - 3L, index.getPosition(0));
+            assertEquals(4, index.getLength(0));
+            assertEquals(boundary - 2L, index.getPosition(1));
+            assertEquals(2, index.getLength(1));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+        mixedContent.dispose();
+    }
+
+    @Test
+    public void testFindPattern() {
+        final byte[][] pattern = ByteArrayUtility.parsePattern("E8 ??  ?4 4?8B/FFF8");
+        assertArrayEquals(new byte[] { (byte) 0xe8, 0, 0x04, 0x40, (byte) 0x88 }, pattern[0]);
+        assertArrayEquals(new byte[] { (byte) 0xff, 0, (byte) 0x0f, (byte) 0xf0, (byte) 0xf8 }, pattern[1]);
+        assertThrows(NumberFormatException.class, () -> ByteArrayUtility.parsePattern("E8/F0F8"));
+        assertThrows(NumberFormatException.class, () -> ByteArrayUtility.parsePattern("G?"));
+
+        final byte[] bytes = new byte[2 * BinaryContentFinder.MAP_SIZE];
+        final byte[] match = { (byte) 0xe8, 0x12, 0x34, 0x4f, (byte) 0x8b };
+        final long[] positions = { 100L, BinaryContentFinder.MAP_SIZE - 2L, bytes.length - match.length };
+        for (final long position : positions) {
+            System.arraycopy(match, 0, bytes, (int) position, match.length);
+        }
+        bytes[200] = (byte) 0xe8; // not followed by 4? 8?
+        bytes[203] = 0x4f;
+        bytes[204] = (byte) 0x90;
+        final BinaryContent patternContent = new BinaryContent();
+        patternContent.insert(ByteBuffer.wrap(bytes), 0L);
+
+        finder = new BinaryContentFinder(pattern[0], pattern[1], patternContent);
+        for (final long position : positions) {
+            final Match found = getNextMatch(finder);
+            assertEquals(position, found.getStartPosition());
+            assertEquals(match.length, found.getLength());
+        }
+        assertFalse(getNextMatch(finder).isFound());
+
+        finder.setDirectionForward(false);
+        finder.setNewStart(bytes.length);
+        for (int i = positions.length - 1; i >= 0; --i) {
+            assertEquals(positions[i], getNextMatch(finder).getStartPosition());
+        }
+        assertFalse(getNextMatch(finder).isFound());
+        patternContent.dispose();
+    }
+
+    @Test
+    public void testFindSequenceLongerThanPart() {
+        final byte[] bytes = new byte[5 * BinaryContentFinder.MAP_SIZE];
+        new Random(2).nextBytes(bytes);
+        final int start = 2 * BinaryContentFinder.MAP_SIZE - 5;
+        final byte[] sequence = new byte[BinaryContentFinder.MAP_SIZE + 10];
+        System.arraycopy(bytes, start, sequence, 0, sequence.length);
+        final BinaryContent randomContent = new BinaryContent();
+        randomContent.insert(ByteBuffer.wrap(bytes), 0L);
+
+        finder = new BinaryContentFinder(sequence, randomContent);
+        final Match match = getNextMatch(finder);
+        assertEquals(start, match.getStartPosition());
+        assertEquals(sequence.length, match.getLength());
+        assertFalse(getNextMatch(finder).isFound());
+
+        finder.setDirectionForward(false);
+        finder.setNewStart(bytes.length);
+        assertEquals(start, getNextMatch(finder).getStartPosition());
+        randomContent.dispose();
+    }
+
+    @Test
+    public void testFindInParallel() {
+        final long segment = BinaryContentFinder.SEGMENT_SIZE;
+        final BinaryContent largeContent = new BinaryContent();
+        largeContent.insertZeros(5L * segment + 123L, 0L);
+        final byte[] sequence = { 1, 2, 3, 4, 5, 6 };
+        largeContent.overwrite(ByteBuffer.wrap(sequence), 3L * segment - 2L);
+        largeContent.overwrite(ByteBuffer.wrap(sequence), 4L * segment + 5L);
+        largeContent.overwrite(ByteBuffer.wrap(sequence), 4L * segment + 7L);
+
+        for (final boolean parallel : new boolean[] { true, false }) {
+            finder = new BinaryContentFinder(sequence, largeContent);
+            finder.setParallel(parallel);
+            finder.takeSnapshot();
+            assertEquals(3L * segment - 2L, getNextMatch(finder).getStartPosition());
+            assertEquals(4L * segment + 7L, getNextMatch(finder).getStartPosition());
+            assertFalse(getNextMatch(finder).isFound());
+
+            finder.setDirectionForward(false);
+            finder.setNewStart(largeContent.length());
+            assertEquals(4L * segment + 7L, getNextMatch(finder).getStartPosition());
+            assertEquals(3L * segment - 2L, getNextMatch(finder).getStartPosition());
+            assertFalse(getNextMatch(finder).isFound());
+        }
+        largeContent.dispose();
+    }
+
     @Test
     public void testLongFind() {
 
@@ -21,6 +21,7 @@
 package me.glindholm.eclipse.plugin.javahexeditor2.unittest;
 
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
@@ -850,6 +851,190 @@ public final class UndoRedoTest {
         }
     }
 
+    @Test
+    public void testUndoEntriesAreBounded() {
+        try {
+            content.setUndoLimits(Long.MAX_VALUE, 2);
+            content.delete(0L, 1L);
+            content.delete(10L, 1L);
+            content.delete(20L, 1L);
+            assertEquals(2, content.getStatistics().getUndoEntryCount());
+
+            content.undo();
+            content.undo();
+            assertFalse(content.canUndo());
+            assertEquals(8, content.get(data, 0L));
+            assertEquals(1, data.get(0));
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testUndoCompression() {
+        try {
+            final int length = 8 * 1024 * 1024;
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                bytes[i] = (byte) (i % 7);
+            }
+            content.setUndoCompression(true);
+            content.insert(ByteBuffer.wrap(bytes), 0L);
+            content.delete(0L, length);
+            assertTrue(content.getStatistics().getUndoBytes() < length / 4);
+
+            content.undo();
+            final ByteBuffer buffer = ByteBuffer.allocate(length);
+            assertEquals(length, content.get(buffer, 0L));
+            assertEquals(ByteBuffer.wrap(bytes), buffer.flip());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testTransaction() {
+        try {
+            final ByteBuffer before = ByteBuffer.allocate(16);
+            content.get(before, 0L);
+            final long length = content.length();
+            final int[] notifications = new int[1];
+            content.addModifyListener(() -> ++notifications[0]);
+
+            content.beginTransaction();
+            content.overwrite((byte) 1, 0L);
+            content.insert(ByteBuffer.wrap(new byte[] { 2, 3 }), 4L);
+            content.beginTransaction();
+            content.delete(10L, 3L);
+            content.commit();
+            assertEquals(0, notifications[0]);
+            content.commit();
+            assertEquals(1, notifications[0]);
+            assertFalse(content.isInTransaction());
+
+            final ByteBuffer after = ByteBuffer.allocate(16);
+            content.get(after, 0L);
+            assertEquals(length - 1L, content.length());
+
+            content.undo();
+            assertFalse(content.canUndo());
+            assertEquals(length, content.length());
+            final ByteBuffer buffer = ByteBuffer.allocate(16);
+            content.get(buffer, 0L);
+            assertEquals(before, buffer);
+
+            content.redo();
+            content.get(buffer.clear(), 0L);
+            assertEquals(after, buffer);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRestoreHistory() {
+        try {
+            final int length = (int) content.length();
+            final ByteBuffer original = ByteBuffer.allocate(length);
+            content.get(original, 0L);
+            ByteBuffer middle = null;
+            for (int i = 0; i < 100; ++i) {
+                if (i % 3 == 0) {
+                    content.insert(ByteBuffer.wrap(new byte[] { (byte) i, (byte) i }), i);
+                } else if (i % 3 == 1) {
+                    content.delete(i, 1L);
+                } else {
+                    content.overwrite(ByteBuffer.wrap(new byte[] { (byte) -i }), i + 1L);
+                }
+                if (i == 49) {
+                    middle = ByteBuffer.allocate((int) content.length());
+                    content.get(middle, 0L);
+                }
+            }
+            final ByteBuffer last = ByteBuffer.allocate((int) content.length());
+            content.get(last, 0L);
+            assertEquals(100, content.getHistoryIndex());
+
+            content.restoreHistory(0);
+            assertEquals(0, content.getHistoryIndex());
+            assertFalse(content.canUndo());
+            ByteBuffer buffer = ByteBuffer.allocate((int) content.length());
+            content.get(buffer, 0L);
+            assertEquals(original, buffer);
+
+            content.restoreHistory(50);
+            buffer = ByteBuffer.allocate((int) content.length());
+            content.get(buffer, 0L);
+            assertEquals(middle, buffer);
+
+            content.restoreHistory(100);
+            buffer = ByteBuffer.allocate((int) content.length());
+            content.get(buffer, 0L);
+            assertEquals(last, buffer);
+            assertFalse(content.canRedo());
+
+            content.restoreHistory(51);
+            content.undo();
+            buffer = ByteBuffer.allocate((int) content.length());
+            content.get(buffer, 0L);
+            assertEquals(middle, buffer);
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Test
+    public void testRestoreHistorySpan() {
+        final long length = content.length();
+        content.beginTransaction();
+        content.delete(200L, 10L);
+        content.insert(ByteBuffer.wrap(new byte[] { 1, 2 }), 10L);
+        content.commit();
+        assertArrayEquals(new long[] { 10L, 210L }, content.restoreHistory(0));
+
+        // an append, restored like undo does
+        content.insert(ByteBuffer.wrap(new byte[50]), length);
+        assertArrayEquals(new long[] { length, length }, content.restoreHistory(0));
+        assertArrayEquals(new long[] { length, length + 50L }, content.restoreHistory(1));
+        assertArrayEquals(new long[] { length, length }, content.undo());
+    }
+
+    @Test
+    public void testRestoreHistoryAfterMovingBuffers() {
+        try {
+            final int length = 8 * 1024 * 1024;
+            final byte[] bytes = new byte[length];
+            for (int i = 0; i < length; ++i) {
+                bytes[i] = (byte) (i % 7);
+            }
+            content.setUndoCompression(true);
+            content.insert(ByteBuffer.wrap(bytes), 0L);
+            ByteBuffer expected = null;
+            for (int i = 0; i < 80; ++i) {
+                if (i == 40) {
+                    // the checkpoints taken until now hold the inserted buffer
+                    content.delete(0L, length);
+                } else {
+                    content.overwrite(ByteBuffer.wrap(new byte[] { (byte) i, (byte) i }), 3L * i);
+                }
+                if (i == 32) {
+                    expected = ByteBuffer.allocate((int) content.length());
+                    content.get(expected, 0L);
+                }
+            }
+            assertEquals(81, content.getHistoryIndex());
+            assertTrue(content.getStatistics().getUndoBytes() < length / 4);
+            content.setHeapBudget(0L);
+
+            content.restoreHistory(34);
+            final ByteBuffer buffer = ByteBuffer.allocate((int) content.length());
+            content.get(buffer, 0L);
+            assertEquals(expected.flip(), buffer.flip());
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public void testRangesModified() {
         try {
             final List<Long> rangesModified = new ArrayList<>();